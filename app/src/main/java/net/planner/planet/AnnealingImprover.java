@@ -0,0 +1,327 @@
+package net.planner.planet;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Improvement phase for tasks that were already added to a calendar, by simulated annealing. Every step either moves
+ * one task to another start (the start of a free gap, a preferred interval of its tag, or a shift of up to two hours)
+ * or swaps the starts of two tasks, and keeps the change if it improves the score, or by chance that shrinks as the
+ * time budget runs out. The score rewards minutes in preferred time and slack before the deadline (up to a day), and
+ * penalizes free gaps too short to be of use. A change is scored by its delta alone: the terms of the tasks it moves
+ * and of the free gaps around their old and new places, so a step costs a few index queries whatever the amount of
+ * tasks. Only tasks added as a single event are moved. The best plan seen is the one kept **/
+public class AnnealingImprover {
+
+    private static final String TAG = "AnnealingImprover";
+    public static final double PREFERRED_WEIGHT = 1; // Per minute in preferred time.
+    public static final double SLACK_WEIGHT = 0.01; // Per minute between the end of a task and its deadline.
+    public static final double SHORT_GAP_PENALTY = 30; // Per free gap that is too short to be of use.
+    public static final double DEFAULT_START_TEMPERATURE = 30;
+
+    private static final long MINUTE_IN_MILLIS = 60000L;
+    private static final long MAX_SLACK_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long SHORT_GAP_IN_MILLIS = 30 * MINUTE_IN_MILLIS; // Beyond the space between tasks.
+    private static final long MAX_SHIFT_IN_MILLIS = 2 * 60 * MINUTE_IN_MILLIS;
+    private static final int GAP_STARTS = 4;
+
+    private final long budgetMillis;
+    private final long maxMoves;
+    private final double startTemperature;
+    private final Random random;
+    private long moves;
+    private long acceptedMoves;
+
+    /** Create an improver that runs for the given time budget in milliseconds with the given seed **/
+    public AnnealingImprover(long budgetMillis, long seed) {
+        this(budgetMillis, Long.MAX_VALUE, DEFAULT_START_TEMPERATURE, seed);
+    }
+
+    /** Create an improver that runs for the given time budget in milliseconds or the given amount of moves, whichever
+     * ends first, from the given temperature (in score points) with the given seed **/
+    public AnnealingImprover(long budgetMillis, long maxMoves, double startTemperature, long seed) {
+        this.budgetMillis = budgetMillis;
+        this.maxMoves = maxMoves;
+        this.startTemperature = startTemperature;
+        this.random = new Random(seed);
+    }
+
+    /** Improve the places of the added tasks (as returned by PlannerSolver) in the calendar. Returns the events of the
+     * tasks by the same order **/
+    public List<List<PlannerEvent>> improve(List<List<PlannerEvent>> addedTasks, PlannerCalendar calendar) {
+        List<List<PlannerEvent>> result = new ArrayList<>(addedTasks);
+        int[] positions = new int[addedTasks.size()];
+        List<PlannerEvent> movable = new ArrayList<>();
+        for (int i = 0; i < addedTasks.size(); i++) {
+            if (addedTasks.get(i).size() == 1) {
+                positions[movable.size()] = i;
+                movable.add(addedTasks.get(i).get(0));
+            }
+        }
+        if (movable.isEmpty()) {
+            return result;
+        }
+
+        Plan plan = new Plan(calendar, movable);
+        plan.anneal();
+        for (int i = 0; i < plan.events.length; i++) {
+            result.set(positions[i], new ArrayList<>(Arrays.asList(plan.events[i])));
+        }
+        return result;
+    }
+
+    /** Get the amount of moves tried so far **/
+    public long getMoves() {
+        return moves;
+    }
+
+    /** Get the amount of moves kept so far **/
+    public long getAcceptedMoves() {
+        return acceptedMoves;
+    }
+
+    /** Places of the movable tasks during one run **/
+    private class Plan {
+
+        private final PlannerCalendar calendar;
+        private final long space;
+        private final PlannerTask[] tasks;
+        private final IntervalSet[] preferred; // Preferred time of the tag of each task.
+        private final PlannerEvent[] events;
+        private final long[] points = new long[8];
+        private final long[] seenGaps = new long[8];
+        private double score;
+        private double bestScore;
+        private long[] bestStarts;
+
+        Plan(PlannerCalendar calendar, List<PlannerEvent> movable) {
+            this.calendar = calendar;
+            this.space = calendar.getSpaceBetweenTasks();
+            int count = movable.size();
+            tasks = new PlannerTask[count];
+            preferred = new IntervalSet[count];
+            events = movable.toArray(new PlannerEvent[0]);
+            long endTime = calendar.getEndTime();
+            for (int i = 0; i < count; i++) {
+                tasks[i] = events[i].getParentTask();
+                PlannerTag tag = calendar.getTag(tasks[i]);
+                preferred[i] = tag == null ? IntervalSet.EMPTY : tag.getPreferredMask(calendar.getStartTime(), endTime);
+                score += taskScore(i, events[i].getStartTime());
+            }
+            bestScore = score;
+            bestStarts = getStarts();
+        }
+
+        /** Run the annealing and leave the best plan in the calendar **/
+        void anneal() {
+            long startedAt = System.nanoTime();
+            long budget = budgetMillis * 1000000L;
+            double remaining = 1;
+            for (long step = 0; step < maxMoves; step++) {
+                if ((step & 31) == 0) {
+                    remaining = 1 - (double) (System.nanoTime() - startedAt) / budget;
+                    if (remaining <= 0) {
+                        break;
+                    }
+                }
+
+                moves++;
+                double temperature = startTemperature * remaining;
+                boolean accepted = tasks.length > 1 && random.nextInt(4) == 0 ?
+                        trySwap(random.nextInt(tasks.length), random.nextInt(tasks.length), temperature) :
+                        tryMove(random.nextInt(tasks.length), temperature);
+                if (accepted) {
+                    acceptedMoves++;
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestStarts = getStarts();
+                    }
+                }
+            }
+
+            if (score < bestScore) {
+                restoreStarts(bestStarts);
+            }
+        }
+
+        /** Try to move the task to another start. Returns true if the move is kept **/
+        private boolean tryMove(int i, double temperature) {
+            PlannerEvent old = events[i];
+            long newStart = pickStart(i);
+            if (newStart == old.getStartTime()) {
+                return false;
+            }
+
+            setPoints(old, newStart, tasks[i], null, 0, null);
+            double before = taskScore(i, old.getStartTime()) + gapsScore(4);
+            calendar.removeEvent(old);
+            List<PlannerEvent> placed = calendar.insertTaskAt(tasks[i], newStart);
+            if (placed.isEmpty()) {
+                calendar.insertEvent(old);
+                return false;
+            }
+
+            double delta = taskScore(i, newStart) + gapsScore(4) - before;
+            if (isAccepted(delta, temperature)) {
+                events[i] = placed.get(0);
+                score += delta;
+                return true;
+            }
+            calendar.removeEvent(placed.get(0));
+            calendar.insertEvent(old);
+            return false;
+        }
+
+        /** Try to swap the starts of the two tasks. Returns true if the swap is kept **/
+        private boolean trySwap(int i, int j, double temperature) {
+            PlannerEvent first = events[i], second = events[j];
+            if (i == j || tasks[i].getDurationInMillis() == tasks[j].getDurationInMillis()
+                    && tasks[i].getTagId() == tasks[j].getTagId() && tasks[i].getDeadline() == tasks[j].getDeadline()) {
+                // Swapping equal tasks changes nothing.
+                return false;
+            }
+
+            setPoints(first, second.getStartTime(), tasks[i], second, first.getStartTime(), tasks[j]);
+            double before = taskScore(i, first.getStartTime()) + taskScore(j, second.getStartTime()) + gapsScore(8);
+            calendar.removeEvent(first);
+            calendar.removeEvent(second);
+            List<PlannerEvent> placedFirst = calendar.insertTaskAt(tasks[i], second.getStartTime());
+            List<PlannerEvent> placedSecond = placedFirst.isEmpty() ? placedFirst : calendar.insertTaskAt(tasks[j], first.getStartTime());
+            if (placedSecond.isEmpty()) {
+                if (!placedFirst.isEmpty()) {
+                    calendar.removeEvent(placedFirst.get(0));
+                }
+                calendar.insertEvent(first);
+                calendar.insertEvent(second);
+                return false;
+            }
+
+            double after = taskScore(i, second.getStartTime()) + taskScore(j, first.getStartTime()) + gapsScore(8);
+            double delta = after - before;
+            if (isAccepted(delta, temperature)) {
+                events[i] = placedFirst.get(0);
+                events[j] = placedSecond.get(0);
+                score += delta;
+                return true;
+            }
+            calendar.removeEvent(placedFirst.get(0));
+            calendar.removeEvent(placedSecond.get(0));
+            calendar.insertEvent(first);
+            calendar.insertEvent(second);
+            return false;
+        }
+
+        /** Return whether a change by the given delta is kept at the given temperature **/
+        private boolean isAccepted(double delta, double temperature) {
+            return delta >= 0 || temperature > 0 && random.nextDouble() < Math.exp(delta / temperature);
+        }
+
+        /** Pick a new start for the task: the start of one of the first free gaps where it fits, the start of a
+         * preferred interval, or a shift of its current start **/
+        private long pickStart(int i) {
+            long current = events[i].getStartTime();
+            int kind = random.nextInt(3);
+            if (kind == 0) {
+                long[] starts = calendar.findTaskStarts(tasks[i], GAP_STARTS);
+                return starts.length == 0 ? current : starts[random.nextInt(starts.length)];
+            }
+            // Only preferred intervals that start early enough for the task to end by its deadline are picked.
+            int intervals = preferred[i].lastStartingAtOrBefore(tasks[i].getDeadline() - tasks[i].getDurationInMillis()) + 1;
+            if (kind == 1 && intervals > 0) {
+                return Math.max(preferred[i].getStart(random.nextInt(intervals)), calendar.getStartTime() + space);
+            }
+            long shift = (random.nextLong() % MAX_SHIFT_IN_MILLIS) / MINUTE_IN_MILLIS * MINUTE_IN_MILLIS;
+            return current + shift;
+        }
+
+        /** Get the score of the task if it starts at the given time **/
+        private double taskScore(int i, long start) {
+            long end = start + tasks[i].getDurationInMillis();
+            long preferredTime = preferred[i].overlapLength(start, end);
+            long slack = Math.min(tasks[i].getDeadline() - end, MAX_SLACK_IN_MILLIS);
+            return (PREFERRED_WEIGHT * preferredTime + SLACK_WEIGHT * slack) / MINUTE_IN_MILLIS;
+        }
+
+        /** Set the points around which the free gaps can change when the first event moves to the first start (and the
+         * second event to the second start, when given) **/
+        private void setPoints(PlannerEvent first, long firstStart, PlannerTask firstTask,
+                               PlannerEvent second, long secondStart, PlannerTask secondTask) {
+            points[0] = first.getStartTime() - 1;
+            points[1] = first.getEndTime() + 1;
+            points[2] = firstStart - 1;
+            points[3] = firstStart + firstTask.getDurationInMillis() + space + 1;
+            if (second != null) {
+                points[4] = second.getStartTime() - 1;
+                points[5] = second.getEndTime() + 1;
+                points[6] = secondStart - 1;
+                points[7] = secondStart + secondTask.getDurationInMillis() + space + 1;
+            }
+        }
+
+        /** Get the penalty of the short free gaps that contain the first count points (each gap counted once) **/
+        private double gapsScore(int count) {
+            double gapsScore = 0;
+            int seen = 0;
+            for (int k = 0; k < count; k++) {
+                long[] gap = calendar.getFreeGap(points[k]);
+                if (gap == null || contains(seenGaps, seen, gap[0])) {
+                    continue;
+                }
+                seenGaps[seen++] = gap[0];
+                long length = gap[1] - gap[0];
+                if (length > space && length < space + SHORT_GAP_IN_MILLIS) {
+                    gapsScore -= SHORT_GAP_PENALTY;
+                }
+            }
+            return gapsScore;
+        }
+
+        /** Get the current starts of the tasks **/
+        private long[] getStarts() {
+            long[] starts = new long[events.length];
+            for (int i = 0; i < events.length; i++) {
+                starts[i] = events[i].getStartTime();
+            }
+            return starts;
+        }
+
+        /** Move the tasks back to the given starts, where they all fit together. If one of them doesn't fit there any
+         * more, the tasks are put back where they are now **/
+        private void restoreStarts(long[] starts) {
+            PlannerEvent[] current = events.clone();
+            for (PlannerEvent event : current) {
+                calendar.removeEvent(event);
+            }
+            for (int i = 0; i < events.length; i++) {
+                List<PlannerEvent> placed = calendar.insertTaskAt(tasks[i], starts[i]);
+                if (placed.isEmpty()) {
+                    Log.e(TAG, "Failed to restore the best plan, task " + tasks[i].getTitle() + " no longer fits at its start");
+                    for (int k = 0; k < i; k++) {
+                        calendar.removeEvent(events[k]);
+                    }
+                    for (int k = 0; k < events.length; k++) {
+                        calendar.insertEvent(current[k]);
+                        events[k] = current[k];
+                    }
+                    return;
+                }
+                events[i] = placed.get(0);
+            }
+            score = bestScore;
+        }
+    }
+
+    /** Return whether the first count values hold the given value **/
+    private static boolean contains(long[] values, int count, long value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
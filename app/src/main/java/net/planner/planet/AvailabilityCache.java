@@ -0,0 +1,184 @@
+package net.planner.planet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded cache of the answers a calendar gives about intervals: whether they are available, and whether a tag forbids
+ * or prefers them. The answers are kept in a fixed table of slots by the hash of their question, and a new answer
+ * replaces the one in its slot, so reading and writing take no lock and a lookup allocates nothing.
+ * Every day of the calendar (and the time before and after it) has a modification epoch, taken from a clock that moves
+ * on every change, so a change only invalidates the cached availability of the intervals that touch its days. Tag
+ * answers are invalidated when the tag changes (or is replaced by another one with the same name).
+ */
+class AvailabilityCache {
+
+    // Constants
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int AVAILABLE = 0;
+    public static final int FORBIDDEN = 1;
+    public static final int PREFERRED = 2;
+
+    // Fields
+    private final int capacity; // Amount of slots, a power of two.
+    private volatile AtomicReferenceArray<Answer> answers;
+    private final AtomicLong clock;
+    private volatile AtomicLongArray dayEpochs; // Slot 0 is before the first day, the last slot is after the last day.
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    // Constructors
+
+    /**
+     * Construct an empty cache for the given amount of days with slots for the given amount of answers (rounded up to a
+     * power of two).
+     */
+    public AvailabilityCache(int days, int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        answers = new AtomicReferenceArray<>(this.capacity);
+        clock = new AtomicLong();
+        dayEpochs = new AtomicLongArray(days + 2);
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    // Methods
+
+    /**
+     * Returns the current time of the clock. An answer computed after this call is stored with it.
+     */
+    public long now() {
+        return clock.get();
+    }
+
+    /**
+     * Marks the days from firstDay to lastDay (-1 is before the first day) as changed, invalidating the availability of
+     * the intervals that touch them. Called after the change.
+     */
+    public void touchDays(int firstDay, int lastDay) {
+        long epoch = clock.incrementAndGet();
+        AtomicLongArray epochs = dayEpochs;
+        for (int slot = firstDay + 1; slot <= lastDay + 1; slot++) {
+            epochs.set(slot, epoch);
+        }
+    }
+
+    /**
+     * Drops all answers and resets the days to the given amount. Used when the days of the calendar move.
+     */
+    public void reset(int days) {
+        answers = new AtomicReferenceArray<>(capacity);
+        dayEpochs = new AtomicLongArray(days + 2);
+    }
+
+    /**
+     * Returns the cached answer of the given kind for [start, end] (and the given tag, null for availability), or null
+     * if there is none or it's no longer valid. The interval touches the days from firstDay to lastDay.
+     */
+    public Boolean get(int kind, PlannerTag tag, long start, long end, int firstDay, int lastDay) {
+        Answer answer = answers.get(slotOf(kind, tag, start, end));
+        if (answer == null || !answer.answers(kind, tag, start, end) || !isValid(answer, tag, firstDay, lastDay)) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return answer.value;
+    }
+
+    /**
+     * Caches the answer of the given kind for [start, end] (and the given tag, null for availability), which was
+     * computed after the clock showed computedAt.
+     */
+    public void put(int kind, PlannerTag tag, long start, long end, boolean value, long computedAt) {
+        answers.set(slotOf(kind, tag, start, end),
+                new Answer(kind, start, end, value, computedAt, tag, tag == null ? 0 : tag.getVersion()));
+    }
+
+    /**
+     * Returns the amount of answers found in the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the amount of answers that had to be computed.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Returns the slot of the question of the given kind about [start, end] and the given tag (may be
+     * null).
+     */
+    private int slotOf(int kind, PlannerTag tag, long start, long end) {
+        long hash = Fingerprints.combine(Fingerprints.ofInterval(start, end), kind);
+        hash = Fingerprints.combine(hash, tagIdOf(tag));
+        return (int) hash & (capacity - 1);
+    }
+
+    /**
+     * Helper function: Returns the id of the name of the given tag in PlannerTagRegistry, or NO_TAG_ID for null.
+     */
+    private static int tagIdOf(PlannerTag tag) {
+        return tag == null ? PlannerTagRegistry.NO_TAG_ID : tag.getTagId();
+    }
+
+    /**
+     * Helper function: Returns true if the answer is still valid for the given tag and days.
+     */
+    private boolean isValid(Answer answer, PlannerTag tag, int firstDay, int lastDay) {
+        if (tag != null) {
+            return answer.tag == tag && answer.tagVersion == tag.getVersion();
+        }
+
+        AtomicLongArray epochs = dayEpochs;
+        for (int slot = firstDay + 1; slot <= lastDay + 1; slot++) {
+            if (epochs.get(slot) > answer.computedAt) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Inner classes
+
+    /**
+     * Cached answer, with its question and what it depends on.
+     */
+    private static class Answer {
+
+        private final int kind;
+        private final int tagId;
+        private final long start;
+        private final long end;
+        private final boolean value;
+        private final long computedAt;
+        private final PlannerTag tag;
+        private final int tagVersion;
+
+        public Answer(int kind, long start, long end, boolean value, long computedAt, PlannerTag tag, int tagVersion) {
+            this.kind = kind;
+            this.tagId = tagIdOf(tag);
+            this.start = start;
+            this.end = end;
+            this.value = value;
+            this.computedAt = computedAt;
+            this.tag = tag;
+            this.tagVersion = tagVersion;
+        }
+
+        /**
+         * Returns true if this is the answer to the question of the given kind about [start, end] and the name of the
+         * given tag (by its id).
+         */
+        public boolean answers(int kind, PlannerTag tag, long start, long end) {
+            return this.kind == kind && this.start == start && this.end == end && tagId == tagIdOf(tag);
+        }
+    }
+}
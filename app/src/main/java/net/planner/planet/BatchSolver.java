@@ -0,0 +1,290 @@
+package net.planner.planet;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Solver for many independent jobs, each a calendar with its own tasks (such as the calendars of many users), on the
+ * given executor (a pool of worker threads, or one with a virtual thread per task where the platform has them).
+ * Submitting a job blocks while the maximal amount of jobs are in flight, so a long stream of jobs never piles up in
+ * the executor's queue. Every job is solved in best-effort mode on a snapshot of its calendar, which is kept only if
+ * the job ends within the job timeout and the calendar didn't change while the job ran (by its fingerprint); otherwise
+ * the job fails and leaves the calendar as it is. A calendar should therefore be in one job at a time and not be edited
+ * while its job runs. The timeout is cooperative: it is checked before each task, so it never interrupts a job, and a
+ * job that runs past it is only found out (and counted as timed out) once it stops, which takes as long as the task
+ * it was placing. A job can also be given its events and tags instead of a calendar, and then its calendar is built
+ * only when it runs, with the given tags themselves: tags given to many jobs are shared between them rather than
+ * copied, so they must not change while the jobs run **/
+public class BatchSolver {
+
+    private static final String TAG = "BatchSolver";
+    public static final long NO_TIMEOUT = 0;
+
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final long jobTimeoutNanos;
+
+    private final AtomicLong submittedJobs = new AtomicLong();
+    private final AtomicLong completedJobs = new AtomicLong();
+    private final AtomicLong timedOutJobs = new AtomicLong();
+    private final AtomicLong failedJobs = new AtomicLong();
+    private final AtomicLong placedTasks = new AtomicLong();
+    private final AtomicLong unplacedTasks = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong firstSubmitNanos = new AtomicLong();
+    private final AtomicLong lastEndNanos = new AtomicLong();
+
+    /** Create a solver that runs up to maxInFlight jobs at once on the executor, and gives up on a job once it finds
+     * (before the next task) that jobTimeoutMillis passed (NO_TIMEOUT for no limit) **/
+    public BatchSolver(ExecutorService executor, int maxInFlight, long jobTimeoutMillis) {
+        this.executor = executor;
+        this.inFlight = new Semaphore(Math.max(maxInFlight, 1));
+        this.jobTimeoutNanos = Math.max(jobTimeoutMillis, 0) * 1000000L;
+    }
+
+    /** Submit a job, waiting while the maximal amount of jobs are in flight. Returns the future result of the job **/
+    public Future<JobResult> submit(Job job) throws InterruptedException {
+        inFlight.acquire();
+        firstSubmitNanos.compareAndSet(0, System.nanoTime());
+        submittedJobs.incrementAndGet();
+        try {
+            return executor.submit(() -> {
+                try {
+                    return run(job);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /** Solve all the jobs, submitting them as slots free up. Returns their results by the same order **/
+    public List<JobResult> solveAll(Iterator<Job> jobs) throws InterruptedException {
+        List<Future<JobResult>> futures = new ArrayList<>();
+        while (jobs.hasNext()) {
+            futures.add(submit(jobs.next()));
+        }
+
+        List<JobResult> results = new ArrayList<>(futures.size());
+        for (Future<JobResult> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                // run() catches what the solving throws, so only an error gets here.
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /** Get the metrics of the jobs solved so far **/
+    public Metrics getMetrics() {
+        long first = firstSubmitNanos.get();
+        long elapsed = first == 0 ? 0 : Math.max(lastEndNanos.get() - first, 0);
+        return new Metrics(submittedJobs.get(), completedJobs.get(), timedOutJobs.get(), failedJobs.get(),
+                placedTasks.get(), unplacedTasks.get(), busyNanos.get(), elapsed);
+    }
+
+    /** Solve one job on the calling worker **/
+    private JobResult run(Job job) {
+        long startedAt = System.nanoTime();
+        JobResult jobResult;
+        try {
+            PlannerCalendar calendar = job.getCalendar();
+            PlannerCalendar fork = calendar.snapshot();
+            long fingerprint = fork.getFingerprint();
+            PlacementResult result = PlannerSolver.addTasksBestEffort(job.getTasks(), fork, startedAt, jobTimeoutNanos);
+            int tried = result.getPlacedTasks().size() + result.getUnplacedTasks().size();
+            if (tried < job.getTasks().size()) {
+                timedOutJobs.incrementAndGet();
+                jobResult = new JobResult(job, null, true, null);
+            } else if (!calendar.restoreIfUnchanged(fork, fingerprint)) {
+                Log.e(TAG, "Failed to keep the result of a job, its calendar changed while it ran");
+                failedJobs.incrementAndGet();
+                jobResult = new JobResult(job, null, false, new IllegalStateException("The calendar changed while the job ran"));
+            } else {
+                completedJobs.incrementAndGet();
+                placedTasks.addAndGet(result.getPlacedTasks().size());
+                unplacedTasks.addAndGet(result.getUnplacedTasks().size());
+                jobResult = new JobResult(job, result, false, null);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to solve a job: " + e);
+            failedJobs.incrementAndGet();
+            jobResult = new JobResult(job, null, false, e);
+        }
+
+        long endedAt = System.nanoTime();
+        busyNanos.addAndGet(endedAt - startedAt);
+        long lastEnd;
+        do {
+            lastEnd = lastEndNanos.get();
+        } while (endedAt - lastEnd > 0 && !lastEndNanos.compareAndSet(lastEnd, endedAt));
+        return jobResult;
+    }
+
+    /** A calendar with the tasks to add to it **/
+    public static class Job {
+
+        private final List<PlannerTask> tasks;
+        private final long startTime;
+        private final List<PlannerEvent> events;
+        private final List<PlannerTag> tags;
+        private PlannerCalendar calendar;
+
+        /** Create a job that adds the tasks to the given calendar **/
+        public Job(PlannerCalendar calendar, List<PlannerTask> tasks) {
+            this(tasks, 0, null, null);
+            this.calendar = calendar;
+        }
+
+        /** Create a job that adds the tasks to a calendar from the given start time with the given events and tags, which
+         * is built when the job runs. The tags are used as they are, so many jobs can share them **/
+        public Job(long startTime, List<PlannerEvent> events, List<PlannerTag> tags, List<PlannerTask> tasks) {
+            this(tasks, startTime, events, tags);
+        }
+
+        private Job(List<PlannerTask> tasks, long startTime, List<PlannerEvent> events, List<PlannerTag> tags) {
+            this.tasks = Collections.unmodifiableList(new ArrayList<>(tasks));
+            this.startTime = startTime;
+            this.events = events;
+            this.tags = tags;
+        }
+
+        /** Get the calendar of the job, building it if needed **/
+        public synchronized PlannerCalendar getCalendar() {
+            if (calendar == null) {
+                calendar = new PlannerCalendar(startTime, 0, events, tags);
+            }
+            return calendar;
+        }
+
+        public List<PlannerTask> getTasks() {
+            return tasks;
+        }
+    }
+
+    /** Result of one job **/
+    public static class JobResult {
+
+        private final Job job;
+        private final PlacementResult result;
+        private final boolean timedOut;
+        private final RuntimeException error;
+
+        JobResult(Job job, PlacementResult result, boolean timedOut, RuntimeException error) {
+            this.job = job;
+            this.result = result;
+            this.timedOut = timedOut;
+            this.error = error;
+        }
+
+        public Job getJob() {
+            return job;
+        }
+
+        /** Get the placed and unplaced tasks, or null if the job timed out or failed (then its calendar is unchanged) **/
+        public PlacementResult getResult() {
+            return result;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /** Get what the job failed with (an IllegalStateException if its calendar changed while it ran), or null if it
+         * didn't fail **/
+        public RuntimeException getError() {
+            return error;
+        }
+    }
+
+    /** Aggregated metrics of the jobs of a solver **/
+    public static class Metrics {
+
+        private final long submittedJobs;
+        private final long completedJobs;
+        private final long timedOutJobs;
+        private final long failedJobs;
+        private final long placedTasks;
+        private final long unplacedTasks;
+        private final long busyNanos;
+        private final long elapsedNanos;
+
+        Metrics(long submittedJobs, long completedJobs, long timedOutJobs, long failedJobs, long placedTasks,
+                long unplacedTasks, long busyNanos, long elapsedNanos) {
+            this.submittedJobs = submittedJobs;
+            this.completedJobs = completedJobs;
+            this.timedOutJobs = timedOutJobs;
+            this.failedJobs = failedJobs;
+            this.placedTasks = placedTasks;
+            this.unplacedTasks = unplacedTasks;
+            this.busyNanos = busyNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getSubmittedJobs() {
+            return submittedJobs;
+        }
+
+        public long getCompletedJobs() {
+            return completedJobs;
+        }
+
+        public long getTimedOutJobs() {
+            return timedOutJobs;
+        }
+
+        public long getFailedJobs() {
+            return failedJobs;
+        }
+
+        public long getPlacedTasks() {
+            return placedTasks;
+        }
+
+        public long getUnplacedTasks() {
+            return unplacedTasks;
+        }
+
+        /** Get the total time the workers spent on jobs **/
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        /** Get the time from the first submitted job to the end of the last finished one **/
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /** Get the amount of finished jobs (of any outcome) per second of elapsed time **/
+        public double getJobsPerSecond() {
+            long finished = completedJobs + timedOutJobs + failedJobs;
+            return elapsedNanos == 0 ? 0 : finished * 1e9 / elapsedNanos;
+        }
+
+        /** Get the amount of placed tasks per second of elapsed time **/
+        public double getTasksPerSecond() {
+            return elapsedNanos == 0 ? 0 : placedTasks * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Jobs: " + completedJobs + " completed, " + timedOutJobs + " timed out, " + failedJobs + " failed of "
+                    + submittedJobs + "; tasks: " + placedTasks + " placed, " + unplacedTasks + " unplaced; "
+                    + String.format("%.1f jobs/s", getJobsPerSecond());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package net.planner.planet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/** Anytime solver that searches over the assignments of the tasks to free slots by branch and bound, and keeps the
+ * assignment that places the most tasks. Every task (by the order of PlannerSolver) is tried in the first few free gaps
+ * where it fits, and is also skipped, instead of stopping at the first task that can't be placed. A branch is pruned
+ * when even placing every remaining task that still has a non-forbidden slot before its deadline, as long as their
+ * durations fit in the free time before the last deadline, can't beat the best assignment found. When the time budget
+ * runs out the best assignment found so far is kept, and if the search ends before, that assignment is optimal among
+ * the tried slots **/
+public class BranchAndBoundSolver {
+
+    public static final int DEFAULT_BRANCHES = 3;
+
+    private final long budgetMillis;
+    private final int branches;
+
+    /** Create a solver with the given time budget in milliseconds **/
+    public BranchAndBoundSolver(long budgetMillis) {
+        this(budgetMillis, DEFAULT_BRANCHES);
+    }
+
+    /** Create a solver with the given time budget in milliseconds that tries each task in up to the given amount of free gaps **/
+    public BranchAndBoundSolver(long budgetMillis, int branches) {
+        this.budgetMillis = budgetMillis;
+        this.branches = Math.max(branches, 1);
+    }
+
+    /** Add the tasks to the calendar by the best assignment found within the time budget. Returns the events of the
+     * added tasks **/
+    public List<List<PlannerEvent>> addTasks(List<PlannerTask> tasks, PlannerCalendar calendar) {
+        Search search = new Search(PlannerSolver.sortTasks(tasks, calendar), System.nanoTime() + budgetMillis * 1000000L);
+        search.branch(calendar.snapshot(), 0, new LinkedList<>());
+        if (search.best != null) {
+            calendar.restore(search.best);
+        }
+        return search.bestAddedTasks;
+    }
+
+    /** State of one search **/
+    private class Search {
+
+        private final List<PlannerTask> tasks;
+        private final long stopAt; // System.nanoTime() at which the budget runs out.
+        private boolean expired;
+        private PlannerCalendar best;
+        private List<List<PlannerEvent>> bestAddedTasks;
+
+        Search(List<PlannerTask> tasks, long stopAt) {
+            this.tasks = tasks;
+            this.stopAt = stopAt;
+            this.bestAddedTasks = new LinkedList<>();
+        }
+
+        /** Search the assignments of the tasks from the given index to the given calendar, which holds the added tasks **/
+        void branch(PlannerCalendar calendar, int index, LinkedList<List<PlannerEvent>> addedTasks) {
+            if (addedTasks.size() > bestAddedTasks.size()) {
+                best = calendar;
+                bestAddedTasks = new ArrayList<>(addedTasks);
+            }
+            if (System.nanoTime() - stopAt >= 0) {
+                expired = true;
+            }
+            if (expired || index == tasks.size() || upperBound(calendar, index, addedTasks.size()) <= bestAddedTasks.size()) {
+                return;
+            }
+
+            // Calendars of the branches are snapshots, so the calendar of this node stays as it is.
+            PlannerTask task = tasks.get(index);
+            if (task.getMaxDivisionsNumber() > 1) {
+                PlannerCalendar child = calendar.snapshot();
+                tryBranch(child, index, addedTasks, child.insertTask(task));
+            } else {
+                for (long startTime : calendar.findTaskStarts(task, branches)) {
+                    PlannerCalendar child = calendar.snapshot();
+                    tryBranch(child, index, addedTasks, child.insertTaskAt(task, startTime));
+                }
+            }
+            branch(calendar, index + 1, addedTasks);
+        }
+
+        /** Continue the search from a branch in which the task at the given index was assigned to the given events **/
+        private void tryBranch(PlannerCalendar child, int index, LinkedList<List<PlannerEvent>> addedTasks,
+                               List<PlannerEvent> events) {
+            if (events.isEmpty() || expired) {
+                return;
+            }
+            addedTasks.addLast(events);
+            branch(child, index + 1, addedTasks);
+            addedTasks.removeLast();
+        }
+
+        /** Get an upper bound on the amount of tasks that can be added from the given index (capacity, deadline and
+         * forbidden time bounds) **/
+        private int upperBound(PlannerCalendar calendar, int index, int added) {
+            long[] durations = new long[tasks.size() - index];
+            int possible = 0;
+            long lastDeadline = Long.MIN_VALUE;
+            for (int i = index; i < tasks.size(); i++) {
+                PlannerTask task = tasks.get(i);
+                boolean hasSlot = task.getMaxDivisionsNumber() > 1 ?
+                        calendar.getFreeTimeBefore(task.getDeadline()) >= task.getDurationInMillis() :
+                        calendar.findTaskStarts(task, 1).length > 0;
+                if (hasSlot) {
+                    durations[possible++] = task.getDurationInMillis();
+                    lastDeadline = Math.max(lastDeadline, task.getDeadline());
+                }
+            }
+
+            // At most the shortest of them fit in the free time before the last deadline.
+            Arrays.sort(durations, 0, possible);
+            long freeTime = calendar.getFreeTimeBefore(lastDeadline);
+            int fitting = 0;
+            while (fitting < possible && durations[fitting] <= freeTime) {
+                freeTime -= durations[fitting++];
+            }
+            return added + fitting;
+        }
+    }
+}
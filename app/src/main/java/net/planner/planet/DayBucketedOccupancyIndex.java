@@ -0,0 +1,408 @@
+package net.planner.planet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Occupancy index partitioned into one bucket per day of a rolling window [origin, origin + days).
+ * Every entry is kept in the bucket of each day it touches, so queries only look at the buckets of the days they
+ * overlap, and only see the parts of the entries within the window. The buckets are kept in a ring, so moving the window
+ * forward drops the expired days in O(days dropped).
+ */
+class DayBucketedOccupancyIndex implements OccupancyIndex {
+
+    // Constants
+    public static final long DAY_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    // Fields
+    private long origin;
+    private SortedArrayOccupancyIndex[] buckets; // Ring of buckets, null for days without entries.
+    private int head; // Position in the ring of the bucket of the first day.
+    private final AtomicInteger size; // Atomic since entries of different days may be changed concurrently.
+    private volatile boolean ringShared; // The ring may be shared with a snapshot, so it is copied before the next change.
+
+    // Constructors
+
+    /**
+     * Construct an empty index for the given amount of days from the given origin (ms).
+     */
+    public DayBucketedOccupancyIndex(long origin, int days) {
+        this.origin = origin;
+        this.buckets = new SortedArrayOccupancyIndex[Math.max(days, 1)];
+        this.head = 0;
+        this.size = new AtomicInteger();
+    }
+
+    /**
+     * Construct an index that shares the ring of another one.
+     */
+    private DayBucketedOccupancyIndex(DayBucketedOccupancyIndex other) {
+        origin = other.origin;
+        buckets = other.buckets;
+        head = other.head;
+        size = new AtomicInteger(other.size.get());
+        ringShared = true;
+    }
+
+    // Methods
+
+    /**
+     * Returns the start (ms) of the first day in this index.
+     */
+    public long getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Returns the amount of days in this index.
+     */
+    public int getDays() {
+        return buckets.length;
+    }
+
+    /**
+     * Changes the amount of days in this index. Entries that are only in dropped days are removed, and passed to the
+     * given visitor (may be null).
+     */
+    public void setDays(int days, Visitor dropped) {
+        days = Math.max(days, 1);
+        unshareRing();
+        int oldDays = buckets.length;
+        SortedArrayOccupancyIndex[] resized = new SortedArrayOccupancyIndex[days];
+        for (int day = 0; day < oldDays; day++) {
+            if (day < days) {
+                resized[day] = bucket(day);
+            } else {
+                dropBucket(day, origin + days * DAY_IN_MILLIS, false, dropped);
+            }
+        }
+        buckets = resized;
+        head = 0;
+
+        spill(oldDays);
+    }
+
+    @Override
+    public boolean add(long start, long end, PlannerEvent event) {
+        if (end < start) {
+            return false;
+        }
+
+        int first = firstDay(start), last = lastDay(end);
+        if (first > last) {
+            return false;
+        }
+
+        unshareRing();
+        for (int day = first; day <= last; day++) {
+            SortedArrayOccupancyIndex bucket = bucket(day);
+            if (bucket == null) {
+                bucket = new SortedArrayOccupancyIndex();
+                buckets[position(day)] = bucket;
+            }
+            bucket.add(start, end, event);
+        }
+        size.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void addAllSorted(long[] starts, long[] ends, PlannerEvent[] events, int count) {
+        unshareRing();
+        // Count the entries of every day, then hand every bucket its (still sorted) entries at once.
+        int[] counts = new int[buckets.length];
+        for (int i = 0; i < count; i++) {
+            if (ends[i] >= starts[i]) {
+                for (int day = firstDay(starts[i]); day <= lastDay(ends[i]); day++) {
+                    counts[day]++;
+                }
+            }
+        }
+
+        long[][] dayStarts = new long[buckets.length][], dayEnds = new long[buckets.length][];
+        PlannerEvent[][] dayEvents = new PlannerEvent[buckets.length][];
+        for (int day = 0; day < buckets.length; day++) {
+            if (counts[day] > 0) {
+                dayStarts[day] = new long[counts[day]];
+                dayEnds[day] = new long[counts[day]];
+                dayEvents[day] = new PlannerEvent[counts[day]];
+                counts[day] = 0;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (ends[i] < starts[i] || firstDay(starts[i]) > lastDay(ends[i])) {
+                continue;
+            }
+            for (int day = firstDay(starts[i]); day <= lastDay(ends[i]); day++) {
+                dayStarts[day][counts[day]] = starts[i];
+                dayEnds[day][counts[day]] = ends[i];
+                dayEvents[day][counts[day]++] = events[i];
+            }
+            size.incrementAndGet();
+        }
+
+        for (int day = 0; day < buckets.length; day++) {
+            if (dayStarts[day] == null) {
+                continue;
+            }
+            if (bucket(day) == null) {
+                buckets[position(day)] = new SortedArrayOccupancyIndex(counts[day]);
+            }
+            bucket(day).addAllSorted(dayStarts[day], dayEnds[day], dayEvents[day], counts[day]);
+        }
+    }
+
+    @Override
+    public boolean remove(long start, long end, PlannerEvent event) {
+        unshareRing();
+        int first = firstDay(start), last = lastDay(end);
+        boolean found = false;
+        for (int day = first; day <= last; day++) {
+            SortedArrayOccupancyIndex bucket = bucket(day);
+            found |= bucket != null && bucket.remove(start, end, event);
+        }
+
+        if (found) {
+            size.decrementAndGet();
+        }
+        return found;
+    }
+
+    @Override
+    public boolean contains(long start, long end, PlannerEvent event) {
+        int first = firstDay(start);
+        if (first > lastDay(end)) {
+            return false;
+        }
+
+        SortedArrayOccupancyIndex bucket = bucket(first);
+        return bucket != null && bucket.contains(start, end, event);
+    }
+
+    @Override
+    public boolean forEachOverlap(long start, long end, Visitor visitor) {
+        int first = firstDay(start), last = lastDay(end);
+        for (int day = first; day <= last; day++) {
+            SortedArrayOccupancyIndex bucket = bucket(day);
+            if (bucket == null) {
+                continue;
+            }
+
+            // An entry is in the buckets of all its days, so after the first day only visit the entries that start on it.
+            long minStart = day == first ? Long.MIN_VALUE : origin + day * DAY_IN_MILLIS;
+            if (!bucket.forEachOverlap(start, end, minStart, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean anyOverlap(long start, long end) {
+        int first = firstDay(start), last = lastDay(end);
+        for (int day = first; day <= last; day++) {
+            SortedArrayOccupancyIndex bucket = bucket(day);
+            if (bucket != null && bucket.anyOverlap(start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long maxEndOverlapping(long start, long end) {
+        long maxEnd = Long.MIN_VALUE;
+        int first = firstDay(start), last = lastDay(end);
+        for (int day = first; day <= last; day++) {
+            SortedArrayOccupancyIndex bucket = bucket(day);
+            if (bucket != null) {
+                maxEnd = Math.max(maxEnd, bucket.maxEndOverlapping(start, end));
+            }
+        }
+        return maxEnd;
+    }
+
+    @Override
+    public long firstStartAtOrAfter(long time) {
+        for (int day = firstDay(time); day < buckets.length; day++) {
+            SortedArrayOccupancyIndex bucket = bucket(day);
+            if (bucket != null) {
+                long start = bucket.firstStartAtOrAfter(time);
+                if (start != Long.MAX_VALUE) {
+                    return start;
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Moves the window forward by whole days until it starts at the day of the given time, dropping the expired days.
+     * Entries that end before the new origin are removed, the rest stay in the days they still touch.
+     */
+    @Override
+    public void dropBefore(long time, Visitor dropped) {
+        long days = Math.floorDiv(time - origin, DAY_IN_MILLIS);
+        if (days <= 0) {
+            return;
+        }
+
+        unshareRing();
+        int droppedDays = (int) Math.min(days, buckets.length);
+        long newOrigin = origin + days * DAY_IN_MILLIS;
+        // When every day is dropped, the entries that go on into the new window are only in the dropped days.
+        SortedArrayOccupancyIndex survivors = droppedDays == buckets.length ? new SortedArrayOccupancyIndex() : null;
+        for (int day = 0; day < droppedDays; day++) {
+            dropBucket(day, newOrigin, true, dropped);
+            if (survivors != null) {
+                keepSurvivors(day, newOrigin, survivors);
+            }
+            buckets[position(day)] = null;
+        }
+        head = position(droppedDays);
+        origin = newOrigin;
+        if (survivors != null) {
+            addToDays(survivors, 0);
+        } else {
+            spill(buckets.length - droppedDays);
+        }
+    }
+
+    /**
+     * Returns a snapshot of this index in O(1). Both share the ring until either of them changes, and after that they
+     * still share the buckets of the days that neither of them changed.
+     */
+    @Override
+    public OccupancyIndex snapshot() {
+        ringShared = true;
+        return new DayBucketedOccupancyIndex(this);
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Copies the ring if it may be shared with a snapshot. The buckets in the copy are snapshots, so
+     * a bucket is only copied when it changes. Synchronized, since changes to different days may race to copy it.
+     */
+    private void unshareRing() {
+        if (!ringShared) {
+            return;
+        }
+
+        synchronized (this) {
+            if (ringShared) {
+                SortedArrayOccupancyIndex[] copy = buckets.clone();
+                for (int i = 0; i < copy.length; i++) {
+                    if (copy[i] != null) {
+                        copy[i] = copy[i].snapshot();
+                    }
+                }
+                buckets = copy;
+                ringShared = false;
+            }
+        }
+    }
+
+    /**
+     * Helper function: Updates the size for a bucket that is being dropped. Removes the entries that end before the
+     * given time if expired is true, or the entries that start at or after it otherwise, and passes them to the given
+     * visitor (may be null).
+     */
+    private void dropBucket(int day, long time, boolean expired, Visitor dropped) {
+        SortedArrayOccupancyIndex bucket = bucket(day);
+        if (bucket == null) {
+            return;
+        }
+
+        // Count every entry once, in the bucket of its first day.
+        bucket.forEachOverlap(Long.MIN_VALUE, Long.MAX_VALUE, (start, end, event) -> {
+            if (firstDay(start) == day && (expired ? end < time : start >= time)) {
+                size.decrementAndGet();
+                if (dropped != null) {
+                    dropped.visit(start, end, event);
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Helper function: Adds the entries of a bucket that is being dropped that end at or after the given time to the
+     * given index, each once (from the bucket of its first day).
+     */
+    private void keepSurvivors(int day, long time, SortedArrayOccupancyIndex survivors) {
+        SortedArrayOccupancyIndex bucket = bucket(day);
+        if (bucket == null) {
+            return;
+        }
+
+        bucket.forEachOverlap(time, Long.MAX_VALUE, (start, end, event) -> {
+            if (firstDay(start) == day) {
+                survivors.add(start, end, event);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Helper function: Adds the entries of the bucket before the given day that go past it to the days from the given
+     * day that they touch. Used when days are appended to the window, since entries are only kept in its days.
+     */
+    private void spill(int fromDay) {
+        SortedArrayOccupancyIndex previous = fromDay > 0 && fromDay < buckets.length ? bucket(fromDay - 1) : null;
+        if (previous != null) {
+            addToDays(previous, fromDay);
+        }
+    }
+
+    /**
+     * Helper function: Adds the entries of the given index that reach the given day to the days from the given day that
+     * they touch. Doesn't change the size, since the entries are already counted.
+     */
+    private void addToDays(SortedArrayOccupancyIndex source, int fromDay) {
+        source.forEachOverlap(origin + fromDay * DAY_IN_MILLIS, Long.MAX_VALUE, (start, end, event) -> {
+            for (int day = fromDay; day <= lastDay(end); day++) {
+                if (bucket(day) == null) {
+                    buckets[position(day)] = new SortedArrayOccupancyIndex();
+                }
+                bucket(day).add(start, end, event);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Helper function: Returns the bucket of the given day (relative to the origin), or null.
+     */
+    private SortedArrayOccupancyIndex bucket(int day) {
+        return buckets[position(day)];
+    }
+
+    /**
+     * Helper function: Returns the position in the ring of the given day.
+     */
+    private int position(int day) {
+        return (head + day) % buckets.length;
+    }
+
+    /**
+     * Helper function: Returns the day of the given time clipped to the first day (may be past the last day).
+     */
+    private int firstDay(long time) {
+        long day = Math.floorDiv(time - origin, DAY_IN_MILLIS);
+        return (int) Math.max(0, Math.min(day, buckets.length));
+    }
+
+    /**
+     * Helper function: Returns the day of the given time clipped to the last day (may be before the first day).
+     */
+    private int lastDay(long time) {
+        long day = Math.floorDiv(time - origin, DAY_IN_MILLIS);
+        return (int) Math.min(buckets.length - 1, Math.max(day, -1));
+    }
+}
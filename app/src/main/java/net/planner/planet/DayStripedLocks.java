@@ -0,0 +1,124 @@
+package net.planner.planet;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks of a calendar in concurrent mode. Every day of the calendar maps to one of a fixed amount of read/write lock
+ * stripes, so operations on different days don't block each other. Operations that change the whole calendar (its
+ * bounds, its index or its settings) hold the structure lock exclusively, and all other operations share it. The free
+ * gaps and the bitmap of the calendar are sharded by day, so the lock of a day also guards its shards of them.
+ * Locks are always taken in the order: structure, days (by stripe).
+ */
+class DayStripedLocks {
+
+    // Constants
+    public static final int DEFAULT_STRIPES = 64;
+
+    // Fields
+    private final ReentrantReadWriteLock structure;
+    private final ReentrantReadWriteLock[] stripes;
+
+    // Constructors
+
+    /**
+     * Construct locks with the given amount of day stripes.
+     */
+    public DayStripedLocks(int stripeCount) {
+        structure = new ReentrantReadWriteLock();
+        stripes = new ReentrantReadWriteLock[Math.max(stripeCount, 1)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    // Methods
+
+    /**
+     * Locks the structure, shared or exclusively.
+     */
+    public void lockStructure(boolean exclusive) {
+        if (exclusive) {
+            structure.writeLock().lock();
+        } else {
+            structure.readLock().lock();
+        }
+    }
+
+    /**
+     * Unlocks the structure, shared or exclusively.
+     */
+    public void unlockStructure(boolean exclusive) {
+        if (exclusive) {
+            structure.writeLock().unlock();
+        } else {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Locks the stripes of the days firstDay to lastDay (none if lastDay < firstDay) for reading or writing.
+     */
+    public void lockDays(int firstDay, int lastDay, boolean write) {
+        int count = countStripes(firstDay, lastDay);
+        int first = Math.floorMod(firstDay, stripes.length);
+        for (int i = 0; i < count; i++) {
+            // Take the stripes by ascending index, so two threads never wait for each other's stripes.
+            ReentrantReadWriteLock stripe = stripes[stripeAt(first, count, i)];
+            if (write) {
+                stripe.writeLock().lock();
+            } else {
+                stripe.readLock().lock();
+            }
+        }
+    }
+
+    /**
+     * Unlocks the stripes of the days firstDay to lastDay (none if lastDay < firstDay) for reading or writing.
+     */
+    public void unlockDays(int firstDay, int lastDay, boolean write) {
+        int count = countStripes(firstDay, lastDay);
+        int first = Math.floorMod(firstDay, stripes.length);
+        for (int i = 0; i < count; i++) {
+            ReentrantReadWriteLock stripe = stripes[stripeAt(first, count, i)];
+            if (write) {
+                stripe.writeLock().unlock();
+            } else {
+                stripe.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Locks the stripes of all the days for reading or writing.
+     */
+    public void lockAllDays(boolean write) {
+        lockDays(0, stripes.length - 1, write);
+    }
+
+    /**
+     * Unlocks the stripes of all the days for reading or writing.
+     */
+    public void unlockAllDays(boolean write) {
+        unlockDays(0, stripes.length - 1, write);
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Returns the amount of stripes that the days firstDay to lastDay map to.
+     */
+    private int countStripes(int firstDay, int lastDay) {
+        if (lastDay < firstDay) {
+            return 0;
+        }
+        return (int) Math.min((long) lastDay - firstDay + 1, stripes.length);
+    }
+
+    /**
+     * Helper function: Returns the i-th smallest stripe index of the count stripes that start at the given one (cyclically).
+     */
+    private int stripeAt(int first, int count, int i) {
+        int wrapped = first + count - stripes.length; // Amount of stripes that wrap around to the start.
+        return wrapped > 0 ? (i < wrapped ? i : first + i - wrapped) : first + i;
+    }
+}
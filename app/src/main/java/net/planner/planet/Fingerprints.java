@@ -0,0 +1,137 @@
+package net.planner.planet;
+
+import com.brein.time.timeintervals.intervals.IInterval;
+import com.brein.time.timeintervals.intervals.LongInterval;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Stable 64-bit fingerprints of the inputs of the solver: only built from their contents (never from identity hash
+ * codes), so equal inputs get the same fingerprint in every run. Sets (the events of a calendar, its tags) are
+ * fingerprinted by summing the fingerprints of their members, so they can be kept up to date on every change.
+ */
+final class Fingerprints {
+
+    // Constants
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    // Constructors
+
+    private Fingerprints() {
+    }
+
+    // Methods
+
+    /**
+     * Returns a well mixed 64-bit value of the given one (the finalizer of SplitMix64).
+     */
+    public static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Returns the fingerprint of the given fingerprint followed by the given value (order matters).
+     */
+    public static long combine(long fingerprint, long value) {
+        return mix(fingerprint * 31 + mix(value + SEED));
+    }
+
+    /**
+     * Returns the fingerprint of the given string (null is allowed), built from all of its characters. Not from
+     * String.hashCode, which has only 32 bits and is the same for short names like "Aa" and "BB".
+     */
+    public static long ofString(String value) {
+        if (value == null) {
+            return 0;
+        }
+        long fingerprint = mix(value.length() + 1L); // Not 0, which is the fingerprint of null.
+        for (int i = 0; i < value.length(); i++) {
+            fingerprint = combine(fingerprint, value.charAt(i));
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Returns the fingerprint of an interval [start, end] of the calendar, which is summed into its occupancy fingerprint.
+     */
+    public static long ofInterval(long start, long end) {
+        return combine(mix(start), end);
+    }
+
+    /**
+     * Returns the fingerprint of the given task (everything the solver looks at).
+     */
+    public static long ofTask(PlannerTask task) {
+        long fingerprint = ofString(task.getTitle());
+        fingerprint = combine(fingerprint, task.getDeadline());
+        fingerprint = combine(fingerprint, task.getDurationInMinutes());
+        fingerprint = combine(fingerprint, task.getPriority());
+        fingerprint = combine(fingerprint, ofString(task.getTagName()));
+        fingerprint = combine(fingerprint, task.getMaxSessionTimeInMinutes());
+        return combine(fingerprint, task.getMaxDivisionsNumber());
+    }
+
+    /**
+     * Returns the fingerprint of the given list of tasks (order matters).
+     */
+    public static long ofTasks(List<PlannerTask> tasks) {
+        long fingerprint = tasks.size();
+        for (PlannerTask task : tasks) {
+            fingerprint = combine(fingerprint, ofTask(task));
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Returns the fingerprint of the given recurrence rule.
+     */
+    public static long ofRule(RecurrenceRule rule) {
+        long fingerprint = combine(rule.getFrequency().ordinal(), rule.getDayOfWeek());
+        fingerprint = combine(fingerprint, rule.getStartMinute());
+        fingerprint = combine(fingerprint, rule.getEndMinute());
+        fingerprint = combine(fingerprint, rule.getFrom());
+        return combine(fingerprint, rule.getUntil());
+    }
+
+    /**
+     * Returns the fingerprint of the given tag: its name, priority, time intervals and recurrence rules (never their
+     * occurrences, so it takes the same time whatever the amount of days they cover).
+     */
+    public static long ofTag(PlannerTag tag) {
+        long fingerprint = combine(ofString(tag.getTagName()), tag.getPriority());
+        fingerprint = combine(fingerprint, ofWindows(tag.getForbiddenWindows()));
+        return combine(fingerprint, ofWindows(tag.getPreferredWindows()));
+    }
+
+    /**
+     * Returns the fingerprint of the given set of tags (order doesn't matter).
+     */
+    public static long ofTags(Collection<PlannerTag> tags) {
+        long fingerprint = tags.size();
+        for (PlannerTag tag : tags) {
+            fingerprint += mix(ofTag(tag));
+        }
+        return fingerprint;
+    }
+
+    // Helper functions
+
+    /**
+     * Returns the fingerprint of the given windows of a tag (order doesn't matter).
+     */
+    public static long ofWindows(TagWindows windows) {
+        long fingerprint = windows.getIntervals().size();
+        for (IInterval interval : windows.getIntervals()) {
+            LongInterval bounds = (LongInterval) interval;
+            fingerprint += ofInterval(bounds.getStart(), bounds.getEnd());
+        }
+        fingerprint = combine(fingerprint, windows.getRules().size());
+        for (RecurrenceRule rule : windows.getRules()) {
+            fingerprint += mix(ofRule(rule));
+        }
+        return fingerprint;
+    }
+}
@@ -0,0 +1,527 @@
+package net.planner.planet;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Index over the free gaps of a calendar. A gap (start, end) is the time between the end of an occupied block (or the
+ * start of the calendar) and the start of the next occupied block (or the end of the calendar).
+ * Gaps are kept in a treap by start, where every node knows the maximal and the total gap length in its subtree, and in
+ * a map by length. This makes first-fit (earliest gap of at least some length), best-fit (shortest gap of at least some
+ * length) and the amount of free time before some time logarithmic lookups.
+ */
+class FreeGapIndex {
+
+    // Fields
+    private long start, end; // Bounds of the calendar.
+    private Node root;
+    private final TreeMap<Long, TreeSet<Long>> startsByLength;
+    private int size;
+    private long totalSeconds; // Sums of the gap lengths in whole seconds and of their squares, for the fragmentation.
+    private long squaredSeconds;
+    private int seed;
+
+    // Constructors
+
+    /**
+     * Construct an index with the single gap (start, end).
+     */
+    public FreeGapIndex(long start, long end) {
+        startsByLength = new TreeMap<>();
+        seed = 0x2545F491;
+        this.start = start;
+        this.end = end;
+        add(start, end);
+    }
+
+    // Methods
+
+    /**
+     * Returns the amount of gaps.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Marks [start, end] as occupied, shrinking or splitting the gaps it overlaps.
+     */
+    public void occupy(long start, long end) {
+        Node gap = floor(start);
+        if (gap == null || gap.end <= start) {
+            gap = higher(start);
+        }
+
+        while (gap != null && gap.start < end) {
+            long gapStart = gap.start, gapEnd = gap.end;
+            remove(gapStart);
+            add(gapStart, Math.min(start, gapEnd));
+            add(Math.max(end, gapStart), gapEnd);
+            gap = higher(gapStart);
+        }
+    }
+
+    /**
+     * Marks the parts of [start, end] that the given index doesn't cover as free, merging them with neighbouring gaps.
+     * The given bounds should be within the calendar.
+     */
+    public void release(long start, long end, OccupancyQuery remaining) {
+        if (end < start) {
+            return;
+        }
+
+        // Walk the blocks that still cover parts of [start, end] and free the time between them.
+        long[] freeFrom = {start};
+        boolean[] startCovered = {false};
+        remaining.forEachOverlap(start, end, (blockStart, blockEnd, event) -> {
+            if (blockStart > freeFrom[0]) {
+                addFreed(freeFrom[0], blockStart, freeFrom[0] == start && !startCovered[0], false);
+            } else if (blockStart <= start) {
+                startCovered[0] = true;
+            }
+            freeFrom[0] = Math.max(freeFrom[0], blockEnd);
+            return true;
+        });
+        if (freeFrom[0] < end || (freeFrom[0] == start && !startCovered[0])) {
+            addFreed(freeFrom[0], end, freeFrom[0] == start && !startCovered[0], true);
+        }
+    }
+
+    /**
+     * Moves the calendar bounds to (newStart, newEnd), where newStart is not before the current start. Gaps before the
+     * new start or after the new end are dropped or cut, and the time after the current end is added as a free gap.
+     */
+    public void setBounds(long newStart, long newEnd) {
+        for (Node gap = higher(Long.MIN_VALUE); gap != null && gap.start < newStart; gap = higher(Long.MIN_VALUE)) {
+            long gapEnd = gap.end;
+            remove(gap.start);
+            add(newStart, gapEnd);
+        }
+        for (Node gap = floor(Long.MAX_VALUE); gap != null && gap.end > newEnd; gap = floor(Long.MAX_VALUE)) {
+            long gapStart = gap.start;
+            remove(gapStart);
+            add(gapStart, newEnd);
+        }
+        if (newEnd > end) {
+            addFreed(Math.max(end, newStart), newEnd, true, false);
+        }
+        start = newStart;
+        end = newEnd;
+    }
+
+    /**
+     * Returns the earliest gap that starts at or after from and is at least length long, or null if there is none.
+     * The gap is returned as {start, end}.
+     */
+    public long[] firstFit(long from, long length) {
+        long[] gap = new long[2];
+        return firstFit(from, length, gap) ? gap : null;
+    }
+
+    /**
+     * Finds the earliest gap that starts at or after from and is at least length long, and writes it into the given
+     * array as {start, end}. Returns false if there is none. Lets a search for a gap reuse one array.
+     */
+    public boolean firstFit(long from, long length, long[] gap) {
+        Node node = firstFit(root, from, length);
+        if (node == null) {
+            return false;
+        }
+
+        gap[0] = node.start;
+        gap[1] = node.end;
+        return true;
+    }
+
+    /**
+     * Returns the shortest gap that is at least length long (the earliest among equals), or null if there is none.
+     * The gap is returned as {start, end}.
+     */
+    public long[] bestFit(long length) {
+        Map.Entry<Long, TreeSet<Long>> entry = startsByLength.ceilingEntry(length);
+        if (entry == null) {
+            return null;
+        }
+
+        long start = entry.getValue().first();
+        return new long[]{start, start + entry.getKey()};
+    }
+
+    /**
+     * Returns the longest gap (the earliest among equals), or null if there are none. The gap is returned as {start, end}.
+     */
+    public long[] longest() {
+        Map.Entry<Long, TreeSet<Long>> entry = startsByLength.lastEntry();
+        if (entry == null) {
+            return null;
+        }
+
+        long start = entry.getValue().first();
+        return new long[]{start, start + entry.getKey()};
+    }
+
+    /**
+     * Visits the gaps that are at least length long by order of their length, shortest first or longest first (the
+     * earliest first among equals), until the visitor returns false. Finding the first one is a logarithmic lookup.
+     */
+    public void forEachByLength(long length, boolean shortestFirst, GapVisitor visitor) {
+        Map<Long, TreeSet<Long>> byLength = shortestFirst ? startsByLength.tailMap(length, true) :
+                startsByLength.tailMap(length, true).descendingMap();
+        for (Map.Entry<Long, TreeSet<Long>> entry : byLength.entrySet()) {
+            for (long start : entry.getValue()) {
+                if (!visitor.visit(start, start + entry.getKey())) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the fragmentation of the free time: one minus the sum of the squared gap lengths over the squared total
+     * length (by whole seconds). It's 0 when all the free time is in one gap, and tends to 1 - 1/n for n gaps of equal
+     * length, so splitting a gap raises it, and filling a short gap lowers it.
+     */
+    public double fragmentation() {
+        return totalSeconds == 0 ? 0 : 1 - (double) squaredSeconds / ((double) totalSeconds * totalSeconds);
+    }
+
+    /**
+     * Returns the total length of the gaps.
+     */
+    public long totalLength() {
+        return root == null ? 0 : root.totalLength;
+    }
+
+    /**
+     * Returns the gap that contains the given time (start < time < end), or null if there is none. The gap is returned as {start, end}.
+     */
+    public long[] containing(long time) {
+        Node gap = floor(time);
+        return gap == null || gap.end <= time ? null : new long[]{gap.start, gap.end};
+    }
+
+    /**
+     * Returns the end of the gap that starts at the given time, or Long.MIN_VALUE if there is none.
+     */
+    public long endOfGapStartingAt(long time) {
+        Node gap = find(time);
+        return gap == null ? Long.MIN_VALUE : gap.end;
+    }
+
+    /**
+     * Returns the start of the gap that ends at the given time, or Long.MIN_VALUE if there is none.
+     */
+    public long startOfGapEndingAt(long time) {
+        Node gap = floor(time - 1);
+        return gap == null || gap.end != time ? Long.MIN_VALUE : gap.start;
+    }
+
+    /**
+     * Returns the total length of the gaps (or their parts) before the given time.
+     */
+    public long freeTimeBefore(long time) {
+        long total = 0;
+        Node node = root;
+        while (node != null) {
+            if (node.start < time) {
+                // The gaps on the left all end before this one starts.
+                total += (node.left == null ? 0 : node.left.totalLength) + Math.min(node.end, time) - node.start;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns all the gaps by order as {start0, end0, start1, end1, ...}.
+     */
+    public long[] toArray() {
+        long[] gaps = new long[2 * size];
+        fill(root, gaps, 0);
+        return gaps;
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Adds a freed part (start, end), merging it with the gap that ends at its start and/or the gap
+     * that starts at its end when asked to.
+     */
+    private void addFreed(long start, long end, boolean mergeLeft, boolean mergeRight) {
+        if (mergeLeft) {
+            Node left = floor(start - 1);
+            if (left != null && left.end == start) {
+                start = left.start;
+                remove(left.start);
+            }
+        }
+        if (mergeRight) {
+            Node right = find(end);
+            if (right != null) {
+                end = right.end;
+                remove(right.start);
+            }
+        }
+        add(start, end);
+    }
+
+    /**
+     * Helper function: Adds the gap (start, end) if it isn't empty.
+     */
+    private void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+
+        root = insert(root, new Node(start, end, nextPriority()));
+        TreeSet<Long> starts = startsByLength.get(end - start);
+        if (starts == null) {
+            starts = new TreeSet<>();
+            startsByLength.put(end - start, starts);
+        }
+        starts.add(start);
+        size++;
+        long seconds = (end - start) / 1000;
+        totalSeconds += seconds;
+        squaredSeconds += seconds * seconds;
+    }
+
+    /**
+     * Helper function: Removes the gap that starts at the given time.
+     */
+    private void remove(long start) {
+        Node gap = find(start);
+        if (gap == null) {
+            return;
+        }
+
+        root = delete(root, start);
+        TreeSet<Long> starts = startsByLength.get(gap.end - gap.start);
+        starts.remove(start);
+        if (starts.isEmpty()) {
+            startsByLength.remove(gap.end - gap.start);
+        }
+        size--;
+        long seconds = (gap.end - gap.start) / 1000;
+        totalSeconds -= seconds;
+        squaredSeconds -= seconds * seconds;
+    }
+
+    /**
+     * Helper function: Returns the next treap priority (xorshift).
+     */
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+
+    /**
+     * Helper function: Returns the gap that starts at the given time, or null.
+     */
+    private Node find(long start) {
+        Node node = root;
+        while (node != null && node.start != start) {
+            node = start < node.start ? node.left : node.right;
+        }
+        return node;
+    }
+
+    /**
+     * Helper function: Returns the last gap that starts at or before the given time, or null.
+     */
+    private Node floor(long time) {
+        Node node = root, floor = null;
+        while (node != null) {
+            if (node.start <= time) {
+                floor = node;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return floor;
+    }
+
+    /**
+     * Helper function: Returns the first gap that starts after the given time, or null.
+     */
+    private Node higher(long time) {
+        Node node = root, higher = null;
+        while (node != null) {
+            if (node.start > time) {
+                higher = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return higher;
+    }
+
+    /**
+     * Helper function: Returns the earliest gap in the subtree that starts at or after from and is at least length long.
+     */
+    private static Node firstFit(Node node, long from, long length) {
+        while (node != null && node.maxLength >= length) {
+            if (node.start < from) {
+                node = node.right;
+                continue;
+            }
+
+            Node left = firstFit(node.left, from, length);
+            if (left != null) {
+                return left;
+            }
+            if (node.end - node.start >= length) {
+                return node;
+            }
+            node = node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Helper function: Inserts the given node into the subtree and returns its new root.
+     */
+    private static Node insert(Node node, Node toInsert) {
+        if (node == null) {
+            return toInsert;
+        }
+
+        if (toInsert.start < node.start) {
+            node.left = insert(node.left, toInsert);
+            if (node.left.priority > node.priority) {
+                node = rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, toInsert);
+            if (node.right.priority > node.priority) {
+                node = rotateLeft(node);
+            }
+        }
+        node.update();
+        return node;
+    }
+
+    /**
+     * Helper function: Deletes the node that starts at the given time from the subtree and returns its new root.
+     */
+    private static Node delete(Node node, long start) {
+        if (node == null) {
+            return null;
+        }
+
+        if (start < node.start) {
+            node.left = delete(node.left, start);
+        } else if (start > node.start) {
+            node.right = delete(node.right, start);
+        } else {
+            if (node.left == null) {
+                return node.right;
+            }
+            if (node.right == null) {
+                return node.left;
+            }
+            if (node.left.priority > node.right.priority) {
+                node = rotateRight(node);
+                node.right = delete(node.right, start);
+            } else {
+                node = rotateLeft(node);
+                node.left = delete(node.left, start);
+            }
+        }
+        node.update();
+        return node;
+    }
+
+    /**
+     * Helper function: Rotates the subtree to the right and returns its new root.
+     */
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = node;
+        node.update();
+        left.update();
+        return left;
+    }
+
+    /**
+     * Helper function: Rotates the subtree to the left and returns its new root.
+     */
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = node;
+        node.update();
+        right.update();
+        return right;
+    }
+
+    /**
+     * Helper function: Writes the gaps of the subtree by order into the array from the given position. Returns the next position.
+     */
+    private static int fill(Node node, long[] gaps, int position) {
+        if (node == null) {
+            return position;
+        }
+
+        position = fill(node.left, gaps, position);
+        gaps[position++] = node.start;
+        gaps[position++] = node.end;
+        return fill(node.right, gaps, position);
+    }
+
+    // Inner classes
+
+    /**
+     * Visits one gap. Returns false to stop.
+     */
+    interface GapVisitor {
+        boolean visit(long start, long end);
+    }
+
+    /**
+     * Treap node of a single gap.
+     */
+    private static class Node {
+
+        final long start, end;
+        final int priority;
+        Node left, right;
+        long maxLength; // Maximal gap length in this subtree.
+        long totalLength; // Total gap length in this subtree.
+
+        /**
+         * Create a node for the gap (start, end).
+         */
+        Node(long start, long end, int priority) {
+            this.start = start;
+            this.end = end;
+            this.priority = priority;
+            this.maxLength = end - start;
+            this.totalLength = end - start;
+        }
+
+        /**
+         * Recomputes the subtree fields from the children.
+         */
+        void update() {
+            maxLength = end - start;
+            totalLength = end - start;
+            if (left != null) {
+                maxLength = Math.max(maxLength, left.maxLength);
+                totalLength += left.totalLength;
+            }
+            if (right != null) {
+                maxLength = Math.max(maxLength, right.maxLength);
+                totalLength += right.totalLength;
+            }
+        }
+    }
+}
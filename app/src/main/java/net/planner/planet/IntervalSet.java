@@ -0,0 +1,314 @@
+package net.planner.planet;
+
+import com.brein.time.timeintervals.intervals.IInterval;
+import com.brein.time.timeintervals.intervals.LongInterval;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Immutable set of times (ms) kept as closed intervals [start, end] in one primitive array. The intervals are in
+ * canonical form: sorted, disjoint and not adjacent (an interval starts at least two ms after the previous one ends),
+ * so two sets are equal exactly when their arrays are.
+ */
+public final class IntervalSet {
+
+    // Constants
+    public static final IntervalSet EMPTY = new IntervalSet(new long[0], 0);
+
+    // Fields
+    private final long[] bounds; // {start0, end0, start1, end1, ...}
+    private final int count;
+
+    // Constructors
+
+    /**
+     * Helper constructor: Construct a set of the first count intervals in the given canonical bounds.
+     */
+    private IntervalSet(long[] bounds, int count) {
+        this.bounds = bounds;
+        this.count = count;
+    }
+
+    // Methods
+
+    /**
+     * Returns the set of the intervals of the given iterator, which are LongIntervals sorted by start time. Overlapping
+     * and adjacent intervals are merged.
+     */
+    public static IntervalSet fromSorted(Iterator<IInterval> intervals) {
+        Builder builder = new Builder(16);
+        while (intervals.hasNext()) {
+            LongInterval interval = (LongInterval) intervals.next();
+            if (interval.getStart() <= interval.getEnd()) {
+                builder.append(interval.getStart(), interval.getEnd());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the set of the single interval [start, end], or the empty set if it ends before it starts.
+     */
+    public static IntervalSet of(long start, long end) {
+        return end < start ? EMPTY : new IntervalSet(new long[]{start, end}, 1);
+    }
+
+    /**
+     * Returns the amount of intervals in this set.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns true if this set has no intervals.
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns the start of the interval at the given index.
+     */
+    public long getStart(int index) {
+        return bounds[2 * index];
+    }
+
+    /**
+     * Returns the end of the interval at the given index.
+     */
+    public long getEnd(int index) {
+        return bounds[2 * index + 1];
+    }
+
+    /**
+     * Returns the index of the last interval that starts at or before the given time, or -1 if there is none.
+     */
+    public int lastStartingAtOrBefore(long time) {
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (bounds[2 * middle] <= time) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Returns true if the given time is in this set.
+     */
+    public boolean contains(long time) {
+        int index = lastStartingAtOrBefore(time);
+        return index >= 0 && getEnd(index) >= time;
+    }
+
+    /**
+     * Returns true if all of [start, end] is in this set (then a single interval holds it).
+     */
+    public boolean covers(long start, long end) {
+        int index = lastStartingAtOrBefore(start);
+        return index >= 0 && getEnd(index) >= end;
+    }
+
+    /**
+     * Returns the total length (end - start) of the parts of the intervals within [start, end].
+     */
+    public long overlapLength(long start, long end) {
+        long length = 0;
+        for (int i = Math.max(lastStartingAtOrBefore(start), 0); i < count && getStart(i) < end; i++) {
+            length += Math.max(0, Math.min(end, getEnd(i)) - Math.max(start, getStart(i)));
+        }
+        return length;
+    }
+
+    /**
+     * Writes into the given array the first part {start, end} of an interval that starts at or after from and is at
+     * least the given length long (end - start). Returns false if there is none.
+     */
+    public boolean firstFit(long from, long length, long[] interval) {
+        int index = lastStartingAtOrBefore(from);
+        if (index < 0 || getEnd(index) < from) {
+            index++;
+        }
+        for (int i = index; i < count; i++) {
+            long start = Math.max(getStart(i), from);
+            if (getEnd(i) - start >= length) {
+                interval[0] = start;
+                interval[1] = getEnd(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the times that are in this set or in the given one, in one merge of both.
+     */
+    public IntervalSet union(IntervalSet other) {
+        if (other.count == 0) {
+            return this;
+        }
+        if (count == 0) {
+            return other;
+        }
+
+        Builder builder = new Builder(2 * (count + other.count));
+        int i = 0, j = 0;
+        while (i < count || j < other.count) {
+            if (j == other.count || (i < count && getStart(i) <= other.getStart(j))) {
+                builder.append(getStart(i), getEnd(i));
+                i++;
+            } else {
+                builder.append(other.getStart(j), other.getEnd(j));
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the times that are both in this set and in the given one, in one merge of both.
+     */
+    public IntervalSet intersection(IntervalSet other) {
+        Builder builder = new Builder(2 * (count + other.count));
+        int i = 0, j = 0;
+        while (i < count && j < other.count) {
+            long start = Math.max(getStart(i), other.getStart(j));
+            long end = Math.min(getEnd(i), other.getEnd(j));
+            if (start <= end) {
+                builder.append(start, end);
+            }
+            // The interval that ends first can't meet any later interval of the other set.
+            if (getEnd(i) < other.getEnd(j)) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the times of this set that aren't in the given one, in one merge of both.
+     */
+    public IntervalSet difference(IntervalSet other) {
+        if (count == 0 || other.count == 0) {
+            return this;
+        }
+
+        Builder builder = new Builder(2 * (count + other.count));
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            long start = getStart(i), end = getEnd(i);
+            while (j < other.count && other.getEnd(j) < start) {
+                j++;
+            }
+            // Cut the removed intervals out of [start, end]; the last one may also cut the next interval.
+            boolean covered = false;
+            while (j < other.count && other.getStart(j) <= end) {
+                if (other.getStart(j) > start) {
+                    builder.append(start, other.getStart(j) - 1);
+                }
+                if (other.getEnd(j) >= end) {
+                    covered = true;
+                    break;
+                }
+                start = other.getEnd(j) + 1;
+                j++;
+            }
+            if (!covered) {
+                builder.append(start, end);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the times of [from, until] that aren't in this set.
+     */
+    public IntervalSet complement(long from, long until) {
+        return of(from, until).difference(this);
+    }
+
+    /**
+     * Returns the intervals as {start0, end0, start1, end1, ...}.
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(bounds, 2 * count);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IntervalSet that = (IntervalSet) o;
+        if (count != that.count) return false;
+        for (int i = 0; i < 2 * count; i++) {
+            if (bounds[i] != that.bounds[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = count;
+        for (int i = 0; i < 2 * count; i++) {
+            hash = 31 * hash + Long.hashCode(bounds[i]);
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < count; i++) {
+            builder.append(i == 0 ? "" : ", ").append('[').append(getStart(i)).append(", ").append(getEnd(i)).append(']');
+        }
+        return builder.append('}').toString();
+    }
+
+    // Inner classes
+
+    /**
+     * Builder of a set from intervals appended by order of start time, which merges overlapping and adjacent ones.
+     */
+    private static class Builder {
+
+        private long[] bounds;
+        private int count;
+
+        /**
+         * Create a builder with room for the given amount of bounds.
+         */
+        public Builder(int capacity) {
+            this.bounds = new long[Math.max(capacity, 2)];
+        }
+
+        /**
+         * Appends [start, end], which starts at or after the previous interval.
+         */
+        public void append(long start, long end) {
+            if (count > 0 && (start <= bounds[2 * count - 1] || start - 1 == bounds[2 * count - 1])) {
+                bounds[2 * count - 1] = Math.max(bounds[2 * count - 1], end);
+                return;
+            }
+            if (2 * count == bounds.length) {
+                bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+            }
+            bounds[2 * count] = start;
+            bounds[2 * count + 1] = end;
+            count++;
+        }
+
+        /**
+         * Returns the set of the appended intervals.
+         */
+        public IntervalSet build() {
+            return count == 0 ? EMPTY : new IntervalSet(bounds, count);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package net.planner.planet;
+
+/**
+ * Read-only occupancy queries over an IntervalSet (such as the compiled forbidden mask of a PlannerTag), in which the
+ * visited events are null. Keeps a cursor at the last interval it found, so queries by increasing time (as placement
+ * makes them) walk the set once instead of searching it every time. A view is cheap, so each search makes its own.
+ */
+class IntervalSetOccupancyQuery implements OccupancyQuery {
+
+    // Constants
+    private static final int MAX_WALK = 8; // Steps the cursor walks forward before falling back to a binary search.
+
+    // Fields
+    private final IntervalSet set;
+    private int cursor;
+
+    // Constructors
+
+    /**
+     * Construct a view over the given set.
+     */
+    public IntervalSetOccupancyQuery(IntervalSet set) {
+        this.set = set;
+        this.cursor = -1;
+    }
+
+    // Methods
+
+    @Override
+    public boolean forEachOverlap(long start, long end, Visitor visitor) {
+        int index = firstEndingAtOrAfter(start);
+        for (int i = index; i < set.size() && set.getStart(i) <= end; i++) {
+            if (!visitor.visit(set.getStart(i), set.getEnd(i), null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean anyOverlap(long start, long end) {
+        return maxEndOverlapping(start, end) != Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the end of the last interval that starts by end, if it overlaps (the intervals are disjoint, so it's the
+     * one that ends last).
+     */
+    @Override
+    public long maxEndOverlapping(long start, long end) {
+        int index = lastStartingAtOrBefore(end);
+        return index < 0 || set.getEnd(index) < start ? Long.MIN_VALUE : set.getEnd(index);
+    }
+
+    @Override
+    public long firstStartAtOrAfter(long time) {
+        int index = time == Long.MIN_VALUE ? 0 : lastStartingAtOrBefore(time - 1) + 1;
+        return index < set.size() ? set.getStart(index) : Long.MAX_VALUE;
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Returns the index of the last interval that starts at or before the given time, or -1 if there is
+     * none. Walks forward from the cursor when the time is a bit after it, and searches the set otherwise.
+     */
+    private int lastStartingAtOrBefore(long time) {
+        int index = cursor;
+        if (index >= 0 && set.getStart(index) <= time) {
+            for (int steps = 0; index + 1 < set.size() && set.getStart(index + 1) <= time; steps++) {
+                if (steps == MAX_WALK) {
+                    index = set.lastStartingAtOrBefore(time);
+                    break;
+                }
+                index++;
+            }
+        } else {
+            index = set.lastStartingAtOrBefore(time);
+        }
+        cursor = index;
+        return index;
+    }
+
+    /**
+     * Helper function: Returns the index of the first interval that ends at or after the given time (the size of the set
+     * if there is none).
+     */
+    private int firstEndingAtOrAfter(long time) {
+        int index = lastStartingAtOrBefore(time);
+        return index >= 0 && set.getEnd(index) >= time ? index : index + 1;
+    }
+}
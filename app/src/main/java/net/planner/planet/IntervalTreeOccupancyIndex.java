@@ -0,0 +1,205 @@
+package net.planner.planet;
+
+import com.brein.time.exceptions.IllegalTimeInterval;
+import com.brein.time.exceptions.IllegalTimePoint;
+import com.brein.time.timeintervals.collections.ListIntervalCollection;
+import com.brein.time.timeintervals.indexes.IntervalTree;
+import com.brein.time.timeintervals.indexes.IntervalTreeBuilder;
+import com.brein.time.timeintervals.intervals.IInterval;
+import com.brein.time.timeintervals.intervals.LongInterval;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Occupancy index backed by a brein IntervalTree. Can also be used as a view over an existing tree of LongIntervals, in
+ * which case the visited events are null.
+ */
+class IntervalTreeOccupancyIndex implements OccupancyIndex {
+
+    // Constants
+    private static final Comparator<IInterval> BY_START_AND_END = (first, second) -> {
+        int byStart = Long.compare(((LongInterval) first).getStart(), ((LongInterval) second).getStart());
+        return byStart != 0 ? byStart : Long.compare(((LongInterval) first).getEnd(), ((LongInterval) second).getEnd());
+    };
+
+    // Fields
+    private final IntervalTree tree;
+
+    // Constructors
+
+    /**
+     * Construct an empty index.
+     */
+    public IntervalTreeOccupancyIndex() {
+        tree = IntervalTreeBuilder.newBuilder()
+                .usePredefinedType(IntervalTreeBuilder.IntervalType.LONG)
+                .collectIntervals(interval -> new ListIntervalCollection()).build();
+    }
+
+    /**
+     * Construct an index over the given tree of LongIntervals.
+     */
+    public IntervalTreeOccupancyIndex(IntervalTree tree) {
+        this.tree = tree;
+    }
+
+    // Methods
+
+    @Override
+    public boolean add(long start, long end, PlannerEvent event) {
+        if (end < start) {
+            return false;
+        }
+        return tree.add(new OccupiedInterval(start, end, event));
+    }
+
+    @Override
+    public void addAllSorted(long[] starts, long[] ends, PlannerEvent[] events, int count) {
+        for (int i = 0; i < count; i++) {
+            add(starts[i], ends[i], events[i]);
+        }
+    }
+
+    @Override
+    public boolean remove(long start, long end, PlannerEvent event) {
+        return tree.remove(new OccupiedInterval(start, end, event));
+    }
+
+    @Override
+    public boolean contains(long start, long end, PlannerEvent event) {
+        return tree.contains(new OccupiedInterval(start, end, event));
+    }
+
+    @Override
+    public boolean forEachOverlap(long start, long end, Visitor visitor) {
+        for (IInterval generic : sortedOverlap(start, end)) {
+            LongInterval interval = (LongInterval) generic;
+            PlannerEvent event = generic instanceof OccupiedInterval ? ((OccupiedInterval) generic).event : null;
+            if (!visitor.visit(interval.getStart(), interval.getEnd(), event)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean anyOverlap(long start, long end) {
+        return !tree.overlap(new LongInterval(start, end)).isEmpty();
+    }
+
+    @Override
+    public long maxEndOverlapping(long start, long end) {
+        long maxEnd = Long.MIN_VALUE;
+        for (IInterval generic : tree.overlap(new LongInterval(start, end))) {
+            maxEnd = Math.max(maxEnd, ((LongInterval) generic).getEnd());
+        }
+        return maxEnd;
+    }
+
+    @Override
+    public long firstStartAtOrAfter(long time) {
+        long first = Long.MAX_VALUE;
+        for (IInterval generic : tree) {
+            long start = ((LongInterval) generic).getStart();
+            if (start >= time && start < first) {
+                first = start;
+            }
+        }
+        return first;
+    }
+
+    @Override
+    public void dropBefore(long time, Visitor dropped) {
+        List<IInterval> expired = new ArrayList<>();
+        for (IInterval generic : tree) {
+            if (((LongInterval) generic).getEnd() < time) {
+                expired.add(generic);
+            }
+        }
+        for (IInterval generic : expired) {
+            tree.remove(generic);
+            if (dropped != null) {
+                LongInterval interval = (LongInterval) generic;
+                PlannerEvent event = generic instanceof OccupiedInterval ? ((OccupiedInterval) generic).event : null;
+                dropped.visit(interval.getStart(), interval.getEnd(), event);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * Returns a full copy of this index (the tree can't be shared).
+     */
+    @Override
+    public OccupancyIndex snapshot() {
+        IntervalTreeOccupancyIndex copy = new IntervalTreeOccupancyIndex();
+        for (IInterval generic : tree) {
+            LongInterval interval = (LongInterval) generic;
+            PlannerEvent event = generic instanceof OccupiedInterval ? ((OccupiedInterval) generic).event : null;
+            copy.add(interval.getStart(), interval.getEnd(), event);
+        }
+        return copy;
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Returns the intervals that overlap with [start, end] sorted by start and end.
+     */
+    private List<IInterval> sortedOverlap(long start, long end) {
+        Collection<IInterval> overlap = tree.overlap(new LongInterval(start, end));
+        if (overlap.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<IInterval> sorted = new ArrayList<>(overlap);
+        Collections.sort(sorted, BY_START_AND_END);
+        return sorted;
+    }
+
+    // Inner classes
+
+    /**
+     * Closed interval that contains an event.
+     */
+    private static class OccupiedInterval extends LongInterval {
+
+        public PlannerEvent event;
+
+        /**
+         * Create an interval with no start or end time and no event.
+         */
+        public OccupiedInterval() {
+            super();
+            event = null;
+        }
+
+        /**
+         * Create the closed interval [start, end] that points to the given event.
+         */
+        public OccupiedInterval(long start, long end, PlannerEvent event) throws IllegalTimeInterval, IllegalTimePoint {
+            super(start, end, false, false);
+            this.event = event;
+        }
+
+        /**
+         * Returns true if both intervals are equal and both events are equal.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            if (!super.equals(o)) return false;
+            OccupiedInterval that = (OccupiedInterval) o;
+            return event == that.event || (event != null && event.equals(that.event));
+        }
+    }
+}
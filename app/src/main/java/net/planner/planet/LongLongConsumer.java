@@ -0,0 +1,8 @@
+package net.planner.planet;
+
+/**
+ * Operation that receives two long values (such as the start and end of an interval) and returns nothing.
+ */
+public interface LongLongConsumer {
+    void accept(long first, long second);
+}
@@ -0,0 +1,276 @@
+package net.planner.planet;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size bitmap with one bit per minute from an origin time. Runs of set bits are found word by word using
+ * Long.numberOfTrailingZeros, so whole words of unset (or set) minutes are skipped at once.
+ */
+class MinuteBitmap {
+
+    // Constants
+    public static final long MINUTE_IN_MILLIS = 60000L;
+    private static final int WORD_BITS = 64;
+    private static final long ALL_BITS = -1L;
+
+    // Fields
+    private final long origin;
+    private final int size;
+    private final long[] words;
+
+    // Constructors
+
+    /**
+     * Construct a bitmap with the given amount of minutes from the given origin (ms), where all the bits are unset.
+     */
+    public MinuteBitmap(long origin, int size) {
+        this.origin = origin;
+        this.size = size;
+        this.words = new long[(size + WORD_BITS - 1) / WORD_BITS];
+    }
+
+    /**
+     * Helper constructor: Construct a bitmap with the given words.
+     */
+    private MinuteBitmap(long origin, int size, long[] words) {
+        this.origin = origin;
+        this.size = size;
+        this.words = words;
+    }
+
+    // Methods
+
+    /**
+     * Returns the time (ms) of the first minute in this bitmap.
+     */
+    public long getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Returns the amount of minutes in this bitmap.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the start time (ms) of the given minute.
+     */
+    public long timeOf(int minute) {
+        return origin + minute * MINUTE_IN_MILLIS;
+    }
+
+    /**
+     * Returns the minute that contains the given time (ms). May be outside of [0, size).
+     */
+    public long minuteOf(long time) {
+        return Math.floorDiv(time - origin, MINUTE_IN_MILLIS);
+    }
+
+    /**
+     * Returns true if the given minute is set.
+     */
+    public boolean get(int minute) {
+        return minute >= 0 && minute < size && (words[minute / WORD_BITS] & (1L << minute)) != 0;
+    }
+
+    /**
+     * Sets all the minutes in [from, to) (clipped to this bitmap).
+     */
+    public void set(long from, long to) {
+        int first = (int) Math.min(Math.max(from, 0), size), last = (int) Math.max(Math.min(to, size), 0);
+        if (first >= last) {
+            return;
+        }
+
+        int firstWord = first / WORD_BITS, lastWord = (last - 1) / WORD_BITS;
+        long firstMask = ALL_BITS << first, lastMask = ALL_BITS >>> -last;
+        if (firstWord == lastWord) {
+            words[firstWord] |= firstMask & lastMask;
+            return;
+        }
+        words[firstWord] |= firstMask;
+        Arrays.fill(words, firstWord + 1, lastWord, ALL_BITS);
+        words[lastWord] |= lastMask;
+    }
+
+    /**
+     * Unsets all the minutes in [from, to) (clipped to this bitmap).
+     */
+    public void clear(long from, long to) {
+        int first = (int) Math.min(Math.max(from, 0), size), last = (int) Math.max(Math.min(to, size), 0);
+        if (first >= last) {
+            return;
+        }
+
+        int firstWord = first / WORD_BITS, lastWord = (last - 1) / WORD_BITS;
+        long firstMask = ALL_BITS << first, lastMask = ALL_BITS >>> -last;
+        if (firstWord == lastWord) {
+            words[firstWord] &= ~(firstMask & lastMask);
+            return;
+        }
+        words[firstWord] &= ~firstMask;
+        Arrays.fill(words, firstWord + 1, lastWord, 0L);
+        words[lastWord] &= ~lastMask;
+    }
+
+    /**
+     * Sets every minute that the closed time interval [start, end] (ms) touches.
+     */
+    public void setTouching(long start, long end) {
+        set(minuteOf(start), minuteOf(end) + 1);
+    }
+
+    /**
+     * Unsets every minute that the closed time interval [start, end] (ms) touches.
+     */
+    public void clearTouching(long start, long end) {
+        clear(minuteOf(start), minuteOf(end) + 1);
+    }
+
+    /**
+     * Sets every minute that lies entirely inside the closed time interval [start, end] (ms).
+     */
+    public void setInside(long start, long end) {
+        set(minuteOf(start + MINUTE_IN_MILLIS - 1), minuteOf(end + 1));
+    }
+
+    /**
+     * Sets all the minutes in this bitmap.
+     */
+    public void setAll() {
+        set(0, size);
+    }
+
+    /**
+     * Returns a copy of this bitmap.
+     */
+    public MinuteBitmap copy() {
+        return new MinuteBitmap(origin, size, words.clone());
+    }
+
+    /**
+     * Keeps only the minutes that are also set in the given bitmap (which must have the same origin and size).
+     */
+    public MinuteBitmap and(MinuteBitmap other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= other.words[i];
+        }
+        return this;
+    }
+
+    /**
+     * Unsets the minutes that are set in the given bitmap (which must have the same origin and size).
+     */
+    public MinuteBitmap andNot(MinuteBitmap other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= ~other.words[i];
+        }
+        return this;
+    }
+
+    /**
+     * Unsets the minutes that are set in the given bitmap, whose minute 0 is the given minute of this one.
+     */
+    public MinuteBitmap andNot(MinuteBitmap other, int offset) {
+        int runStart = other.nextSetBit(0);
+        while (runStart >= 0) {
+            int runEnd = other.nextClearBit(runStart);
+            clear(runStart + (long) offset, runEnd + (long) offset);
+            runStart = other.nextSetBit(runEnd);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the minutes that are set in the given bitmap (which must have the same origin and size).
+     */
+    public MinuteBitmap or(MinuteBitmap other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+        }
+        return this;
+    }
+
+    /**
+     * Returns the first set minute at or after the given one, or -1 if there is none.
+     */
+    public int nextSetBit(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (from >= size) {
+            return -1;
+        }
+
+        int wordIndex = from / WORD_BITS;
+        long word = words[wordIndex] & (ALL_BITS << from);
+        while (word == 0) {
+            if (++wordIndex == words.length) {
+                return -1;
+            }
+            word = words[wordIndex];
+        }
+        int minute = wordIndex * WORD_BITS + Long.numberOfTrailingZeros(word);
+        return minute < size ? minute : -1;
+    }
+
+    /**
+     * Returns the first unset minute at or after the given one, or size if there is none.
+     */
+    public int nextClearBit(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (from >= size) {
+            return size;
+        }
+
+        int wordIndex = from / WORD_BITS;
+        long word = ~words[wordIndex] & (ALL_BITS << from);
+        while (word == 0) {
+            if (++wordIndex == words.length) {
+                return size;
+            }
+            word = ~words[wordIndex];
+        }
+        return Math.min(wordIndex * WORD_BITS + Long.numberOfTrailingZeros(word), size);
+    }
+
+    /**
+     * Returns the first minute at or after the given one that starts a run of at least length set minutes, or -1 if
+     * there is none.
+     */
+    public int findRun(int from, int length) {
+        return findRun(from, size - length, length);
+    }
+
+    /**
+     * Returns the first minute in [from, lastStart] that starts a run of at least length set minutes, or -1 if there is
+     * none. Stops scanning after lastStart.
+     */
+    public int findRun(int from, int lastStart, int length) {
+        lastStart = Math.min(lastStart, size - length);
+        int runStart = nextSetBit(from);
+        while (runStart >= 0 && runStart <= lastStart) {
+            int runEnd = nextClearBit(runStart);
+            if (runEnd - runStart >= length) {
+                return runStart;
+            }
+            runStart = nextSetBit(runEnd);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the amount of set minutes.
+     */
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,43 @@
+package net.planner.planet;
+
+/**
+ * Index over the occupied closed intervals [start, end] of a calendar, each pointing to the event that occupies it.
+ */
+interface OccupancyIndex extends OccupancyQuery {
+
+    /**
+     * Adds the interval [start, end] pointing to the given event (duplicates are allowed). Returns true if successful.
+     */
+    boolean add(long start, long end, PlannerEvent event);
+
+    /**
+     * Adds the first count given entries, which are sorted by (start, end). Entries that end before they start are skipped.
+     */
+    void addAllSorted(long[] starts, long[] ends, PlannerEvent[] events, int count);
+
+    /**
+     * Removes one entry of the interval [start, end] pointing to the given event. Returns true if found.
+     */
+    boolean remove(long start, long end, PlannerEvent event);
+
+    /**
+     * Returns true if the index holds the interval [start, end] pointing to the given event.
+     */
+    boolean contains(long start, long end, PlannerEvent event);
+
+    /**
+     * Removes all the entries that end before the given time, passing each of them to the given visitor (may be null).
+     */
+    void dropBefore(long time, Visitor dropped);
+
+    /**
+     * Returns the amount of entries in the index.
+     */
+    int size();
+
+    /**
+     * Returns a copy of the index that can be changed independently of it. Implementations may share their structure
+     * with the copy until either of them changes.
+     */
+    OccupancyIndex snapshot();
+}
@@ -0,0 +1,35 @@
+package net.planner.planet;
+
+/**
+ * Read-only queries over occupied closed intervals [start, end], each pointing to the event that occupies it (or to null
+ * when the intervals aren't events, like the forbidden time of a tag).
+ */
+interface OccupancyQuery {
+
+    /**
+     * Visitor for the entries of an index. Returns false to stop the iteration.
+     */
+    interface Visitor {
+        boolean visit(long start, long end, PlannerEvent event);
+    }
+
+    /**
+     * Visits all entries that overlap with [start, end] by order of their start time. Returns false if stopped by the visitor.
+     */
+    boolean forEachOverlap(long start, long end, Visitor visitor);
+
+    /**
+     * Returns true if any entry overlaps with [start, end].
+     */
+    boolean anyOverlap(long start, long end);
+
+    /**
+     * Returns the maximal end of the entries that overlap with [start, end], or Long.MIN_VALUE if there are none.
+     */
+    long maxEndOverlapping(long start, long end);
+
+    /**
+     * Returns the first start time that is at or after the given time, or Long.MAX_VALUE if there is none.
+     */
+    long firstStartAtOrAfter(long time);
+}
@@ -0,0 +1,128 @@
+package net.planner.planet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/** Solver that tries several orders of the tasks at once, each on its own snapshot of the calendar, and keeps the plan
+ * that places the most tasks (and then the most sessions in preferred time). The orders are: by tag priority (like
+ * PlannerSolver), earliest deadline first, longest first, and random perturbations of the tag priority order. The
+ * random orders only depend on the seed, and among equal plans the earliest order wins, so the result is the same on
+ * every run and for any amount of threads **/
+public class ParallelPlannerSolver {
+
+    public static final int DEFAULT_RANDOM_ORDERS = 4;
+
+    private static ForkJoinPool sharedPool; // Created when first needed (the common pool needs API level 24).
+
+    private final ForkJoinPool pool;
+    private final long seed;
+    private final int randomOrders;
+
+    /** Create a solver that runs on a fork-join pool shared by the solvers with the given seed **/
+    public ParallelPlannerSolver(long seed) {
+        this(getSharedPool(), seed, DEFAULT_RANDOM_ORDERS);
+    }
+
+    /** Create a solver that runs on the given pool with the given seed and amount of random orders **/
+    public ParallelPlannerSolver(ForkJoinPool pool, long seed, int randomOrders) {
+        this.pool = pool;
+        this.seed = seed;
+        this.randomOrders = Math.max(randomOrders, 0);
+    }
+
+    /** Add the tasks to the calendar by the best order found. Returns the events of the added tasks **/
+    public List<List<PlannerEvent>> addTasks(List<PlannerTask> tasks, PlannerCalendar calendar) {
+        List<List<PlannerTask>> orders = getOrders(tasks, calendar);
+
+        // Snapshots are taken here, so the attempts never touch the calendar itself.
+        List<ForkJoinTask<Plan>> attempts = new ArrayList<>(orders.size());
+        for (List<PlannerTask> order : orders) {
+            PlannerCalendar fork = calendar.snapshot();
+            attempts.add(pool.submit(() -> new Plan(fork, PlannerSolver.addTasksInOrder(order, fork))));
+        }
+
+        Plan best = null;
+        for (ForkJoinTask<Plan> attempt : attempts) {
+            Plan plan = attempt.join();
+            if (best == null || plan.isBetterThan(best)) {
+                best = plan;
+            }
+        }
+        if (best == null) {
+            return new LinkedList<>();
+        }
+
+        calendar.restore(best.calendar);
+        return best.addedTasks;
+    }
+
+    /** Get the pool shared by the solvers that aren't given one **/
+    private static synchronized ForkJoinPool getSharedPool() {
+        if (sharedPool == null) {
+            sharedPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sharedPool;
+    }
+
+    /** Get the orders of the tasks to try **/
+    private List<List<PlannerTask>> getOrders(List<PlannerTask> tasks, PlannerCalendar calendar) {
+        List<List<PlannerTask>> orders = new ArrayList<>();
+        List<PlannerTask> byTagPriority = PlannerSolver.sortTasks(tasks, calendar);
+        orders.add(byTagPriority);
+
+        List<PlannerTask> byDeadline = new ArrayList<>(tasks);
+        Collections.sort(byDeadline, (o1, o2) -> Long.compare(o1.getDeadline(), o2.getDeadline()));
+        orders.add(byDeadline);
+
+        List<PlannerTask> longestFirst = new ArrayList<>(tasks);
+        Collections.sort(longestFirst, (o1, o2) -> Long.compare(o2.getDurationInMillis(), o1.getDurationInMillis()));
+        orders.add(longestFirst);
+
+        // Perturb the tag priority order by random swaps of neighbouring tasks.
+        Random random = new Random(seed);
+        for (int i = 0; i < randomOrders && tasks.size() > 1; i++) {
+            List<PlannerTask> perturbed = new ArrayList<>(byTagPriority);
+            for (int swap = 0; swap < perturbed.size(); swap++) {
+                int position = random.nextInt(perturbed.size() - 1);
+                Collections.swap(perturbed, position, position + 1);
+            }
+            orders.add(perturbed);
+        }
+        return orders;
+    }
+
+    /** Result of adding the tasks by one order to a snapshot of the calendar **/
+    private static class Plan {
+
+        private final PlannerCalendar calendar;
+        private final List<List<PlannerEvent>> addedTasks;
+        private final int preferredSessions;
+
+        Plan(PlannerCalendar calendar, List<List<PlannerEvent>> addedTasks) {
+            this.calendar = calendar;
+            this.addedTasks = addedTasks;
+            int preferred = 0;
+            for (List<PlannerEvent> events : addedTasks) {
+                for (PlannerEvent event : events) {
+                    if (calendar.isInPreferredTime(event)) {
+                        preferred++;
+                    }
+                }
+            }
+            this.preferredSessions = preferred;
+        }
+
+        /** Return whether this plan adds more tasks than the other one, or as many with more sessions in preferred time **/
+        boolean isBetterThan(Plan other) {
+            if (addedTasks.size() != other.addedTasks.size()) {
+                return addedTasks.size() > other.addedTasks.size();
+            }
+            return preferredSessions > other.preferredSessions;
+        }
+    }
+}
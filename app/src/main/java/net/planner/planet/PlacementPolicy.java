@@ -0,0 +1,14 @@
+package net.planner.planet;
+
+/** How PlannerCalendar.insertTask picks the free time of a task among the times where it fits (before its deadline and
+ * outside the forbidden intervals of its tag) **/
+public enum PlacementPolicy {
+    /** The earliest free time **/
+    FIRST_FIT,
+    /** The free gap that is the shortest among those that hold the task, so long gaps stay whole for long tasks **/
+    BEST_FIT,
+    /** The longest free gap, so the time left around the task stays usable **/
+    WORST_FIT,
+    /** The earliest free time within a preferred interval of the tag of the task, or the earliest free time if there is none **/
+    EARLIEST_IN_PREFERRED
+}
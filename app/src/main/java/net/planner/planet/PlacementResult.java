@@ -0,0 +1,73 @@
+package net.planner.planet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Result of adding a batch of tasks to a calendar in best-effort mode: the events of the placed tasks, and the tasks
+ * that couldn't be placed with the reason for each of them **/
+public class PlacementResult {
+
+    /** Why a task couldn't be placed **/
+    public enum Reason {
+        /** The free time before the deadline of the task (within the calendar) is shorter than the task **/
+        NO_CAPACITY_BEFORE_DEADLINE,
+        /** The task would fit in the free time if not for the forbidden intervals of its tag **/
+        ALL_WINDOWS_FORBIDDEN,
+        /** There is enough free time, but no free gap is long enough for the task or for one of its sessions **/
+        SESSION_TOO_LONG
+    }
+
+    /** A task that couldn't be placed and why **/
+    public static class UnplacedTask {
+
+        private final PlannerTask task;
+        private final Reason reason;
+
+        UnplacedTask(PlannerTask task, Reason reason) {
+            this.task = task;
+            this.reason = reason;
+        }
+
+        public PlannerTask getTask() {
+            return task;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return task.getTitle() + ": " + reason;
+        }
+    }
+
+    private final List<List<PlannerEvent>> placedTasks = new ArrayList<>();
+    private final List<UnplacedTask> unplacedTasks = new ArrayList<>();
+
+    /** Add the events of a placed task **/
+    void addPlaced(List<PlannerEvent> events) {
+        placedTasks.add(events);
+    }
+
+    /** Add a task that couldn't be placed **/
+    void addUnplaced(PlannerTask task, Reason reason) {
+        unplacedTasks.add(new UnplacedTask(task, reason));
+    }
+
+    /** Get the events of the placed tasks, by the order they were placed **/
+    public List<List<PlannerEvent>> getPlacedTasks() {
+        return Collections.unmodifiableList(placedTasks);
+    }
+
+    /** Get the tasks that couldn't be placed with their reasons, by the order they were tried **/
+    public List<UnplacedTask> getUnplacedTasks() {
+        return Collections.unmodifiableList(unplacedTasks);
+    }
+
+    /** Return whether all the tasks were placed **/
+    public boolean isComplete() {
+        return unplacedTasks.isEmpty();
+    }
+}
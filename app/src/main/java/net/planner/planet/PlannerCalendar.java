@@ -1,22 +1,20 @@
 package net.planner.planet;
 
-import com.brein.time.exceptions.IllegalTimeInterval;
-import com.brein.time.exceptions.IllegalTimePoint;
-import com.brein.time.timeintervals.collections.ListIntervalCollection;
-import com.brein.time.timeintervals.indexes.IntervalTree;
-import com.brein.time.timeintervals.indexes.IntervalTreeBuilder;
+import android.util.Log;
+
 import com.brein.time.timeintervals.intervals.IInterval;
 import com.brein.time.timeintervals.intervals.LongInterval;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The PlannerCalendar represents a calendar that can hold and tasks and events.
@@ -24,17 +22,32 @@ import java.util.concurrent.TimeUnit;
 public class PlannerCalendar {
 
     // Constants
-    private static final int MAX_DAYS = 30; // Amount of days in a PlannerCalendar object.
+    private static final String TAG = "PlannerCalendar";
+    public static final int DEFAULT_HORIZON_DAYS = 30; // Default amount of days in a PlannerCalendar object.
+    private static final int MINUTES_IN_DAY = 24 * 60;
     private static final int SPACE_IN_MINUTES = 15;
     private static final int MIN_SPACE_IN_SECONDS = 1;
     private static final long MIN_SPACE_IN_MILLIS = MIN_SPACE_IN_SECONDS * 1000L;
+    private static final long MIN_SESSION_IN_MILLIS = 15 * 60000L; // Shortest session of a divided task.
     public static final long RECOMMENDED_SPACE_IN_MILLIS = SPACE_IN_MINUTES * 60000L;
+    private static final Comparator<PlannerEvent> BY_START_AND_END = (first, second) -> {
+        int byStart = Long.compare(first.getStartTime(), second.getStartTime());
+        return byStart != 0 ? byStart : Long.compare(first.getEndTime(), second.getEndTime());
+    };
 
     // Fields
-    private long startTime; // This calendar starts from this time (ms) and ends 30 days after it.
+    private long startTime; // This calendar starts from this time (ms) and ends horizonDays days after it.
+    private int horizonDays;
     private long spaceBetweenTasks;
-    private IntervalTree occupiedTree;
-    private HashMap<String, PlannerTag> tags;
+    private OccupancyIndex occupied;
+    private volatile ShardedFreeGaps freeGaps; // Built from the occupancy index when first needed, sharded by day in concurrent mode.
+    private boolean bitmapMode;
+    private volatile ShardedMinuteBitmap occupiedMinutes; // Only kept in bitmap mode, built like the free gaps.
+    private TagTable tags;
+    private DayStripedLocks locks; // Only kept in concurrent mode.
+    private UndoLog undoLog; // Only kept during a transaction.
+    private AvailabilityCache answers; // Answers of isIntervalAvailable and the tag checks.
+    private AtomicLong occupancyFingerprint; // Sum of the fingerprints of the intervals in the occupancy index.
 
     // Constructors
 
@@ -82,6 +95,23 @@ public class PlannerCalendar {
         init(timeInMillis, spaceBetweenTasks, eventList, newTags);
     }
 
+    /**
+     * Construct a new calendar with the given start time and space between tasks that keeps its events in the given index.
+     */
+    PlannerCalendar(long timeInMillis, long spaceBetweenTasks, OccupancyIndex occupied) {
+        if (spaceBetweenTasks < MIN_SPACE_IN_MILLIS) spaceBetweenTasks = MIN_SPACE_IN_MILLIS;
+
+        this.occupied = occupied;
+        init(timeInMillis, spaceBetweenTasks, Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * Construct a snapshot of the given calendar (see snapshot()).
+     */
+    private PlannerCalendar(PlannerCalendar other) {
+        copyFrom(other);
+    }
+
     /**
      * Helper function: Actual constructor (receives default values from other constructors).
      */
@@ -94,23 +124,21 @@ public class PlannerCalendar {
         startDate.set(Calendar.SECOND, 0);
         startDate.set(Calendar.MILLISECOND, 0);
         this.startTime = startDate.getTimeInMillis();
+        this.horizonDays = DEFAULT_HORIZON_DAYS;
 
         // Add tags.
-        tags = new HashMap<>(tagList.size());
+        tags = new TagTable();
         for (PlannerTag tag : tagList) {
-            String tagName = tag.getTagName();
-            if (!tagName.equals(PlannerObject.NO_TAG)) {
-                tags.put(tagName, tag);
-            }
+            tags.add(tag);
         }
 
-        // Create occupiedTree and add events.
-        occupiedTree = IntervalTreeBuilder.newBuilder()
-                .usePredefinedType(IntervalTreeBuilder.IntervalType.LONG)
-                .collectIntervals(interval -> new ListIntervalCollection()).build();
-        for (PlannerEvent event : eventList) {
-            insertEvent(event);
+        // Create the occupancy index and add events.
+        if (occupied == null) {
+            occupied = new DayBucketedOccupancyIndex(startTime, horizonDays);
         }
+        answers = new AvailabilityCache(horizonDays, AvailabilityCache.DEFAULT_CAPACITY);
+        occupancyFingerprint = new AtomicLong();
+        insertEvents(eventList);
 
         // Define space between tasks.
         this.spaceBetweenTasks = spaceBetweenTasks;
@@ -125,42 +153,188 @@ public class PlannerCalendar {
         return startTime;
     }
 
+    /**
+     * Returns the amount of days this calendar spans from its start time.
+     */
+    public int getHorizonDays() {
+        return horizonDays;
+    }
+
+    /**
+     * Changes the amount of days this calendar spans from its start time. Events that start after the new end time are
+     * removed. Returns true if successful.
+     */
+    public boolean setHorizonDays(int days) {
+        if (days < 1) {
+            Log.e(TAG, "Horizon must be at least one day, got " + days);
+            return false;
+        }
+        if (undoLog != null) {
+            Log.e(TAG, "Cannot change the horizon during a transaction");
+            return false;
+        }
+        lockStructure();
+        try {
+            if (days != horizonDays) {
+                changeHorizonDays(days);
+            }
+            return true;
+        } finally {
+            unlockStructure();
+        }
+    }
+
+    /**
+     * Helper function: Changes the amount of days this calendar spans (see setHorizonDays).
+     */
+    private void changeHorizonDays(int days) {
+        horizonDays = days;
+        long newEnd = getEndTime();
+        OccupancyQuery.Visitor dropped = this::forgetDropped;
+        if (occupied instanceof DayBucketedOccupancyIndex) {
+            ((DayBucketedOccupancyIndex) occupied).setDays(days, dropped);
+        } else {
+            List<PlannerEvent> outside = new ArrayList<>();
+            occupied.forEachOverlap(newEnd + 1, Long.MAX_VALUE, (start, end, event) -> {
+                if (start > newEnd) {
+                    outside.add(event);
+                }
+                return true;
+            });
+            for (PlannerEvent event : outside) {
+                if (occupied.remove(event.getStartTime(), event.getEndTime(), event)) {
+                    dropped.visit(event.getStartTime(), event.getEndTime(), event);
+                }
+            }
+        }
+        if (freeGaps != null && !freeGaps.setBounds(startTime, newEnd)) {
+            freeGaps = null;
+        }
+        occupiedMinutes = null;
+        answers.reset(days);
+    }
+
+    /**
+     * Moves the start of this calendar forward by the given amount of days, keeping the same horizon. Events that end
+     * before the new start time are dropped. Returns true if successful.
+     */
+    public boolean advanceStartDays(int days) {
+        if (days < 0) {
+            Log.e(TAG, "Cannot move the start time backwards, got " + days + " days");
+            return false;
+        }
+        if (days == 0) {
+            return true;
+        }
+        if (undoLog != null) {
+            Log.e(TAG, "Cannot move the start time during a transaction");
+            return false;
+        }
+
+        lockStructure();
+        try {
+            long newStart = startTime + TimeUnit.DAYS.toMillis(days);
+            long newEnd = newStart + TimeUnit.DAYS.toMillis(horizonDays);
+            occupied.dropBefore(newStart, this::forgetDropped);
+            if (freeGaps != null && !freeGaps.setBounds(newStart, newEnd)) {
+                freeGaps = null;
+            }
+            startTime = newStart;
+            occupiedMinutes = null;
+            answers.reset(horizonDays);
+            return true;
+        } finally {
+            unlockStructure();
+        }
+    }
+
     /**
      * Returns all intervals in the calendar that overlap with [startDate, endDate].
      */
     public Collection<IInterval> getCollisions(long startDate, long endDate) {
-        return occupiedTree.overlap(new LongInterval(startDate, endDate));
+        Collection<IInterval> collisions = new ArrayList<>();
+        forEachCollision(startDate, endDate, (start, end) -> collisions.add(new LongInterval(start, end)));
+        return collisions;
+    }
+
+    /**
+     * Passes the start and end of every interval in the calendar that overlaps with [startDate, endDate] to the given
+     * consumer, by order of their start time. Nothing is collected on the way.
+     */
+    public void forEachCollision(long startDate, long endDate, LongLongConsumer consumer) {
+        lockDays(startDate, endDate, false);
+        try {
+            occupied.forEachOverlap(startDate, endDate, (start, end, event) -> {
+                consumer.accept(start, end);
+                return true;
+            });
+        } finally {
+            unlockDays(startDate, endDate, false);
+        }
+    }
+
+    /**
+     * Returns true if any interval in this calendar overlaps with [startDate, endDate]. Stops at the first one found.
+     */
+    public boolean anyCollision(long startDate, long endDate) {
+        lockDays(startDate, endDate, false);
+        try {
+            return occupied.anyOverlap(startDate, endDate);
+        } finally {
+            unlockDays(startDate, endDate, false);
+        }
     }
 
     /**
      * Returns true if the interval [startDate, endDate] doesn't overlap with any interval in this calendar.
      */
     public boolean isIntervalAvailable(long startDate, long endDate) {
-        return getCollisions(startDate, endDate).isEmpty();
+        int firstDay = dayOf(startDate), lastDay = dayOf(endDate);
+        Boolean cached = answers.get(AvailabilityCache.AVAILABLE, null, startDate, endDate, firstDay, lastDay);
+        if (cached != null) {
+            return cached;
+        }
+
+        long computedAt = answers.now();
+        boolean available = !anyCollision(startDate, endDate);
+        answers.put(AvailabilityCache.AVAILABLE, null, startDate, endDate, available, computedAt);
+        return available;
     }
 
     /**
      * Returns true if the interval [startDate, endDate] is tagged as forbidden by a tag named tagName in this calendar.
      */
     public boolean isIntervalTaggedForbidden(String tagName, long startDate, long endDate) {
-        PlannerTag tag = safeGetTag(tagName);
+        PlannerTag tag = tags.get(tagName);
         if (tag == null) {
             return false;
         }
 
-        return tag.isIntervalForbidden(startDate, endDate);
+        Boolean cached = answers.get(AvailabilityCache.FORBIDDEN, tag, startDate, endDate, 0, -1);
+        if (cached != null) {
+            return cached;
+        }
+        boolean forbidden = tag.isIntervalForbidden(startDate, endDate);
+        answers.put(AvailabilityCache.FORBIDDEN, tag, startDate, endDate, forbidden, answers.now());
+        return forbidden;
     }
 
     /**
      * Returns true if the interval [startDate, endDate] is tagged as preferred by a tag named tagName in this calendar.
      */
     public boolean isIntervalTaggedPreferred(String tagName, long startDate, long endDate) {
-        PlannerTag tag = safeGetTag(tagName);
+        PlannerTag tag = tags.get(tagName);
         if (tag == null) {
             return false;
         }
 
-        return tag.isIntervalPreferred(startDate, endDate);
+        Boolean cached = answers.get(AvailabilityCache.PREFERRED, tag, startDate, endDate, 0, -1);
+        if (cached != null) {
+            return cached;
+        }
+        boolean preferred = tag.isIntervalPreferred(startDate, endDate);
+        answers.put(AvailabilityCache.PREFERRED, tag, startDate, endDate, preferred, answers.now());
+        return preferred;
     }
 
     /**
@@ -171,8 +345,68 @@ public class PlannerCalendar {
             return false;
         }
 
-        OccupiedInterval toInsert = new OccupiedInterval(event);
-        return !occupiedTree.contains(toInsert) && occupiedTree.add(toInsert);
+        long start = event.getStartTime(), end = event.getEndTime();
+        lockDays(start, end, true);
+        try {
+            return !occupied.contains(start, end, event) && occupy(start, end, event);
+        } finally {
+            unlockDays(start, end, true);
+        }
+    }
+
+    /**
+     * Attempts to insert the given events into this calendar, like insertEvent does for each of them. Into an empty
+     * calendar the events are sorted once and loaded in one pass. Returns true if all of them were inserted.
+     */
+    public boolean insertEvents(Collection<PlannerEvent> events) {
+        lockStructure();
+        try {
+            return loadEvents(events);
+        } finally {
+            unlockStructure();
+        }
+    }
+
+    /**
+     * Helper function: Inserts the given events (see insertEvents).
+     */
+    private boolean loadEvents(Collection<PlannerEvent> events) {
+        if (occupied.size() > 0) {
+            boolean insertedAll = true;
+            for (PlannerEvent event : events) {
+                insertedAll &= insertEvent(event);
+            }
+            return insertedAll;
+        }
+
+        PlannerEvent[] sorted = events.toArray(new PlannerEvent[0]);
+        Arrays.sort(sorted, BY_START_AND_END);
+        long[] starts = new long[sorted.length], ends = new long[sorted.length];
+        int count = 0;
+        for (PlannerEvent event : sorted) {
+            long start = event.getStartTime(), end = event.getEndTime();
+            if (isValidDate(start) && isValidDate(end) && !containsSorted(starts, ends, sorted, count, event)) {
+                starts[count] = start;
+                ends[count] = end;
+                sorted[count++] = event;
+            }
+        }
+
+        occupied.addAllSorted(starts, ends, sorted, count);
+        for (int i = 0; i < count; i++) {
+            if (undoLog != null) {
+                undoLog.recordAdd(starts[i], ends[i], sorted[i]);
+            }
+            answers.touchDays(dayOf(starts[i]), dayOf(ends[i]));
+            occupancyFingerprint.addAndGet(Fingerprints.ofInterval(starts[i], ends[i]));
+            if (freeGaps != null) {
+                freeGaps.occupy(starts[i], ends[i]);
+            }
+            if (occupiedMinutes != null) {
+                occupiedMinutes.setTouching(starts[i], ends[i]);
+            }
+        }
+        return count == sorted.length;
     }
 
     /**
@@ -183,363 +417,1356 @@ public class PlannerCalendar {
             return false;
         }
 
-        OccupiedInterval toInsert = new OccupiedInterval(event);
-        return occupiedTree.add(toInsert);
+        long start = event.getStartTime(), end = event.getEndTime();
+        lockDays(start, end, true);
+        try {
+            return occupy(start, end, event);
+        } finally {
+            unlockDays(start, end, true);
+        }
     }
 
     /**
-     * Inserts a tagged task into the calendar at the first preferred free time. Returns events it was assigned to. On failure, returns empty list.
+     * Inserts a tagged task into the calendar at the first preferred free time that lets it end by its deadline. Returns events it was assigned to. On failure, returns empty list.
      */
     public List<PlannerEvent> preferredInsertTask(PlannerTask task) {
-        PlannerTag tag = safeGetTag(task.getTagName());
-        if (tag == null) {
+        PlannerTag tag = tags.get(task.getTagId());
+        if (tag == null || (task.getMaxDivisionsNumber() > 1 && task.getDurationInMinutes() > task.getMaxSessionTimeInMinutes())) {
+            // A task that has to be divided is left to insertTask.
             return new LinkedList<>();
         }
 
-        return insertTaskHelper(task, tag.getPreferredTimeIntervalsIterator(), occupiedTree);
+        lockStructureShared();
+        try {
+            long lastStartTime = getLastTaskStart(task);
+            if (lastStartTime < this.startTime + spaceBetweenTasks) {
+                return new LinkedList<>();
+            }
+
+            while (true) {
+                long startTime = findPreferredTaskStart(task, tag, this.startTime, lastStartTime);
+                long desiredDuration = task.getDurationInMillis() + spaceBetweenTasks;
+                LinkedList<PlannerEvent> assignments = startTime < 0 ? new LinkedList<>() :
+                        placeTask(task, startTime, task.getDurationInMillis(), startTime + desiredDuration);
+                if (assignments != null) {
+                    return assignments;
+                }
+            }
+        } finally {
+            unlockStructureShared();
+        }
     }
 
     /**
-     * Inserts a task into the calendar at the first non-forbidden free time. Returns events it was assigned to. On failure, returns empty list.
+     * Inserts a task into the calendar at the first non-forbidden free time that lets it end by its deadline. A task that
+     * may be divided is packed into up to maxDivisionsNumber sessions of up to maxSessionTimeInMinutes each, in the first
+     * free gaps where they fit. Returns events it was assigned to. On failure, returns empty list.
      */
     public List<PlannerEvent> insertTask(PlannerTask task) {
-        FreeTimeIterator freeTimeIt = new FreeTimeIterator();
-        PlannerTag tag = safeGetTag(task.getTagName());
-        if (tag == null) {
-            return insertUntaggedTaskHelper(task, freeTimeIt);
+        return insertTask(task, PlacementPolicy.FIRST_FIT);
+    }
+
+    /**
+     * Inserts a task into the calendar like insertTask, at the non-forbidden free time the given policy picks. A task that
+     * is divided into sessions is always packed by first fit. Returns events it was assigned to. On failure, returns
+     * empty list.
+     */
+    public List<PlannerEvent> insertTask(PlannerTask task, PlacementPolicy policy) {
+        if (policy == PlacementPolicy.EARLIEST_IN_PREFERRED) {
+            List<PlannerEvent> assignments = preferredInsertTask(task);
+            return assignments.isEmpty() ? insertTask(task, PlacementPolicy.FIRST_FIT) : assignments;
         }
 
-        return insertTaskHelper(task, freeTimeIt, tag.getForbiddenTimeIntervalsTree());
+        PlannerTag tag = tags.get(task.getTagId());
+        OccupancyQuery forbidden = getForbiddenQuery(tag);
+        lockStructureShared();
+        try {
+            if (task.getMaxDivisionsNumber() > 1) {
+                return insertSessions(task, forbidden);
+            }
+
+            // A task that can't end by its deadline fails before any search.
+            long lastStartTime = getLastTaskStart(task);
+            if (lastStartTime < this.startTime + spaceBetweenTasks) {
+                return new LinkedList<>();
+            }
+
+            while (true) {
+                long startTime;
+                if (policy != PlacementPolicy.FIRST_FIT) {
+                    startTime = findSizedGapTaskStart(task, forbidden, lastStartTime, policy == PlacementPolicy.BEST_FIT);
+                } else {
+                    startTime = bitmapMode ? findBitmapTaskStart(task, getAllowedMinutes(tag), this.startTime, lastStartTime) :
+                            findFreeGapTaskStart(task, forbidden, this.startTime, lastStartTime);
+                }
+
+                // A task in a free gap also keeps the minimal space from the block after it.
+                long checkedEnd = startTime + task.getDurationInMillis() + spaceBetweenTasks;
+                if (!bitmapMode) {
+                    checkedEnd += MIN_SPACE_IN_MILLIS - 1;
+                }
+                LinkedList<PlannerEvent> assignments = startTime < 0 ? new LinkedList<>() :
+                        placeTask(task, startTime, task.getDurationInMillis(), checkedEnd);
+                if (assignments != null) {
+                    return assignments;
+                }
+            }
+        } finally {
+            unlockStructureShared();
+        }
     }
 
     /**
-     * Removes the given event from this calendar. Return true if found.
+     * Inserts a task into the calendar at the given start, if the time is free and not forbidden and lets the task end by
+     * its deadline. The task is not divided. Returns events it was assigned to. On failure, returns empty list.
      */
-    public boolean removeEvent(PlannerEvent event) {
-        OccupiedInterval toRemove = new OccupiedInterval(event);
-        return occupiedTree.remove(toRemove);
+    public List<PlannerEvent> insertTaskAt(PlannerTask task, long startTime) {
+        PlannerTag tag = tags.get(task.getTagId());
+        long desiredDuration = task.getDurationInMillis() + spaceBetweenTasks;
+        lockStructureShared();
+        try {
+            if (startTime < this.startTime + spaceBetweenTasks || startTime > getLastTaskStart(task)) {
+                return new LinkedList<>();
+            }
+            if (tag != null && getForbiddenQuery(tag)
+                    .anyOverlap(startTime - MIN_SPACE_IN_MILLIS + 1, startTime + desiredDuration)) {
+                return new LinkedList<>();
+            }
+
+            // Keep the same spaces around the task as one placed in a free gap.
+            long checkedStart = startTime - spaceBetweenTasks + 1;
+            long checkedEnd = startTime + desiredDuration + MIN_SPACE_IN_MILLIS - 1;
+            lockDays(checkedStart, checkedEnd, true);
+            try {
+                if (occupied.anyOverlap(checkedStart, checkedEnd)) {
+                    return new LinkedList<>();
+                }
+                return placeTask(task, startTime, task.getDurationInMillis(), checkedEnd);
+            } finally {
+                unlockDays(checkedStart, checkedEnd, true);
+            }
+        } finally {
+            unlockStructureShared();
+        }
     }
 
     /**
-     * Returns true if this calendar contains a tag with the given name.
+     * Inserts an event of a task (a whole task or one of its sessions) at its own time, if the event is within this
+     * calendar, is free, isn't forbidden by the tag of the task and lets the session end by the deadline of the task. The
+     * time is checked under the locks of its days. Returns true if successful.
      */
-    public boolean containsTag(String tagName) {
-        return tags.containsKey(tagName);
+    boolean insertTaskEvent(PlannerEvent taskEvent) {
+        PlannerTask task = taskEvent.getParentTask();
+        PlannerTag tag = tags.get(task.getTagId());
+        long start = taskEvent.getStartTime(), end = taskEvent.getEndTime();
+        lockStructureShared();
+        try {
+            if (start < this.startTime + spaceBetweenTasks || !isValidDate(end) || end - spaceBetweenTasks > task.getDeadline()) {
+                return false;
+            }
+            if (tag != null && getForbiddenQuery(tag).anyOverlap(start - MIN_SPACE_IN_MILLIS + 1, end)) {
+                return false;
+            }
+
+            lockDays(start, end, true);
+            try {
+                return !occupied.anyOverlap(start, end) && occupy(start, end, taskEvent);
+            } finally {
+                unlockDays(start, end, true);
+            }
+        } finally {
+            unlockStructureShared();
+        }
     }
 
     /**
-     * Returns true if this calendar contains a tag with the given name.
+     * Returns the first start of the task in each of the first free gaps where it fits, isn't forbidden and lets it end
+     * by its deadline (up to limit starts), without inserting it. Each of them can be passed to insertTaskAt.
      */
-    public boolean containsTag(PlannerTag tag) {
-        return tags.containsKey(tag.getTagName());
+    long[] findTaskStarts(PlannerTask task, int limit) {
+        PlannerTag tag = tags.get(task.getTagId());
+        OccupancyQuery forbidden = getForbiddenQuery(tag);
+        long[] starts = new long[limit];
+        int count = 0;
+        lockStructureShared();
+        try {
+            long lastStartTime = getLastTaskStart(task);
+            long from = this.startTime;
+            while (count < limit) {
+                long startTime = findFreeGapTaskStart(task, forbidden, from, lastStartTime);
+                if (startTime < 0) {
+                    break;
+                }
+                starts[count++] = startTime;
+                from = startTime + task.getDurationInMillis() + spaceBetweenTasks;
+            }
+        } finally {
+            unlockStructureShared();
+        }
+        return Arrays.copyOf(starts, count);
     }
 
     /**
-     * Attempts to add the given tag to the calendar. Returns true if successful (if name wasn't given already).
+     * Returns the first start of the undivided task in [from, lastStart] where it's free, isn't forbidden and lets the
+     * task end by its deadline, without inserting it: in the preferred time of its tag like preferredInsertTask, and
+     * otherwise (unless preferredOnly) in the first free gap like insertTask. Returns -1 if there is none. The start can
+     * be passed to insertTaskAt.
      */
-    public boolean addTag(PlannerTag tag) {
-        String tagName = tag.getTagName();
-        if (tags.containsKey(tagName)) {
-            return false;
+    long findTaskStartBetween(PlannerTask task, long from, long lastStart, boolean preferredOnly) {
+        PlannerTag tag = tags.get(task.getTagId());
+        lockStructureShared();
+        try {
+            from = Math.max(from, this.startTime);
+            lastStart = Math.min(lastStart, getLastTaskStart(task));
+            long startTime = tag == null ? -1 : findPreferredTaskStart(task, tag, from, lastStart);
+            if (startTime >= 0 || preferredOnly) {
+                return startTime;
+            }
+            return findFreeGapTaskStart(task, getForbiddenQuery(tag), from, lastStart);
+        } finally {
+            unlockStructureShared();
         }
+    }
 
-        tags.put(tagName, tag);
-        return true;
+    /**
+     * Returns true if the given event of a task lies entirely in the preferred time of the tag of the task.
+     */
+    boolean isInPreferredTime(PlannerEvent taskEvent) {
+        PlannerTask task = taskEvent.getParentTask();
+        PlannerTag tag = task == null ? null : tags.get(task.getTagId());
+        return tag != null && tag.getPreferredMask(startTime, getEndTime())
+                .covers(taskEvent.getStartTime(), taskEvent.getEndTime());
     }
 
     /**
-     * Removes the tag with the given name from this calendar. Return true if found.
+     * Returns the total free time in this calendar before the given time.
      */
-    public boolean removeTag(String tagName) {
-        if (!tags.containsKey(tagName)) {
-            return false;
+    long getFreeTimeBefore(long time) {
+        lockStructureShared();
+        try {
+            return freeGaps().freeTimeBefore(time);
+        } finally {
+            unlockStructureShared();
         }
-
-        tags.remove(tagName);
-        return true;
     }
 
     /**
-     * Returns the tag with the given name from this calendar. Return null if not found.
+     * Returns the fragmentation of the free time in this calendar, from 0 when it's all in one gap (or there is none)
+     * towards 1 when it's split into many short gaps. Lets placement policies be compared.
      */
-    public PlannerTag getTag(String tagName) {
-        return tags.get(tagName);
+    public double getFragmentation() {
+        lockStructureShared();
+        try {
+            return freeGaps().fragmentation();
+        } finally {
+            unlockStructureShared();
+        }
     }
 
     /**
-     * Returns the names of all the tags in this calendar.
+     * Returns the free gap that contains the given time as {start, end}, or null if the time isn't free.
      */
-    public List<String> getTagNames() {
-        return new ArrayList<>(tags.keySet());
+    long[] getFreeGap(long time) {
+        lockStructureShared();
+        try {
+            return freeGaps().containing(time);
+        } finally {
+            unlockStructureShared();
+        }
     }
 
     /**
-     * Returns all the tags in this calendar.
+     * Returns the free gap that contains the given time, or else the first one after it, as {start, end}. Returns null
+     * if there is none.
      */
-    public List<PlannerTag> getTags() {
-        return new ArrayList<>(tags.values());
+    long[] getFreeGapFrom(long time) {
+        lockStructureShared();
+        try {
+            long[] gap = freeGaps().containing(time);
+            if (gap == null) {
+                gap = new long[2];
+                if (!freeGaps().firstFit(time, 1, gap)) {
+                    return null;
+                }
+            }
+            return gap;
+        } finally {
+            unlockStructureShared();
+        }
     }
 
-    // Helper functions
+    /**
+     * Returns the time this calendar ends at (horizonDays days after the start time).
+     */
+    long getEndTime() {
+        return startTime + TimeUnit.DAYS.toMillis(horizonDays);
+    }
 
     /**
-     * Helper function: Returns the first time in the calendar where the start doesn't overlap with others.
+     * Returns the space kept before every task (an event of a task also holds the space after it).
      */
-    private long getSpacedStartTime(LongInterval interval) {
-        long startTime = interval.getStart();
-        long maxEnd = startTime - spaceBetweenTasks;
-        Collection<IInterval> untaggedCollisions = getCollisions(maxEnd, startTime);
-        for (IInterval untaggedGeneric : untaggedCollisions) {
-            LongInterval untagged = (LongInterval) untaggedGeneric;
-            long end = untagged.getEnd();
-            if (end > maxEnd) {
-                maxEnd = end;
-            }
-        }
-        return maxEnd + spaceBetweenTasks;
+    long getSpaceBetweenTasks() {
+        return spaceBetweenTasks;
     }
 
     /**
-     * Helper function: Returns a collection where all overlapping intervals have been merged.
+     * Returns why the given task can't be inserted into this calendar as it is now (it's assumed that it can't).
      */
-    private Collection<IInterval> mergeOverlapping(Collection<IInterval> intervals) {
-        if (intervals.size() <= 1) {
-            return intervals;
+    PlacementResult.Reason getUnplacedReason(PlannerTask task) {
+        boolean divided = task.getMaxDivisionsNumber() > 1;
+        if (divided && (long) task.getMaxDivisionsNumber() * task.getMaxSessionTimeInMinutes() < task.getDurationInMinutes()) {
+            return PlacementResult.Reason.SESSION_TOO_LONG;
         }
-        Iterator<IInterval> it = intervals.iterator();
-        LinkedList<IInterval> merged = new LinkedList<>();
 
-        LongInterval previous = (LongInterval) it.next();
-        while (it.hasNext()) {
-            LongInterval current = (LongInterval) it.next();
-            if (previous.irBefore(current)) {
-                merged.add(previous);
-                previous = current;
-            } else {
-                previous = new LongInterval(previous.getStart(), current.getEnd());
+        lockStructureShared();
+        try {
+            long deadline = Math.min(task.getDeadline(), getEndTime());
+            ShardedFreeGaps gaps = freeGaps();
+            if (getLastTaskStart(task) < startTime + spaceBetweenTasks
+                    || gaps.freeTimeBefore(deadline) < task.getDurationInMillis()) {
+                return PlacementResult.Reason.NO_CAPACITY_BEFORE_DEADLINE;
             }
 
+            // Search again without the forbidden intervals.
+            boolean fitsWhenAllowed = divided ?
+                    findSessions(task, null, gaps, deadline, new long[2 * task.getMaxDivisionsNumber()]) >= 0 :
+                    findFreeGapTaskStart(task, null, startTime, getLastTaskStart(task)) >= 0;
+            return fitsWhenAllowed ? PlacementResult.Reason.ALL_WINDOWS_FORBIDDEN : PlacementResult.Reason.SESSION_TOO_LONG;
+        } finally {
+            unlockStructureShared();
         }
-        merged.add(previous);
-
-        return merged;
     }
 
     /**
-     * Helper function: Inserts an untagged task into the calendar at the first free time. Returns events it was assigned to.
+     * Returns the events of tasks in this calendar that overlap with [startDate, endDate], by order of their start time.
      */
-    private LinkedList<PlannerEvent> insertUntaggedTaskHelper(PlannerTask task, Iterator<IInterval> possibleIterator) {
-        LinkedList<PlannerEvent> assignments = new LinkedList<>();
-        long desiredDuration = task.getDurationInMillis() + spaceBetweenTasks;
-
-        // Iterate over possible intervals.
-        while (possibleIterator.hasNext()) {
-            LongInterval possibleInterval = (LongInterval) possibleIterator.next();
-
-            // Find first possible starting time in possible interval
-            long startTime = getSpacedStartTime(possibleInterval);
-
-            // Check if tagged interval is long enough.
-            long possibleDuration = possibleInterval.getEnd() - startTime;
-            if (possibleDuration >= desiredDuration) {
-                PlannerEvent toAdd = new PlannerEvent(task, startTime, startTime + desiredDuration);
-                assignments.add(toAdd);
-                occupiedTree.add(new OccupiedInterval(toAdd));
-                return assignments;
-            }
+    public List<PlannerEvent> getTaskEvents(long startDate, long endDate) {
+        List<PlannerEvent> taskEvents = new ArrayList<>();
+        lockDays(startDate, endDate, false);
+        try {
+            occupied.forEachOverlap(startDate, endDate, (start, end, event) -> {
+                if (event != null && event.getParentTask() != null) {
+                    taskEvents.add(event);
+                }
+                return true;
+            });
+        } finally {
+            unlockDays(startDate, endDate, false);
         }
-        return assignments;
+        return taskEvents;
     }
 
     /**
-     * Helper function: Inserts a task into the calendar at the first possible time that doesn't collide. Returns events it was assigned to.
+     * Returns the events of tasks in this calendar that an event at [startDate, endDate] would collide with, including
+     * the space the tasks keep around them, by order of their start time.
      */
-    private LinkedList<PlannerEvent> insertTaskHelper(PlannerTask task, Iterator<IInterval> possibleIterator, IntervalTree collisionTree) {
-        LinkedList<PlannerEvent> assignments = new LinkedList<>();
-        long desiredDuration = task.getDurationInMillis() + spaceBetweenTasks;
-
-        // Iterate over possible intervals.
-        while (possibleIterator.hasNext()) {
-            LongInterval possibleInterval = (LongInterval) possibleIterator.next();
-
-            // Find first possible starting time in possible interval
-            long startTime = getSpacedStartTime(possibleInterval);
+    public List<PlannerEvent> getCollidingTaskEvents(long startDate, long endDate) {
+        return getTaskEvents(startDate - MIN_SPACE_IN_MILLIS + 1, endDate + spaceBetweenTasks - 1);
+    }
 
-            // Check if tagged interval is long enough.
-            long possibleDuration = possibleInterval.getEnd() - startTime;
-            if (possibleDuration < desiredDuration) {
-                continue;
+    /**
+     * Returns all the events the given task was assigned to in this calendar, by order of their start time.
+     */
+    public List<PlannerEvent> getTaskEvents(PlannerTask task) {
+        // The events of a task end by its deadline (with the space after them).
+        List<PlannerEvent> taskEvents = new ArrayList<>();
+        for (PlannerEvent event : getTaskEvents(startTime, Math.min(task.getDeadline() + spaceBetweenTasks, getEndTime()))) {
+            if (event.getParentTask() == task) {
+                taskEvents.add(event);
             }
+        }
+        return taskEvents;
+    }
 
-            // Find collisions in possible interval.
-            Collection<IInterval> collisions = mergeOverlapping(collisionTree.overlap(possibleInterval));
-            if (collisions.isEmpty()) {
-                // The tagged interval is free and its long enough so we can push here.
-                PlannerEvent toAdd = new PlannerEvent(task, startTime, startTime + desiredDuration);
-                assignments.add(toAdd);
-                occupiedTree.add(new OccupiedInterval(toAdd));
-                return assignments;
-            }
+    /**
+     * Removes the given event from this calendar. Return true if found.
+     */
+    public boolean removeEvent(PlannerEvent event) {
+        // The bitmap is fixed from the events around the minutes at the edges, so lock them too.
+        long start = event.getStartTime() - MinuteBitmap.MINUTE_IN_MILLIS, end = event.getEndTime() + MinuteBitmap.MINUTE_IN_MILLIS;
+        lockDays(start, end, true);
+        try {
+            return release(event.getStartTime(), event.getEndTime(), event);
+        } finally {
+            unlockDays(start, end, true);
+        }
+    }
 
-            //  Check if we can push task in between a pair of collision intervals.
-            for (IInterval collision : collisions) {
-                PlannerEvent possibleEvent = new PlannerEvent(task, startTime, startTime + desiredDuration);
-                OccupiedInterval toCheck = new OccupiedInterval(possibleEvent);
-                if (toCheck.irBefore(collision)) {
-                    // Found free interval before some event/task so we can push here.
-                    assignments.add(possibleEvent);
-                    occupiedTree.add(toCheck);
-                    return assignments;
-                }
+    /**
+     * Enables or disables bitmap mode. In bitmap mode the calendar also keeps a bitmap of its occupied minutes and tasks
+     * are placed by searching it for a long enough run of free minutes (so they start on whole minutes).
+     */
+    public void setBitmapMode(boolean enabled) {
+        lockStructure();
+        try {
+            bitmapMode = enabled;
+            if (!enabled) {
+                occupiedMinutes = null;
             }
+        } finally {
+            unlockStructure();
         }
-        return assignments;
     }
 
     /**
-     * Helper function: Returns the tag if it exists in this calendar. Return null if name is null or NO_TAG.
+     * Returns true if this calendar is in bitmap mode.
      */
-    private PlannerTag safeGetTag(String tagName) {
-        if (tagName == null || tagName.equals(PlannerObject.NO_TAG)) {
-            return null;
-        }
-        return tags.get(tagName);
+    public boolean isBitmapMode() {
+        return bitmapMode;
     }
 
     /**
-     * Helper function: Returns true if the given date is within the max range from the start time (30 days).
+     * Returns a snapshot of this calendar in O(1). The snapshot and this calendar can then be changed independently, and
+     * they share the days of the occupancy index that neither of them changed. Tags are shared as well.
      */
-    private boolean isValidDate(long time) {
-        long diffInMillis = time - startTime;
-        return diffInMillis >= 0 &&
-                TimeUnit.DAYS.convert(diffInMillis, TimeUnit.MILLISECONDS) <= MAX_DAYS;
+    public PlannerCalendar snapshot() {
+        lockStructure();
+        try {
+            return new PlannerCalendar(this);
+        } finally {
+            unlockStructure();
+        }
     }
 
-    // Inner classes
+    /**
+     * Makes this calendar hold the same events and settings as the given snapshot (such as a changed snapshot of it) in
+     * O(1). Returns true if successful (in concurrent mode the snapshot has to keep its events in day buckets).
+     */
+    public boolean restore(PlannerCalendar snapshot) {
+        return restore(snapshot, false, 0);
+    }
 
     /**
-     * Iterator the iterates over the non-occupied time intervals in this calendar.
+     * Restores the given snapshot like restore, but only if the fingerprint of this calendar is still the given one (such
+     * as the fingerprint of the snapshot when it was taken), so changes made to this calendar since aren't overwritten.
+     * The check and the restore are atomic in concurrent mode. Returns true if successful.
      */
-    private class FreeTimeIterator implements Iterator<IInterval> {
+    public boolean restoreIfUnchanged(PlannerCalendar snapshot, long fingerprint) {
+        return restore(snapshot, true, fingerprint);
+    }
 
-        private final Iterator<IInterval> occupiedIt;
-        private long startTime, lastEndTime;
-        private LongInterval nextOccupied;
-        private boolean oneMore;
+    /**
+     * Enables or disables concurrent mode. In concurrent mode the calendar can be used from several threads: every day
+     * has a read/write lock (striped), queries only lock the days they look at for reading and changes only lock the
+     * days they touch for writing, so threads that work on different days don't block each other. Tasks are placed
+     * optimistically, by finding a time and checking it again under the locks of its days. Changes to the whole calendar
+     * (horizon, start time, snapshots, bitmap mode) block all other operations. Needs an index with day buckets (the
+     * default one), and should be set before the calendar is shared between threads. Returns true if successful.
+     */
+    public boolean setConcurrentMode(boolean enabled) {
+        if (!enabled) {
+            // The free gaps and the bitmap are built again without shards when needed.
+            locks = null;
+            freeGaps = null;
+            occupiedMinutes = null;
+            return true;
+        }
+        if (undoLog != null) {
+            Log.e(TAG, "Cannot enable concurrent mode during a transaction");
+            return false;
+        }
+        if (!(occupied instanceof DayBucketedOccupancyIndex)) {
+            Log.e(TAG, "Concurrent mode needs an index with day buckets");
+            return false;
+        }
 
-        /**
-         * Constructor for this iterator. Generates free time from the enclosing class' Interval Tree.
-         */
-        public FreeTimeIterator() {
+        if (locks == null) {
+            locks = new DayStripedLocks(DayStripedLocks.DEFAULT_STRIPES);
+            freeGaps = null;
+            occupiedMinutes = null;
+        }
+        return true;
+    }
 
-            occupiedIt = occupiedTree.iterator();
-            startTime = PlannerCalendar.this.startTime + spaceBetweenTasks;
+    /**
+     * Returns true if this calendar is in concurrent mode.
+     */
+    public boolean isConcurrentMode() {
+        return locks != null;
+    }
 
-            oneMore = true;
-            if (occupiedIt.hasNext()) {
-                nextOccupied = (LongInterval) occupiedIt.next();
-            } else {
-                lastEndTime = startTime;
-                nextOccupied = null;
-            }
+    /**
+     * Starts a transaction: the following insertions and removals of events and tasks can then be kept together with
+     * commit or undone together with rollback, in O(changes). Meanwhile the horizon and the start time can't change and
+     * snapshots can't be restored. Transactions can't be nested and aren't supported in concurrent mode.
+     * Returns true if successful.
+     */
+    public boolean beginTransaction() {
+        if (undoLog != null) {
+            Log.e(TAG, "A transaction is already in progress");
+            return false;
         }
-
-        /**
-         * Returns true if the iteration has more elements.
-         */
-        @Override
-        public boolean hasNext() {
-            return nextOccupied != null || oneMore;
+        if (locks != null) {
+            Log.e(TAG, "Transactions are not supported in concurrent mode");
+            return false;
         }
 
-        // On-the-fly interval merging
-
-        /**
-         * Helper function: On-the-fly interval merging of free time intervals.
-         */
-        private LongInterval getNextOccupied() {
-            LongInterval previous = nextOccupied;
-            if (!occupiedIt.hasNext()) {
-                nextOccupied = null;
-                lastEndTime = previous.getEnd() + spaceBetweenTasks;
-                return previous;
-            }
-
-            while (occupiedIt.hasNext()) {
-                nextOccupied = (LongInterval) occupiedIt.next();
-                if (nextOccupied.irAfter(nextOccupied)) {
-                    return previous;
-                } else {
-                    previous = new LongInterval(previous.getStart(), nextOccupied.getEnd());
-                }
-            }
+        undoLog = new UndoLog();
+        return true;
+    }
 
-            return nextOccupied;
+    /**
+     * Keeps the changes made since the transaction started and ends it. Returns true if a transaction was in progress.
+     */
+    public boolean commit() {
+        if (undoLog == null) {
+            Log.e(TAG, "No transaction to commit");
+            return false;
         }
 
-        /**
-         * Returns the next element in the iteration.
-         */
-        @Override
-        public IInterval next() {
-            while (true) {
-                if (nextOccupied == null) {
-                    if (oneMore) {
-                        oneMore = false;
-                        return new LongInterval(lastEndTime, PlannerCalendar.this.startTime + TimeUnit.DAYS.toMillis(MAX_DAYS));
-                    }
-                    return null;
-                }
+        undoLog = null;
+        return true;
+    }
 
-                LongInterval current = getNextOccupied();
-                if (current == null) {
-                    return null;
-                }
+    /**
+     * Undoes the changes made since the transaction started (from the last one) and ends it. Returns true if a
+     * transaction was in progress.
+     */
+    public boolean rollback() {
+        if (undoLog == null) {
+            Log.e(TAG, "No transaction to roll back");
+            return false;
+        }
 
-                long endTime = current.getStart() - MIN_SPACE_IN_MILLIS;
-                if (endTime > startTime) {
-                    LongInterval free = new LongInterval(startTime, endTime);
-                    startTime = current.getEnd() + spaceBetweenTasks;
-                    return free;
-                }
+        // End the transaction first, so undoing the changes isn't logged.
+        UndoLog changes = undoLog;
+        undoLog = null;
+        changes.undo((wasAdded, start, end, event) -> {
+            if (wasAdded) {
+                release(start, end, event);
+            } else {
+                occupy(start, end, event);
             }
-        }
+        });
+        return true;
     }
 
     /**
-     * Closed interval that contains an event.
+     * Returns true if a transaction is in progress.
      */
-    private static class OccupiedInterval extends LongInterval {
+    public boolean isInTransaction() {
+        return undoLog != null;
+    }
+
+    /**
+     * Returns the amount of answers of isIntervalAvailable and the tag checks that were found in their cache.
+     */
+    public long getCacheHits() {
+        return answers.getHits();
+    }
+
+    /**
+     * Returns the amount of answers of isIntervalAvailable and the tag checks that had to be computed.
+     */
+    public long getCacheMisses() {
+        return answers.getMisses();
+    }
+
+    /**
+     * Returns a stable 64-bit fingerprint of everything that placing tasks in this calendar depends on: its start time,
+     * horizon, space between tasks, mode, occupied intervals and tags. Any change to them changes it (but for the
+     * rare collisions of 64-bit hashes). Takes O(1) for the intervals and O(intervals of the tags) for the tags.
+     */
+    public long getFingerprint() {
+        lockStructureShared();
+        try {
+            return computeFingerprint();
+        } finally {
+            unlockStructureShared();
+        }
+    }
+
+    /**
+     * Returns true if this calendar contains a tag with the given name.
+     */
+    public boolean containsTag(String tagName) {
+        return tags.get(tagName) != null;
+    }
+
+    /**
+     * Returns true if this calendar contains a tag with the given name.
+     */
+    public boolean containsTag(PlannerTag tag) {
+        return containsTag(tag.getTagName());
+    }
+
+    /**
+     * Attempts to add the given tag to the calendar. Returns true if successful (if name wasn't given already).
+     */
+    public boolean addTag(PlannerTag tag) {
+        // Checked and added at once, since tags may be added concurrently.
+        return tag.getTagName() != null && tags.add(tag);
+    }
+
+    /**
+     * Removes the tag with the given name from this calendar. Return true if found.
+     */
+    public boolean removeTag(String tagName) {
+        return tags.remove(tagName);
+    }
+
+    /**
+     * Renames the tag with the given name, if there is no tag with the new name. The calendar gets a renamed copy of the
+     * tag, so snapshots and other calendars that share the tag keep it as it was. Tasks that still carry the old name
+     * get the copy (until another tag gets the old name). Returns the copy, or null if not renamed.
+     */
+    public PlannerTag renameTag(String oldName, String newName) {
+        return tags.rename(oldName, newName);
+    }
+
+    /**
+     * Returns the tag with the given name from this calendar. Return null if not found.
+     */
+    public PlannerTag getTag(String tagName) {
+        return tags.get(tagName);
+    }
+
+    /**
+     * Returns the tag of the given task from this calendar, found by the id of its tag name. Return null if not found.
+     */
+    public PlannerTag getTag(PlannerTask task) {
+        return tags.get(task.getTagId());
+    }
+
+    /**
+     * Returns the names of all the tags in this calendar.
+     */
+    public List<String> getTagNames() {
+        return tags.getNames();
+    }
+
+    /**
+     * Returns all the tags in this calendar.
+     */
+    public List<PlannerTag> getTags() {
+        return tags.getTags();
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Adds the given event to the occupancy index (and to the bitmap in bitmap mode). Returns true if successful.
+     */
+    private boolean occupy(long start, long end, PlannerEvent event) {
+        if (!occupied.add(start, end, event)) {
+            return false;
+        }
+        if (undoLog != null) {
+            undoLog.recordAdd(start, end, event);
+        }
+        answers.touchDays(dayOf(start), dayOf(end));
+        occupancyFingerprint.addAndGet(Fingerprints.ofInterval(start, end));
+
+        // The caller holds the days of the event for writing, which guard their shards of the free gaps and the bitmap.
+        if (freeGaps != null) {
+            freeGaps.occupy(start, end);
+        }
+        if (occupiedMinutes != null) {
+            occupiedMinutes.setTouching(start, end);
+        }
+        return true;
+    }
+
+    /**
+     * Helper function: Removes the given event from the occupancy index (and from the bitmap in bitmap mode). Returns true if found.
+     */
+    private boolean release(long start, long end, PlannerEvent event) {
+        if (!occupied.remove(start, end, event)) {
+            return false;
+        }
+        if (undoLog != null) {
+            undoLog.recordRemove(start, end, event);
+        }
+        answers.touchDays(dayOf(start), dayOf(end));
+        occupancyFingerprint.addAndGet(-Fingerprints.ofInterval(start, end));
+
+        if (freeGaps != null) {
+            freeGaps.release(Math.max(start, startTime), Math.min(end, getEndTime()), occupied);
+        }
+        if (occupiedMinutes != null) {
+            // Other events may still occupy the minutes at the edges of the removed one.
+            ShardedMinuteBitmap minutes = occupiedMinutes;
+            minutes.clearTouching(start, end);
+            long firstMinute = minutes.timeOf((int) minutes.minuteOf(start));
+            long lastMinute = minutes.timeOf((int) minutes.minuteOf(end) + 1) - 1;
+            occupied.forEachOverlap(firstMinute, lastMinute, (otherStart, otherEnd, other) -> {
+                minutes.setTouching(otherStart, otherEnd);
+                return true;
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Helper function: Assigns the given duration of the task to the time from the given start. In concurrent mode the
+     * time until checkedEnd (and the space before the start) is checked again under the locks of its days, since it was
+     * found without them, and null is returned if it was taken in the meantime. Returns the events the task was assigned to.
+     */
+    private LinkedList<PlannerEvent> placeTask(PlannerTask task, long startTime, long duration, long checkedEnd) {
+        long endTime = startTime + duration + spaceBetweenTasks;
+        long checkedStart = startTime - spaceBetweenTasks + 1;
+        lockDays(checkedStart, checkedEnd, true);
+        try {
+            if (locks != null && occupied.anyOverlap(checkedStart, checkedEnd)) {
+                return null;
+            }
+
+            LinkedList<PlannerEvent> assignments = new LinkedList<>();
+            PlannerEvent toAdd = new PlannerEvent(task, startTime, endTime);
+            assignments.add(toAdd);
+            occupy(startTime, endTime, toAdd);
+            return assignments;
+        } finally {
+            unlockDays(checkedStart, checkedEnd, true);
+        }
+    }
+
+    /**
+     * Helper function: Inserts a task that may be divided into sessions (see insertTask). Called with the structure locked
+     * for sharing.
+     */
+    private List<PlannerEvent> insertSessions(PlannerTask task, OccupancyQuery forbidden) {
+        long deadline = Math.min(task.getDeadline(), getEndTime());
+        if ((long) task.getMaxDivisionsNumber() * task.getMaxSessionTimeInMinutes() < task.getDurationInMinutes()) {
+            return new LinkedList<>();
+        }
+
+        long[] sessions = new long[2 * task.getMaxDivisionsNumber()];
+        while (true) {
+            // The free time before the deadline has to cover the task, whatever the sessions are.
+            ShardedFreeGaps gaps = freeGaps();
+            if (gaps.freeTimeBefore(deadline) < task.getDurationInMillis()) {
+                return new LinkedList<>();
+            }
+            int count = findSessions(task, forbidden, gaps, deadline, sessions);
+            if (count < 0) {
+                return new LinkedList<>();
+            }
+
+            // In concurrent mode a session may have been taken in the meantime, then the placed ones are removed and the search is retried.
+            LinkedList<PlannerEvent> assignments = new LinkedList<>();
+            for (int i = 0; i < count; i++) {
+                long startTime = sessions[2 * i], duration = sessions[2 * i + 1];
+                LinkedList<PlannerEvent> session = placeTask(task, startTime, duration,
+                        startTime + duration + spaceBetweenTasks + MIN_SPACE_IN_MILLIS - 1);
+                if (session == null) {
+                    for (PlannerEvent placed : assignments) {
+                        removeEvent(placed);
+                    }
+                    assignments = null;
+                    break;
+                }
+                assignments.addAll(session);
+            }
+            if (assignments != null) {
+                return assignments;
+            }
+        }
+    }
+
+    /**
+     * Helper function: Finds the sessions of a task that may be divided in the first free gaps where they fit and don't
+     * collide with the forbidden intervals (if not null), so that every session ends by the deadline. Writes them into
+     * the given array as {start0, duration0, start1, duration1, ...}. Returns their amount, or -1 if the task doesn't fit.
+     */
+    private int findSessions(PlannerTask task, OccupancyQuery forbidden, ShardedFreeGaps gaps, long deadline, long[] sessions) {
+        int maxSessions = task.getMaxDivisionsNumber();
+        long maxSession = task.getMaxSessionTimeInMinutes() * MinuteBitmap.MINUTE_IN_MILLIS;
+        long remaining = task.getDurationInMillis();
+        int count = 0;
+
+        long[] gap = new long[2];
+        long shortest = getShortestSession(remaining, maxSessions, maxSession);
+        boolean found = gaps.firstFit(startTime, 2 * spaceBetweenTasks + shortest + MIN_SPACE_IN_MILLIS, gap);
+        while (found && gap[0] + spaceBetweenTasks + shortest <= deadline) {
+            // A session block has to end before the minimal space from the block after the gap, and the session by the deadline.
+            long startTime = gap[0] + spaceBetweenTasks;
+            long lastEnd = Math.min(gap[1] - MIN_SPACE_IN_MILLIS, deadline + spaceBetweenTasks);
+            while (remaining > 0) {
+                if (forbidden != null) {
+                    startTime = findFreeStart(startTime, lastEnd - shortest - spaceBetweenTasks, shortest + spaceBetweenTasks,
+                            forbidden, MIN_SPACE_IN_MILLIS);
+                    if (startTime < 0) {
+                        break;
+                    }
+                }
+
+                long sessionEnd = forbidden == null ? lastEnd : Math.min(lastEnd, forbidden.firstStartAtOrAfter(startTime) - 1);
+                long duration = Math.min(Math.min(remaining, maxSession), sessionEnd - startTime - spaceBetweenTasks);
+                duration -= duration % MinuteBitmap.MINUTE_IN_MILLIS;
+                if (duration < shortest) {
+                    break;
+                }
+
+                sessions[2 * count] = startTime;
+                sessions[2 * count + 1] = duration;
+                count++;
+                remaining -= duration;
+                startTime += duration + 2 * spaceBetweenTasks;
+                shortest = getShortestSession(remaining, maxSessions - count, maxSession);
+            }
+
+            if (remaining == 0) {
+                return count;
+            }
+            found = gaps.firstFit(gap[0] + 1, 2 * spaceBetweenTasks + shortest + MIN_SPACE_IN_MILLIS, gap);
+        }
+        return -1;
+    }
+
+    /**
+     * Helper function: Returns the shortest session worth placing for the remaining duration of a task, so the sessions
+     * left after it can still hold the rest of it.
+     */
+    private static long getShortestSession(long remaining, int sessionsLeft, long maxSession) {
+        return Math.max(Math.min(remaining, MIN_SESSION_IN_MILLIS), remaining - (sessionsLeft - 1) * maxSession);
+    }
 
-        public PlannerEvent event;
+    /**
+     * Helper function: Makes this calendar hold the same events and settings as the given snapshot. If checked, only
+     * does so if the fingerprint of this calendar is the given one. Returns true if successful.
+     */
+    private boolean restore(PlannerCalendar snapshot, boolean checked, long fingerprint) {
+        if (undoLog != null) {
+            Log.e(TAG, "Cannot restore a snapshot during a transaction");
+            return false;
+        }
+        lockStructure();
+        try {
+            if (locks != null && !(snapshot.occupied instanceof DayBucketedOccupancyIndex)) {
+                Log.e(TAG, "Cannot restore a snapshot without day buckets in concurrent mode");
+                return false;
+            }
+            if (checked && computeFingerprint() != fingerprint) {
+                Log.e(TAG, "Cannot restore a snapshot, the calendar changed since it was taken");
+                return false;
+            }
+
+            copyFrom(snapshot);
+            return true;
+        } finally {
+            unlockStructure();
+        }
+    }
+
+    /**
+     * Helper function: Returns the fingerprint of this calendar (see getFingerprint). Called with the structure locked.
+     */
+    private long computeFingerprint() {
+        long fingerprint = Fingerprints.combine(startTime, horizonDays);
+        fingerprint = Fingerprints.combine(fingerprint, spaceBetweenTasks);
+        fingerprint = Fingerprints.combine(fingerprint, bitmapMode ? 1 : 0);
+        fingerprint = Fingerprints.combine(fingerprint, occupancyFingerprint.get());
+        return Fingerprints.combine(fingerprint, Fingerprints.ofTags(tags.getTags()));
+    }
+
+    /**
+     * Helper function: Locks the whole calendar in concurrent mode.
+     */
+    private void lockStructure() {
+        if (locks != null) {
+            locks.lockStructure(true);
+        }
+    }
+
+    /**
+     * Helper function: Unlocks the whole calendar in concurrent mode.
+     */
+    private void unlockStructure() {
+        if (locks != null) {
+            locks.unlockStructure(true);
+        }
+    }
+
+    /**
+     * Helper function: Locks the structure of the calendar for sharing in concurrent mode.
+     */
+    private void lockStructureShared() {
+        if (locks != null) {
+            locks.lockStructure(false);
+        }
+    }
+
+    /**
+     * Helper function: Unlocks the structure of the calendar for sharing in concurrent mode.
+     */
+    private void unlockStructureShared() {
+        if (locks != null) {
+            locks.unlockStructure(false);
+        }
+    }
+
+    /**
+     * Helper function: Locks the days that [start, end] touches for reading or writing in concurrent mode.
+     */
+    private void lockDays(long start, long end, boolean write) {
+        if (locks != null) {
+            locks.lockStructure(false);
+            locks.lockDays(dayOf(start), dayOf(end), write);
+        }
+    }
+
+    /**
+     * Helper function: Unlocks the days that [start, end] touches for reading or writing in concurrent mode.
+     */
+    private void unlockDays(long start, long end, boolean write) {
+        if (locks != null) {
+            locks.unlockDays(dayOf(start), dayOf(end), write);
+            locks.unlockStructure(false);
+        }
+    }
+
+    /**
+     * Helper function: Returns the day of the given time from the start of the calendar, clipped to [-1, horizonDays].
+     */
+    private int dayOf(long time) {
+        long day = Math.floorDiv(time - startTime, TimeUnit.DAYS.toMillis(1));
+        return (int) Math.max(-1, Math.min(day, horizonDays));
+    }
+
+    /**
+     * Helper function: Returns an empty bitmap of all the minutes in this calendar.
+     */
+    private MinuteBitmap newMinuteBitmap() {
+        return new MinuteBitmap(startTime, horizonDays * MINUTES_IN_DAY);
+    }
+
+    /**
+     * Helper function: Returns a bitmap of the minutes that the events in the calendar touch, sharded by day in
+     * concurrent mode.
+     */
+    private ShardedMinuteBitmap newOccupiedMinutes() {
+        int size = horizonDays * MINUTES_IN_DAY;
+        ShardedMinuteBitmap minutes = locks == null ? new ShardedMinuteBitmap(startTime, size) :
+                new ShardedMinuteBitmap(startTime, size, MINUTES_IN_DAY, locks);
+        occupied.forEachOverlap(startTime, getEndTime(), (start, end, event) -> {
+            minutes.setTouching(start, end);
+            return true;
+        });
+        return minutes;
+    }
+
+    /**
+     * Helper function: Returns the bitmap of occupied minutes, building it if needed (in bitmap mode). Called without
+     * any day locked (see freeGaps).
+     */
+    private ShardedMinuteBitmap occupiedMinutes() {
+        ShardedMinuteBitmap minutes = occupiedMinutes;
+        if (minutes != null) {
+            return minutes;
+        }
+        if (locks == null) {
+            occupiedMinutes = minutes = newOccupiedMinutes();
+            return minutes;
+        }
+
+        synchronized (locks) {
+            if (occupiedMinutes == null) {
+                locks.lockAllDays(false);
+                try {
+                    occupiedMinutes = newOccupiedMinutes();
+                } finally {
+                    locks.unlockAllDays(false);
+                }
+            }
+            return occupiedMinutes;
+        }
+    }
+
+    /**
+     * Helper function: Returns the free gap index, building it from the occupancy index if needed (sharded by day in
+     * concurrent mode). In concurrent mode it is built with all the days locked for reading, so no change to the events
+     * is made while it is built and every change after it also changes it. Called without any day locked.
+     */
+    private ShardedFreeGaps freeGaps() {
+        ShardedFreeGaps gaps = freeGaps;
+        if (gaps != null) {
+            return gaps;
+        }
+        if (locks == null) {
+            freeGaps = gaps = newFreeGaps();
+            return gaps;
+        }
+
+        synchronized (locks) {
+            if (freeGaps == null) {
+                locks.lockAllDays(false);
+                try {
+                    freeGaps = newFreeGaps();
+                } finally {
+                    locks.unlockAllDays(false);
+                }
+            }
+            return freeGaps;
+        }
+    }
+
+    /**
+     * Helper function: Returns a free gap index built from the occupancy index, sharded by day in concurrent mode.
+     */
+    private ShardedFreeGaps newFreeGaps() {
+        ShardedFreeGaps gaps = locks == null ? new ShardedFreeGaps(startTime, getEndTime()) :
+                new ShardedFreeGaps(startTime, getEndTime(), TimeUnit.DAYS.toMillis(1), occupied, locks);
+        occupied.forEachOverlap(startTime, getEndTime(), (start, end, event) -> {
+            gaps.occupy(start, end);
+            return true;
+        });
+        return gaps;
+    }
+
+    /**
+     * Helper function: Makes this calendar share the state of the given one. The occupancy index is copied on write and
+     * the free gaps and the bitmap are rebuilt when needed, so later changes to either calendar don't affect the other.
+     */
+    private void copyFrom(PlannerCalendar other) {
+        startTime = other.startTime;
+        spaceBetweenTasks = other.spaceBetweenTasks;
+        horizonDays = other.horizonDays;
+        occupied = other.occupied.snapshot();
+        freeGaps = null;
+        bitmapMode = other.bitmapMode;
+        occupiedMinutes = null;
+        tags = other.tags.copy();
+        answers = new AvailabilityCache(horizonDays, AvailabilityCache.DEFAULT_CAPACITY);
+        occupancyFingerprint = new AtomicLong(other.occupancyFingerprint.get());
+    }
+
+    /**
+     * Helper function: Removes the fingerprint of an entry that was dropped from the occupancy index in bulk. Returns true.
+     */
+    private boolean forgetDropped(long start, long end, PlannerEvent event) {
+        occupancyFingerprint.addAndGet(-Fingerprints.ofInterval(start, end));
+        return true;
+    }
+
+    /**
+     * Helper function: Returns the bitmap of the minutes that are neither occupied nor forbidden by the given tag (may be null).
+     */
+    private MinuteBitmap getAllowedMinutes(PlannerTag tag) {
+        MinuteBitmap allowed = newMinuteBitmap();
+        allowed.setAll();
+        occupiedMinutes().removeFrom(allowed);
+        if (tag != null) {
+            MinuteBitmap forbidden = newMinuteBitmap();
+            IntervalSet mask = tag.getForbiddenMask(startTime, getEndTime());
+            for (int i = 0; i < mask.size(); i++) {
+                forbidden.setTouching(mask.getStart(i), mask.getEnd(i));
+            }
+            allowed.andNot(forbidden);
+        }
+        return allowed;
+    }
+
+    /**
+     * Helper function: Returns the last time the task can start at, so that it ends by its deadline and its block (with the space after it) ends within this calendar.
+     */
+    private long getLastTaskStart(PlannerTask task) {
+        long desiredDuration = task.getDurationInMillis() + spaceBetweenTasks;
+        return Math.min(task.getDeadline() - task.getDurationInMillis(), getEndTime() - desiredDuration);
+    }
+
+    /**
+     * Helper function: Returns the first start of the task from the given time in the free preferred time of the given
+     * tag, or -1 if there is none by lastStartTime. The space before the task starts at the given time at the earliest.
+     */
+    private long findPreferredTaskStart(PlannerTask task, PlannerTag tag, long from, long lastStartTime) {
+        IntervalSet preferred = tag.getPreferredMask(startTime, getEndTime());
+        if (bitmapMode) {
+            // Only minutes that lie entirely in a preferred interval are allowed (including the space before the task).
+            MinuteBitmap allowed = newMinuteBitmap();
+            for (int i = 0; i < preferred.size(); i++) {
+                allowed.setInside(preferred.getStart(i), preferred.getEnd(i));
+            }
+            return findBitmapTaskStart(task, occupiedMinutes().removeFrom(allowed), from, lastStartTime);
+        }
+        // Only the days that the search looks at are locked, each while it's looked at.
+        return findTaskStart(task, preferred, new DayLockedQuery(), spaceBetweenTasks, from, lastStartTime);
+    }
+
+    /**
+     * Helper function: Returns the start of the first run of allowed minutes from the given time that fits the task and the space before it and starts the task by lastStartTime, or -1 if there is none.
+     */
+    private long findBitmapTaskStart(PlannerTask task, MinuteBitmap allowed, long from, long lastStartTime) {
+        long desiredDuration = task.getDurationInMillis() + spaceBetweenTasks;
+
+        // The run covers the space before the task and every minute the closed interval of the task touches.
+        int spaceMinutes = (int) ((spaceBetweenTasks + MinuteBitmap.MINUTE_IN_MILLIS - 1) / MinuteBitmap.MINUTE_IN_MILLIS);
+        int runLength = spaceMinutes + (int) (desiredDuration / MinuteBitmap.MINUTE_IN_MILLIS) + 1;
+        long lastRunStart = allowed.minuteOf(lastStartTime) - spaceMinutes;
+        if (lastRunStart < 0) {
+            return -1;
+        }
+
+        int firstRunStart = (int) Math.max(0, Math.min(allowed.minuteOf(from + MinuteBitmap.MINUTE_IN_MILLIS - 1), allowed.size()));
+        int runStart = allowed.findRun(firstRunStart, (int) Math.min(lastRunStart, allowed.size()), runLength);
+        return runStart < 0 ? -1 : allowed.timeOf(runStart + spaceMinutes);
+    }
+
+    /**
+     * Helper function: Returns the first time from the given one that is at least spaceBetweenTasks after every one of the given events that started before it.
+     */
+    private long getSpacedStartTime(OccupancyQuery events, long time) {
+        long maxEnd = events.maxEndOverlapping(time - spaceBetweenTasks + 1, time);
+        while (maxEnd != Long.MIN_VALUE) {
+            time = maxEnd + spaceBetweenTasks;
+            maxEnd = events.maxEndOverlapping(time - spaceBetweenTasks + 1, time);
+        }
+        return time;
+    }
+
+    /**
+     * Helper function: Returns the first start in [from, lastStart] where [start, start + duration] doesn't collide and
+     * is at least space after the collisions before it. Returns -1 if there is none.
+     */
+    private static long findFreeStart(long from, long lastStart, long duration, OccupancyQuery collisions, long space) {
+        long start = from;
+        while (start <= lastStart) {
+            long maxEnd = collisions.maxEndOverlapping(start - space + 1, start + duration);
+            if (maxEnd == Long.MIN_VALUE) {
+                return start;
+            }
+            start = maxEnd + space;
+        }
+        return -1;
+    }
+
+    /**
+     * Helper function: Returns the start of the task in the first free gap from the given time where it fits and doesn't collide with the forbidden intervals (if not null), or -1 if there is none by lastStartTime.
+     */
+    private long findFreeGapTaskStart(PlannerTask task, OccupancyQuery forbidden, long from, long lastStartTime) {
+        long desiredDuration = task.getDurationInMillis() + spaceBetweenTasks;
+
+        // A gap has to fit the space after the block before it, the task and the minimal space before the block after it.
+        long neededLength = spaceBetweenTasks + desiredDuration + MIN_SPACE_IN_MILLIS;
+        long[] gap = new long[2];
+        ShardedFreeGaps gaps = freeGaps();
+        boolean found = gaps.firstFit(from, neededLength, gap);
+        while (found && gap[0] + spaceBetweenTasks <= lastStartTime) {
+            long startTime = findGapTaskStart(gap[0], gap[1], desiredDuration, forbidden, lastStartTime);
+            if (startTime >= 0) {
+                return startTime;
+            }
+            found = gaps.firstFit(gap[0] + 1, neededLength, gap);
+        }
+        return -1;
+    }
+
+    /**
+     * Helper function: Returns the start of the task in the shortest (or longest) free gap where it fits and doesn't
+     * collide with the forbidden intervals (if not null), or -1 if there is none by lastStartTime. The earliest gap wins
+     * among equals.
+     */
+    private long findSizedGapTaskStart(PlannerTask task, OccupancyQuery forbidden, long lastStartTime, boolean shortestFirst) {
+        long desiredDuration = task.getDurationInMillis() + spaceBetweenTasks;
+        long neededLength = spaceBetweenTasks + desiredDuration + MIN_SPACE_IN_MILLIS;
+        long[] found = {-1};
+        freeGaps().forEachByLength(neededLength, shortestFirst, (start, end) -> {
+            if (start + spaceBetweenTasks <= lastStartTime) {
+                found[0] = findGapTaskStart(start, end, desiredDuration, forbidden, lastStartTime);
+            }
+            return found[0] < 0;
+        });
+        return found[0];
+    }
+
+    /**
+     * Helper function: Returns the first start in the free gap (start, end), which is long enough, for a block of the
+     * given duration that doesn't collide with the forbidden intervals (if not null), or -1 if there is none by
+     * lastStartTime.
+     */
+    private long findGapTaskStart(long start, long end, long desiredDuration, OccupancyQuery forbidden, long lastStartTime) {
+        long startTime = start + spaceBetweenTasks;
+        if (forbidden == null) {
+            return startTime;
+        }
+        long lastInGap = Math.min(end - MIN_SPACE_IN_MILLIS - desiredDuration, lastStartTime);
+        return findFreeStart(startTime, lastInGap, desiredDuration, forbidden, MIN_SPACE_IN_MILLIS);
+    }
+
+    /**
+     * Helper function: Returns the first possible start of the task in the possible intervals that doesn't collide and keeps the space before it from the given time, or -1 if there is none by lastStartTime.
+     */
+    private long findTaskStart(PlannerTask task, IntervalSet possible, OccupancyQuery collisions, long collisionSpace,
+                               long from, long lastStartTime) {
+        long desiredDuration = task.getDurationInMillis() + spaceBetweenTasks;
+
+        // Iterate over possible intervals.
+        for (int i = 0; i < possible.size(); i++) {
+            // Find first possible starting time in possible interval (possible intervals may exceed the calendar).
+            long startTime = Math.max(possible.getStart(i), from + spaceBetweenTasks);
+            long lastInInterval = Math.min(possible.getEnd(i) - desiredDuration, lastStartTime);
+            if (startTime > lastInInterval) {
+                continue;
+            }
+
+            // Find first time in possible interval that doesn't collide.
+            startTime = findFreeStart(getSpacedStartTime(collisions, startTime), lastInInterval, desiredDuration, collisions,
+                    collisionSpace);
+            if (startTime >= 0) {
+                return startTime;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Helper function: Returns a view over the forbidden time of the given tag in this calendar, compiled by the tag, or
+     * null if the tag is null. Each search takes its own view, since a view keeps a cursor.
+     */
+    private OccupancyQuery getForbiddenQuery(PlannerTag tag) {
+        return tag == null ? null : new IntervalSetOccupancyQuery(tag.getForbiddenMask(startTime, getEndTime()));
+    }
+
+    /**
+     * Helper function: Returns true if the first count sorted events hold an event equal to the given one (which is not
+     * before any of them).
+     */
+    private static boolean containsSorted(long[] starts, long[] ends, PlannerEvent[] sorted, int count, PlannerEvent event) {
+        for (int i = count - 1; i >= 0 && starts[i] == event.getStartTime() && ends[i] == event.getEndTime(); i--) {
+            if (sorted[i].equals(event)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Helper function: Returns true if the given date is within the horizon of this calendar, from its start time until
+     * exactly horizonDays days after it (both included).
+     */
+    private boolean isValidDate(long time) {
+        return time >= startTime && time <= getEndTime();
+    }
+
+    // Inner classes
+
+    /**
+     * Builds a calendar with all of its events known up front. The events are sorted once and the occupancy index is
+     * built in one pass, instead of inserting them one by one.
+     */
+    public static class Builder {
+
+        private final long startTime;
+        private long spaceBetweenTasks;
+        private int horizonDays;
+        private final List<PlannerEvent> events;
+        private final List<PlannerTag> tags;
 
         /**
-         * Create an interval with no start or end time and no event.
+         * Create a builder for a calendar with the given start time.
          */
-        public OccupiedInterval() {
-            super();
-            event = null;
+        public Builder(long timeInMillis) {
+            startTime = timeInMillis;
+            spaceBetweenTasks = MIN_SPACE_IN_MILLIS;
+            horizonDays = DEFAULT_HORIZON_DAYS;
+            events = new ArrayList<>();
+            tags = new ArrayList<>();
         }
 
         /**
-         * Create the closed interval [event.getStartTime(), event.getStartTime()] that point to the given event.
+         * Sets the space to leave between tasks.
          */
-        public OccupiedInterval(PlannerEvent event) throws IllegalTimeInterval, IllegalTimePoint {
-            super(event.getStartTime(), event.getStartTime(), false, false);
-            this.event = event;
+        public Builder setSpaceBetweenTasks(long spaceBetweenTasks) {
+            this.spaceBetweenTasks = Math.max(spaceBetweenTasks, MIN_SPACE_IN_MILLIS);
+            return this;
         }
 
         /**
-         * Returns true if both intervals are equal and both events are equal.
+         * Sets the amount of days the calendar spans from its start time.
          */
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            if (!super.equals(o)) return false;
-            OccupiedInterval that = (OccupiedInterval) o;
-            return event.equals(that.event);
+        public Builder setHorizonDays(int horizonDays) {
+            this.horizonDays = horizonDays;
+            return this;
+        }
+
+        /**
+         * Adds an event to the calendar. Events outside of the horizon are skipped when building.
+         */
+        public Builder addEvent(PlannerEvent event) {
+            events.add(event);
+            return this;
+        }
+
+        /**
+         * Adds events to the calendar. Events outside of the horizon are skipped when building.
+         */
+        public Builder addEvents(Collection<PlannerEvent> newEvents) {
+            events.addAll(newEvents);
+            return this;
+        }
+
+        /**
+         * Adds a tag to the calendar.
+         */
+        public Builder addTag(PlannerTag tag) {
+            tags.add(tag);
+            return this;
+        }
+
+        /**
+         * Returns a new calendar with the given settings, events and tags.
+         */
+        public PlannerCalendar build() {
+            PlannerCalendar calendar = new PlannerCalendar(startTime, spaceBetweenTasks, null, tags);
+            calendar.setHorizonDays(horizonDays);
+            calendar.insertEvents(events);
+            return calendar;
         }
     }
 
+    /**
+     * Read-only view over the events of this calendar that locks the days each query looks at for reading (in
+     * concurrent mode) only while it answers it, so a search over the whole calendar doesn't hold all of its days.
+     */
+    private class DayLockedQuery implements OccupancyQuery {
+
+        @Override
+        public boolean forEachOverlap(long start, long end, Visitor visitor) {
+            lockDays(start, end, false);
+            try {
+                return occupied.forEachOverlap(start, end, visitor);
+            } finally {
+                unlockDays(start, end, false);
+            }
+        }
+
+        @Override
+        public boolean anyOverlap(long start, long end) {
+            lockDays(start, end, false);
+            try {
+                return occupied.anyOverlap(start, end);
+            } finally {
+                unlockDays(start, end, false);
+            }
+        }
+
+        @Override
+        public long maxEndOverlapping(long start, long end) {
+            lockDays(start, end, false);
+            try {
+                return occupied.maxEndOverlapping(start, end);
+            } finally {
+                unlockDays(start, end, false);
+            }
+        }
+
+        @Override
+        public long firstStartAtOrAfter(long time) {
+            // Look day by day, so only the days until the answer are locked.
+            long dayLength = TimeUnit.DAYS.toMillis(1);
+            for (int day = dayOf(time); day <= horizonDays; day++) {
+                long from = Math.max(time, startTime + day * dayLength);
+                lockDays(from, from, false);
+                try {
+                    long first = occupied.firstStartAtOrAfter(from);
+                    if (first < startTime + (day + 1) * dayLength) {
+                        return first;
+                    }
+                } finally {
+                    unlockDays(from, from, false);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
 }
@@ -163,7 +163,7 @@ public class PlannerEvent extends PlannerObject {
         }
         PlannerEvent that = (PlannerEvent) o;
 
-        boolean doesParentTaskMatch = parentTask == that.parentTask || parentTask.equals(that.parentTask);
+        boolean doesParentTaskMatch = Objects.equals(parentTask, that.parentTask);
         return doesParentTaskMatch && getStartTime() == that.getStartTime() && getEndTime() == that.getEndTime();
     }
 
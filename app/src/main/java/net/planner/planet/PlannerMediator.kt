@@ -4,7 +4,6 @@ import android.annotation.SuppressLint
 import android.app.Activity
 import android.util.Log
 import androidx.core.app.ActivityCompat
-import java.text.SimpleDateFormat
 import java.util.*
 
 class PlannerMediator(syncGoogleCalendar: Boolean, activity: Activity?, startingFrom: Long?) :
@@ -17,9 +16,6 @@ class PlannerMediator(syncGoogleCalendar: Boolean, activity: Activity?, starting
     private val callerActivity: Activity?
     private val calendarStartTime: Long = startingFrom ?: System.currentTimeMillis()
 
-    @SuppressLint("SimpleDateFormat")
-    private val formatter = SimpleDateFormat("H:mm MM/dd/yyyy")
-
     init {
         if (calendarStartTime < 0){
             Log.e(TAG,"Error setting up user calendar - invalid start datetime, cannot be before " +
@@ -54,9 +50,7 @@ class PlannerMediator(syncGoogleCalendar: Boolean, activity: Activity?, starting
         val events = communicator?.getUserEvents(strongActivity, calendarStartTime)
         if (events != null) {
             // Will reach only if user already gave us permissions
-            for (event in events) {
-                calendar.insertEvent(event)
-            }
+            calendar.insertEvents(events)
         }
     }
 
@@ -85,7 +79,8 @@ class PlannerMediator(syncGoogleCalendar: Boolean, activity: Activity?, starting
             tagName
         )
 
-        calendar.insertEvent(event)
+        // Only the tasks the event collides with are moved
+        PlannerSolver.insertEvent(event, calendar)
         // If this is a synced calendar, should be added to the users google calendar
         if (this.shouldSync) {
             Log.d(TAG, "addEvent: Adding created event to google calendar, default calendar")
@@ -112,9 +107,10 @@ class PlannerMediator(syncGoogleCalendar: Boolean, activity: Activity?, starting
         return event
     }
 
-    /** Remove a PlannerEvent object from the calendar **/
-    fun removeEvent(event: PlannerEvent) {
-        calendar.removeEvent(event)
+    /** Remove a PlannerEvent object from the calendar, optionally moving the tasks after it to the freed time **/
+    @JvmOverloads
+    fun removeEvent(event: PlannerEvent, pullTasksEarlier: Boolean = false) {
+        PlannerSolver.removeEvent(event, calendar, pullTasksEarlier)
     }
 
     /** Create a PlannerTask object out of its parameters **/
@@ -170,28 +166,22 @@ class PlannerMediator(syncGoogleCalendar: Boolean, activity: Activity?, starting
         return PlannerSolver.addTasks(tasks, calendar)
     }
 
-    /** Turn given time intervals to a list of date-specific time intervals for this calendar  **/
-    @SuppressLint("SimpleDateFormat")
-    private fun turnTimesIntoDates(timeIntervals: List<Pair<Pair<Int, Int>, Pair<Int, Int>>>?): List<Pair<Long, Long>> {
-        val dateIntervals = mutableListOf<Pair<Long, Long>>()
-        val startDateD = (Calendar.getInstance().apply { timeInMillis = calendarStartTime })
-
+    /** Turn given time intervals to open-ended daily recurrence rules **/
+    private fun turnTimesIntoRules(timeIntervals: List<Pair<Pair<Int, Int>, Pair<Int, Int>>>?): List<RecurrenceRule> {
+        val rules = mutableListOf<RecurrenceRule>()
+        // the rules don't depend on this calendar, which only looks at their occurrences within its horizon, so the
+        // same tag of users whose calendars start at different times is equal and interned once
         if (timeIntervals != null) {
             for (pair in timeIntervals) {
-                val startHour = pair.first.first.toString()
-                val startMin = pair.first.second.toString()
-                val endHour = pair.second.first.toString()
-                val endMin = pair.second.second.toString()
-                for (i in 0..30) {
-                    val startDate = SimpleDateFormat("MM/dd/yyyy").format(startDateD.time)
-                    val start = formatter.parse("$startHour:$startMin $startDate").time
-                    val end = formatter.parse("$endHour:$endMin $startDate").time
-                    dateIntervals.add(Pair(start, end))
-                    startDateD.add(Calendar.DAY_OF_YEAR, 1)
+                val rule = RecurrenceRule.daily(
+                    pair.first.first, pair.first.second, pair.second.first, pair.second.second
+                )
+                if (rule != null) {
+                    rules.add(rule)
                 }
             }
         }
-        return dateIntervals
+        return rules
     }
 
     /** Add or rewrite tag with given name **/
@@ -203,13 +193,14 @@ class PlannerMediator(syncGoogleCalendar: Boolean, activity: Activity?, starting
     ): PlannerTag {
         val tag = PlannerTag(title)
         tag.priority = priority
-        for (pair in turnTimesIntoDates(forbiddenTimeIntervals)) {
-            tag.addForbiddenTimeInterval(pair.first, pair.second)
+        for (rule in turnTimesIntoRules(forbiddenTimeIntervals)) {
+            tag.addForbiddenRecurrence(rule)
         }
 
-        for (pair in turnTimesIntoDates(preferredTimeIntervals)) {
-            tag.addPreferredTimeInterval(pair.first, pair.second)
+        for (rule in turnTimesIntoRules(preferredTimeIntervals)) {
+            tag.addPreferredRecurrence(rule)
         }
+        tag.internTimeIntervals()
         if (calendar.containsTag(title)) {
             calendar.removeTag(title)
         }
@@ -229,17 +220,9 @@ class PlannerMediator(syncGoogleCalendar: Boolean, activity: Activity?, starting
         }
     }
 
-    /** Rename the tag with given name in the calendar **/
+    /** Rename the tag with given name in the calendar. Returns the renamed tag, which is a copy of the old one **/
     fun renameTag(oldTitle: String, newTitle: String): PlannerTag? {
-        if (!calendar.containsTag(oldTitle)) {
-            return null
-        }
-
-        val tag = calendar.getTag(oldTitle)
-        calendar.removeTag(oldTitle)
-        tag.tagName = newTitle
-        calendar.addTag(tag)
-        return tag
+        return calendar.renameTag(oldTitle, newTitle)
     }
 
     /** Add a time interval to the list of tag's time intervals **/
@@ -251,13 +234,14 @@ class PlannerMediator(syncGoogleCalendar: Boolean, activity: Activity?, starting
             return null
         }
         val tag = calendar.getTag(title)
-        for (pair in turnTimesIntoDates(listOfNotNull(forbiddenTimeInterval))) {
-            tag.addForbiddenTimeInterval(pair.first, pair.second)
+        for (rule in turnTimesIntoRules(listOfNotNull(forbiddenTimeInterval))) {
+            tag.addForbiddenRecurrence(rule)
         }
 
-        for (pair in turnTimesIntoDates(listOfNotNull(preferredTimeInterval))) {
-            tag.addPreferredTimeInterval(pair.first, pair.second)
+        for (rule in turnTimesIntoRules(listOfNotNull(preferredTimeInterval))) {
+            tag.addPreferredRecurrence(rule)
         }
+        tag.internTimeIntervals()
         return tag
     }
 
@@ -17,7 +17,7 @@ abstract class PlannerObject {
 
     protected String location; // string for now
     protected int reminder; // N minutes before (or some set values as in GC)
-    protected String tag;
+    protected int tagId; // Id of the tag name in PlannerTagRegistry.
 
     //constructors
     /** Create PlannerObject from its title **/
@@ -29,7 +29,7 @@ abstract class PlannerObject {
         this.description = "";
         this.location = ""; // for now string
         this.reminder = -1;
-        this.tag = NO_TAG;
+        this.tagId = PlannerTagRegistry.NO_TAG_ID;
         this.exclusiveForItsTimeSlot = true;
     }
 
@@ -95,12 +95,17 @@ abstract class PlannerObject {
 
     /** Get the name of the tag object connected to this task **/
     public String getTagName() {
-        return tag;
+        return PlannerTagRegistry.nameOf(tagId);
     }
 
-    /** Set the name of the tag object connected to this task **/
+    /** Set the name of the tag object connected to this task (null for NO_TAG) **/
     public void setTagName(String tag) {
-        this.tag = tag;
+        this.tagId = PlannerTagRegistry.idOf(tag);
+    }
+
+    /** Get the id of the name of the tag object connected to this task in PlannerTagRegistry **/
+    int getTagId() {
+        return tagId;
     }
 
     /** Get whether or not some other event can be defined at the same time with this **/
@@ -124,8 +129,8 @@ abstract class PlannerObject {
         if (this.reminder != -1) {
             stringRep += "; Remind before: " + this.reminder + " minutes";
         }
-        if (this.tag != null) {
-            stringRep += "; Tagged: " + this.tag;
+        if (getTagName() != null) {
+            stringRep += "; Tagged: " + getTagName();
         }
         if (this.exclusiveForItsTimeSlot) {
             stringRep += "; Exclusive for this time slot";
@@ -148,7 +153,7 @@ abstract class PlannerObject {
                 .getReminder() && getTitle()
                        .equals(that.getTitle()) && getDescription()
                        .equals(that.getDescription()) && getLocation()
-                       .equals(that.getLocation()) && getTagName().equals(that.getTagName());
+                       .equals(that.getLocation()) && tagId == that.tagId;
     }
 
     @Override public int hashCode() {
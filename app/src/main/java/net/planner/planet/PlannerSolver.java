@@ -1,20 +1,24 @@
 package net.planner.planet;
 
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
 
 public class PlannerSolver {
 
-    /** Sort tasks depending on their priorities and priorities of their tags from the calendar **/
-    private static LinkedList<PlannerTask> sortTasks(List<PlannerTask> tasks, PlannerCalendar calendar) {
+    /** Sort tasks depending on their priorities and priorities of their tags from the calendar (untagged tasks come
+     * last). Tasks with the same priorities are sorted by earliest deadline first **/
+    static LinkedList<PlannerTask> sortTasks(List<PlannerTask> tasks, PlannerCalendar calendar) {
         LinkedList<PlannerTask> sortedTasks = new LinkedList<>();
         TreeMap<Integer, LinkedList<PlannerTask>> tasksByTagPriority = new TreeMap<>();
         int priority;
         for (PlannerTask task : tasks) {
-            priority = calendar.getTag(task.getTagName()).getPriority();
+            PlannerTag tag = calendar.getTag(task);
+            priority = tag == null ? 0 : tag.getPriority();
             if (tasksByTagPriority.containsKey(priority)) {
                 Objects.requireNonNull(tasksByTagPriority.get(priority)).add(task);
             } else {
@@ -27,9 +31,11 @@ public class PlannerSolver {
         for (Integer name : tasksByTagPriority.descendingKeySet()) {
             LinkedList<PlannerTask> value = tasksByTagPriority.get(name);
             if (value == null) continue;
-            // high to low task priority in this tag priority group
-            Collections.sort(Objects.requireNonNull(tasksByTagPriority.get(name)),
-                    (o1, o2) -> -(o1.getPriority() - o2.getPriority()));
+            // high to low task priority in this tag priority group, earliest deadline first in the same priority
+            Collections.sort(Objects.requireNonNull(tasksByTagPriority.get(name)), (o1, o2) -> {
+                int byPriority = -(o1.getPriority() - o2.getPriority());
+                return byPriority != 0 ? byPriority : Long.compare(o1.getDeadline(), o2.getDeadline());
+            });
             sortedTasks.addAll(value);
         }
         return sortedTasks;
@@ -37,8 +43,26 @@ public class PlannerSolver {
 
     /** Add a list of tasks to the calendar depending on tags and priorities **/
     public static List<List<PlannerEvent>> addTasks(List<PlannerTask> tasks, PlannerCalendar calendar) {
+        return addTasksInOrder(sortTasks(tasks, calendar), calendar);
+    }
+
+    /** Add a list of tasks to the calendar by the best assignment a branch and bound search finds within the given
+     * time budget in milliseconds. Unlike addTasks, a task that can't be added doesn't stop the tasks after it **/
+    public static List<List<PlannerEvent>> addTasks(List<PlannerTask> tasks, PlannerCalendar calendar, long budgetMillis) {
+        return new BranchAndBoundSolver(budgetMillis).addTasks(tasks, calendar);
+    }
+
+    /** Add a list of tasks to the calendar like addTasks, then improve their places by simulated annealing for the given
+     * time budget in milliseconds (see AnnealingImprover). Returns the events of the added tasks **/
+    public static List<List<PlannerEvent>> addTasksAndImprove(List<PlannerTask> tasks, PlannerCalendar calendar,
+                                                              long budgetMillis, long seed) {
+        return new AnnealingImprover(budgetMillis, seed).improve(addTasks(tasks, calendar), calendar);
+    }
+
+    /** Add a list of tasks to the calendar by their given order, until one of them can't be added **/
+    public static List<List<PlannerEvent>> addTasksInOrder(List<PlannerTask> tasks, PlannerCalendar calendar) {
         LinkedList<List<PlannerEvent>> addedTasks = new LinkedList<>();
-        for (PlannerTask task : sortTasks(tasks, calendar)) {
+        for (PlannerTask task : tasks) {
             List<PlannerEvent> addedTaskEvents = addTask(task, calendar);
             if (!addedTaskEvents.isEmpty()) {
                 addedTasks.add(addedTaskEvents);
@@ -50,6 +74,168 @@ public class PlannerSolver {
         return addedTasks;
     }
 
+    /** Add a list of tasks to the calendar depending on tags and priorities like addTasks, but in best-effort mode: a
+     * task that can't be added doesn't stop the tasks after it. Returns the events of the added tasks, and the tasks
+     * that couldn't be added with the reason for each of them **/
+    public static PlacementResult addTasksBestEffort(List<PlannerTask> tasks, PlannerCalendar calendar) {
+        return addTasksBestEffort(tasks, calendar, System.nanoTime(), 0);
+    }
+
+    /** Add a list of tasks to the calendar like addTasksBestEffort, but stop before the next task once timeoutNanos (if
+     * positive) passed since System.nanoTime() was startedAt. The tasks that weren't tried are in neither list **/
+    static PlacementResult addTasksBestEffort(List<PlannerTask> tasks, PlannerCalendar calendar, long startedAt, long timeoutNanos) {
+        PlacementResult result = new PlacementResult();
+        for (PlannerTask task : sortTasks(tasks, calendar)) {
+            if (timeoutNanos > 0 && System.nanoTime() - startedAt > timeoutNanos) {
+                break;
+            }
+            List<PlannerEvent> addedTaskEvents = addTask(task, calendar);
+            if (!addedTaskEvents.isEmpty()) {
+                result.addPlaced(addedTaskEvents);
+            } else {
+                result.addUnplaced(task, calendar.getUnplacedReason(task));
+            }
+        }
+        return result;
+    }
+
+    /** Add a list of tasks to the calendar like addTasks, but all or nothing: if one of the tasks can't be added, the
+     * tasks added before it are removed as well and an empty list is returned. Runs in a transaction of the calendar,
+     * or, when it can't start one (in concurrent mode, or inside another transaction), removes the added events itself.
+     * Then other threads may see the added tasks until they are removed **/
+    public static List<List<PlannerEvent>> addTasksAtomically(List<PlannerTask> tasks, PlannerCalendar calendar) {
+        if (calendar.isConcurrentMode() || calendar.isInTransaction() || !calendar.beginTransaction()) {
+            return addTasksOrRemoveThem(tasks, calendar);
+        }
+
+        List<List<PlannerEvent>> addedTasks = addTasks(tasks, calendar);
+        if (addedTasks.size() < tasks.size()) {
+            calendar.rollback();
+            return new LinkedList<>();
+        }
+        calendar.commit();
+        return addedTasks;
+    }
+
+    /** Add a list of tasks to the calendar like addTasks, and if one of them can't be added, remove the events of the
+     * tasks added before it and return an empty list **/
+    private static List<List<PlannerEvent>> addTasksOrRemoveThem(List<PlannerTask> tasks, PlannerCalendar calendar) {
+        List<List<PlannerEvent>> addedTasks = addTasks(tasks, calendar);
+        if (addedTasks.size() < tasks.size()) {
+            for (List<PlannerEvent> taskEvents : addedTasks) {
+                for (PlannerEvent event : taskEvents) {
+                    calendar.removeEvent(event);
+                }
+            }
+            return new LinkedList<>();
+        }
+        return addedTasks;
+    }
+
+    /** Try each candidate list of tasks on a snapshot of the calendar and only keep the one that places the most tasks
+     * (the first among equals). Returns the events of the kept tasks **/
+    public static List<List<PlannerEvent>> addBestTasks(List<List<PlannerTask>> candidates, PlannerCalendar calendar) {
+        List<List<PlannerEvent>> bestAddedTasks = new LinkedList<>();
+        PlannerCalendar best = null;
+        for (List<PlannerTask> candidate : candidates) {
+            PlannerCalendar fork = calendar.snapshot();
+            List<List<PlannerEvent>> addedTasks = addTasks(candidate, fork);
+            if (best == null || addedTasks.size() > bestAddedTasks.size()) {
+                best = fork;
+                bestAddedTasks = addedTasks;
+            }
+        }
+
+        if (best != null) {
+            calendar.restore(best);
+        }
+        return bestAddedTasks;
+    }
+
+    /** Insert the event into the calendar and move only the tasks it collides with: their events are removed and they
+     * are added again (by the order of sortTasks, skipping the ones that no longer fit). Returns the events of the moved
+     * tasks that were added again **/
+    public static List<List<PlannerEvent>> insertEvent(PlannerEvent event, PlannerCalendar calendar) {
+        Set<PlannerTask> displacedTasks = new LinkedHashSet<>();
+        for (PlannerEvent taskEvent : calendar.getCollidingTaskEvents(event.getStartTime(), event.getEndTime())) {
+            displacedTasks.add(taskEvent.getParentTask());
+        }
+        if (!calendar.insertEvent(event)) {
+            return new LinkedList<>();
+        }
+
+        List<PlannerTask> tasks = new LinkedList<>(displacedTasks);
+        for (PlannerTask task : tasks) {
+            removeTask(task, calendar);
+        }
+        LinkedList<List<PlannerEvent>> addedTasks = new LinkedList<>();
+        for (PlannerTask task : sortTasks(tasks, calendar)) {
+            List<PlannerEvent> addedTaskEvents = addTask(task, calendar);
+            if (!addedTaskEvents.isEmpty()) {
+                addedTasks.add(addedTaskEvents);
+            }
+        }
+        return addedTasks;
+    }
+
+    /** Remove the event from the calendar. If pullTasksEarlier is true, the undivided task right after the free gap it
+     * leaves is moved to its earliest start in that gap (in the preferred time of its tag first, and never out of it if
+     * it's there now), and so on for the task right after the time each moved task left. Returns the events of the
+     * moved tasks **/
+    public static List<List<PlannerEvent>> removeEvent(PlannerEvent event, PlannerCalendar calendar, boolean pullTasksEarlier) {
+        LinkedList<List<PlannerEvent>> movedTasks = new LinkedList<>();
+        if (!calendar.removeEvent(event) || !pullTasksEarlier) {
+            return movedTasks;
+        }
+
+        // Tasks only move into free time before them, so the tasks after them keep their places.
+        long[] gap = calendar.getFreeGapFrom(event.getStartTime());
+        if (gap == null || gap[0] >= event.getEndTime()) {
+            return movedTasks;
+        }
+        long freedStart = gap[0];
+        while (gap != null) {
+            PlannerEvent taskEvent = getTaskEventAt(gap[1], calendar);
+            if (taskEvent == null || taskEvent.getParentTask().getMaxDivisionsNumber() > 1) {
+                break;
+            }
+
+            PlannerTask task = taskEvent.getParentTask();
+            boolean preferredOnly = calendar.isInPreferredTime(taskEvent);
+            calendar.removeEvent(taskEvent);
+            long startTime = calendar.findTaskStartBetween(task, freedStart, taskEvent.getStartTime() - 1, preferredOnly);
+            List<PlannerEvent> movedTaskEvents = startTime < 0 ? Collections.emptyList() : calendar.insertTaskAt(task, startTime);
+            if (movedTaskEvents.isEmpty()) {
+                calendar.insertEvent(taskEvent);
+                break;
+            }
+            movedTasks.add(movedTaskEvents);
+            gap = calendar.getFreeGapFrom(movedTaskEvents.get(movedTaskEvents.size() - 1).getEndTime());
+            if (gap != null && gap[0] >= taskEvent.getEndTime()) {
+                // None of the time the task left was freed.
+                break;
+            }
+        }
+        return movedTasks;
+    }
+
+    /** Get the event of a task that starts at the given time, or null if there is none **/
+    private static PlannerEvent getTaskEventAt(long time, PlannerCalendar calendar) {
+        for (PlannerEvent taskEvent : calendar.getTaskEvents(time, time)) {
+            if (taskEvent.getStartTime() == time) {
+                return taskEvent;
+            }
+        }
+        return null;
+    }
+
+    /** Remove all the events of the task from the calendar **/
+    public static void removeTask(PlannerTask task, PlannerCalendar calendar) {
+        for (PlannerEvent taskEvent : calendar.getTaskEvents(task)) {
+            calendar.removeEvent(taskEvent);
+        }
+    }
+
     /** Add one task to the calendar **/
     public static List<PlannerEvent> addTask(PlannerTask task, PlannerCalendar calendar) {
         List<PlannerEvent> addedEvents = calendar.preferredInsertTask(task);
@@ -2,14 +2,9 @@ package net.planner.planet;
 
 import android.util.Log;
 
-import com.brein.time.timeintervals.collections.ListIntervalCollection;
-import com.brein.time.timeintervals.indexes.IntervalTree;
-import com.brein.time.timeintervals.indexes.IntervalTreeBuilder;
 import com.brein.time.timeintervals.intervals.IInterval;
-import com.brein.time.timeintervals.intervals.LongInterval;
 
 import java.sql.Struct;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -18,20 +13,20 @@ import java.util.Objects;
 public class PlannerTag {
     private static final String TAG = "PlannerTag";
     private String tagName;
-    private IntervalTree forbiddenTimeIntervals;
-    private IntervalTree preferredTimeIntervals;
+    private int tagId; // Id of the name in PlannerTagRegistry.
+    private TagWindows forbiddenTimeIntervals; // May be shared with other tags, then copied before it changes.
+    private TagWindows preferredTimeIntervals;
     private int priority;
+    private int version; // Changes whenever a time interval is added, so answers about the intervals can be cached.
+    private volatile CompiledMasks masks; // The compiled time intervals, rebuilt only after the version changes.
 
     // constructor
     /** Create PlannerTag from its title **/
     public PlannerTag(String tagName) {
         this.tagName = tagName;
-        this.forbiddenTimeIntervals = IntervalTreeBuilder.newBuilder()
-                .usePredefinedType(IntervalTreeBuilder.IntervalType.LONG)
-                .collectIntervals(interval -> new ListIntervalCollection()).build();
-        this.preferredTimeIntervals = IntervalTreeBuilder.newBuilder()
-                .usePredefinedType(IntervalTreeBuilder.IntervalType.LONG)
-                .collectIntervals(interval -> new ListIntervalCollection()).build();
+        this.tagId = PlannerTagRegistry.idOf(tagName);
+        this.forbiddenTimeIntervals = TagWindows.EMPTY;
+        this.preferredTimeIntervals = TagWindows.EMPTY;
     }
 
     //methods
@@ -43,6 +38,24 @@ public class PlannerTag {
     /** Set the name of the tag **/
     public void setTagName(String tagName) {
         this.tagName = tagName;
+        this.tagId = PlannerTagRegistry.idOf(tagName);
+    }
+
+    /** Get the id of the name of the tag in PlannerTagRegistry **/
+    int getTagId() {
+        return tagId;
+    }
+
+    /** Get a copy of the tag with the given name, which can be changed without changing this tag. Frozen time intervals
+     * are shared, and the others are copied **/
+    PlannerTag copyWithName(String tagName) {
+        PlannerTag copy = new PlannerTag(tagName);
+        copy.priority = priority;
+        copy.forbiddenTimeIntervals = forbiddenTimeIntervals.isFrozen() ? forbiddenTimeIntervals : forbiddenTimeIntervals.snapshot();
+        copy.preferredTimeIntervals = preferredTimeIntervals.isFrozen() ? preferredTimeIntervals : preferredTimeIntervals.snapshot();
+        copy.version = version;
+        copy.masks = masks;
+        return copy;
     }
 
     /** Get priority of the tag **/
@@ -60,19 +73,29 @@ public class PlannerTag {
         return true;
     }
 
-    /** Get time intervals during which it's forbidden to create tasks tagged with it **/
+    /** Get time intervals during which it's forbidden to create tasks tagged with it, including every occurrence of its
+     * recurrence rules. An open-ended rule has no last occurrence, so its occurrences are only found for a given range
+     * (see getForbiddenCollisions) **/
     public List<IInterval> getForbiddenTimeIntervals() {
-        return new ArrayList<>(forbiddenTimeIntervals);
+        return forbiddenTimeIntervals.listBounded();
     }
 
-    /** Get iterator over time intervals in which it's forbidden to create tasks tagged with it **/
+    /** Get iterator over time intervals in which it's forbidden to create tasks tagged with it by order of start time,
+     * including the occurrences of its recurrence rules, which are computed as the iterator advances (so it never ends
+     * with an open-ended rule) **/
     public Iterator<IInterval> getForbiddenTimeIntervalsIterator() {
         return forbiddenTimeIntervals.iterator();
     }
 
-    /** Get tree with the time intervals in which it's forbidden to create tasks tagged with it **/
-    public final IntervalTree getForbiddenTimeIntervalsTree() {
-        return forbiddenTimeIntervals;
+    /** Get iterator over time intervals in which it's forbidden to create tasks tagged with it that overlap with the given
+     * one, by order of start time **/
+    public Iterator<IInterval> getForbiddenTimeIntervalsIterator(long startDate, long endDate) {
+        return forbiddenTimeIntervals.iterator(startDate, endDate);
+    }
+
+    /** Get the recurrence rules of the time intervals in which it's forbidden to create tasks tagged with it **/
+    public List<RecurrenceRule> getForbiddenRecurrences() {
+        return forbiddenTimeIntervals.getRules();
     }
 
     /** Add a time interval during which it's forbidden to create tasks tagged with it **/
@@ -81,23 +104,56 @@ public class PlannerTag {
             Log.e(TAG,"Illegal time interval: Event cannot end before it starts");
             return false;
         }
-        this.forbiddenTimeIntervals.add(new LongInterval(from, until));
+        if (forbiddenTimeIntervals.isFrozen()) {
+            forbiddenTimeIntervals = forbiddenTimeIntervals.snapshot();
+        }
+        this.forbiddenTimeIntervals.addInterval(from, until);
+        version++;
         return true;
     }
 
-    /** Get time intervals during which it's preferred to create tasks tagged with it **/
+    /** Add a recurrence rule of time intervals during which it's forbidden to create tasks tagged with it **/
+    public boolean addForbiddenRecurrence(RecurrenceRule rule) {
+        if (rule == null) {
+            Log.e(TAG,"Illegal recurrence rule: Rule is null");
+            return false;
+        }
+        if (forbiddenTimeIntervals.isFrozen()) {
+            forbiddenTimeIntervals = forbiddenTimeIntervals.snapshot();
+        }
+        this.forbiddenTimeIntervals.addRule(rule);
+        version++;
+        return true;
+    }
+
+    /** Get the forbidden time intervals and rules of the tag **/
+    TagWindows getForbiddenWindows() {
+        return forbiddenTimeIntervals;
+    }
+
+    /** Get time intervals during which it's preferred to create tasks tagged with it, including every occurrence of its
+     * recurrence rules. An open-ended rule has no last occurrence, so its occurrences are only found for a given range
+     * (see getPreferredCollisions) **/
     public List<IInterval> getPreferredTimeIntervals() {
-        return new ArrayList<>(preferredTimeIntervals);
+        return preferredTimeIntervals.listBounded();
     }
 
-    /** Get iterator over time intervals in which it's preferred to create tasks tagged with it **/
+    /** Get iterator over time intervals in which it's preferred to create tasks tagged with it by order of start time,
+     * including the occurrences of its recurrence rules, which are computed as the iterator advances (so it never ends
+     * with an open-ended rule) **/
     public Iterator<IInterval> getPreferredTimeIntervalsIterator() {
         return preferredTimeIntervals.iterator();
     }
 
-    /** Get tree with the time intervals in which it's preferred to create tasks tagged with it **/
-    public final IntervalTree getPreferredTimeIntervalsTree() {
-        return preferredTimeIntervals;
+    /** Get iterator over time intervals in which it's preferred to create tasks tagged with it that overlap with the given
+     * one, by order of start time **/
+    public Iterator<IInterval> getPreferredTimeIntervalsIterator(long startDate, long endDate) {
+        return preferredTimeIntervals.iterator(startDate, endDate);
+    }
+
+    /** Get the recurrence rules of the time intervals in which it's preferred to create tasks tagged with it **/
+    public List<RecurrenceRule> getPreferredRecurrences() {
+        return preferredTimeIntervals.getRules();
     }
 
     /** Add a time interval during which it's preferred to create tasks tagged with it **/
@@ -106,28 +162,88 @@ public class PlannerTag {
             Log.e(TAG,"Illegal time interval: Event cannot end before it starts");
             return false;
         }
-        this.preferredTimeIntervals.add(new LongInterval(from, until));
+        if (preferredTimeIntervals.isFrozen()) {
+            preferredTimeIntervals = preferredTimeIntervals.snapshot();
+        }
+        this.preferredTimeIntervals.addInterval(from, until);
+        version++;
+        return true;
+    }
+
+    /** Add a recurrence rule of time intervals during which it's preferred to create tasks tagged with it **/
+    public boolean addPreferredRecurrence(RecurrenceRule rule) {
+        if (rule == null) {
+            Log.e(TAG,"Illegal recurrence rule: Rule is null");
+            return false;
+        }
+        if (preferredTimeIntervals.isFrozen()) {
+            preferredTimeIntervals = preferredTimeIntervals.snapshot();
+        }
+        this.preferredTimeIntervals.addRule(rule);
+        version++;
         return true;
     }
 
+    /** Get the preferred time intervals and rules of the tag **/
+    TagWindows getPreferredWindows() {
+        return preferredTimeIntervals;
+    }
+
+    /** Share the time intervals and rules of the tag with every other tag that has the same ones, through an interned
+     * immutable copy of them, so many calendars with the same tags keep one copy of their time intervals. A tag with no
+     * time intervals shares them anyway. Adding to the tag afterwards first makes its own copy **/
+    public void internTimeIntervals() {
+        forbiddenTimeIntervals = TagWindows.intern(forbiddenTimeIntervals);
+        preferredTimeIntervals = TagWindows.intern(preferredTimeIntervals);
+    }
+
+    /** Get the version of the time intervals of the tag, which changes whenever one of them or a rule is added **/
+    int getVersion() {
+        return version;
+    }
+
+    /** Get the forbidden time intervals that overlap with [from, until] compiled into a sorted set of disjoint intervals.
+     * The set is cached, and compiled again only after the tag changes or for a range it doesn't cover **/
+    IntervalSet getForbiddenMask(long from, long until) {
+        return getMasks(from, until).forbidden;
+    }
+
+    /** Get the preferred time that overlaps with [from, until] and isn't forbidden, compiled like getForbiddenMask **/
+    IntervalSet getPreferredMask(long from, long until) {
+        return getMasks(from, until).preferred;
+    }
+
+    /** Get the compiled time intervals for a range that covers [from, until], compiling them if needed **/
+    private CompiledMasks getMasks(long from, long until) {
+        CompiledMasks current = masks;
+        if (current == null || current.version != version || current.from > from || current.until < until) {
+            IntervalSet forbidden = IntervalSet.fromSorted(forbiddenTimeIntervals.iterator(from, until));
+            IntervalSet preferred = IntervalSet.fromSorted(preferredTimeIntervals.iterator(from, until))
+                    .difference(forbidden);
+            current = new CompiledMasks(version, from, until, forbidden, preferred);
+            masks = current;
+        }
+        return current;
+    }
+
     /** Get forbidden for this tag time intervals that collide with the given one **/
     public Collection<?> getForbiddenCollisions(long startDate, long endDate) {
-        return forbiddenTimeIntervals.overlap(new LongInterval(startDate, endDate));
+        return forbiddenTimeIntervals.overlap(startDate, endDate);
     }
 
     /** Get preferred for this tag time intervals that collide with the given one **/
     public Collection<?> getPreferredCollisions(long startDate, long endDate) {
-        return preferredTimeIntervals.overlap(new LongInterval(startDate, endDate));
+        return preferredTimeIntervals.overlap(startDate, endDate);
     }
 
     /** Return whether or not the given time interval is forbidden for this tag **/
     public boolean isIntervalForbidden(long startDate, long endDate) {
-        return getForbiddenCollisions(startDate, endDate).isEmpty();
+        return forbiddenTimeIntervals.anyOverlap(startDate, endDate);
     }
 
     /** Return whether or not the given time interval is preferred for this tag **/
     public boolean isIntervalPreferred(long startDate, long endDate) {
-        return getPreferredCollisions(startDate, endDate).isEmpty();
+        return preferredTimeIntervals.anyOverlap(startDate, endDate);
     }
 
     @Override
@@ -143,4 +259,22 @@ public class PlannerTag {
         return Objects.hash(tagName);
 
     }
+
+    /** Forbidden and preferred time intervals compiled for a range of time at some version of the tag **/
+    private static class CompiledMasks {
+
+        final int version;
+        final long from;
+        final long until;
+        final IntervalSet forbidden;
+        final IntervalSet preferred;
+
+        CompiledMasks(int version, long from, long until, IntervalSet forbidden, IntervalSet preferred) {
+            this.version = version;
+            this.from = from;
+            this.until = until;
+            this.forbidden = forbidden;
+            this.preferred = preferred;
+        }
+    }
 }
@@ -0,0 +1,79 @@
+package net.planner.planet;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Registry of tag names, which gives every name a dense int id (NO_TAG is 0, and the ids of other names count up from
+ * 1 by order of first use). Tasks and events keep the id of their tag name, and calendars keep their tags in arrays by
+ * id, so finding the tag of a task takes an array read rather than hashing its name. The ids are shared by all the
+ * calendars, so the same name has the same id in all of them, and a name keeps its id for as long as the process runs.
+ * Since names are never released, the registry holds up to MAX_NAMES of them: tag names are expected to repeat across
+ * the users (like "work" or "sport"), and a name past the limit is treated as NO_TAG **/
+public final class PlannerTagRegistry {
+
+    private static final String TAG = "PlannerTagRegistry";
+    public static final int NO_TAG_ID = 0;
+    public static final int MAX_NAMES = 1 << 16;
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[16]; // By id, with room for more names.
+    private static volatile int count; // Written after the name of a new id, so readers of it see the name.
+
+    static {
+        names[NO_TAG_ID] = PlannerObject.NO_TAG;
+        count = 1;
+        ids.put(PlannerObject.NO_TAG, NO_TAG_ID);
+    }
+
+    private PlannerTagRegistry() {
+    }
+
+    /** Get the id of the given tag name, giving it the next id if it has none yet. A null name is NO_TAG, and so is a new
+     * name once the registry holds MAX_NAMES names **/
+    public static int idOf(String name) {
+        if (name == null) {
+            return NO_TAG_ID;
+        }
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (PlannerTagRegistry.class) {
+            id = ids.get(name);
+            if (id == null) {
+                if (count == MAX_NAMES) {
+                    Log.e(TAG, "Too many tag names, treating " + name + " as " + PlannerObject.NO_TAG);
+                    return NO_TAG_ID;
+                }
+                id = count;
+                if (id == names.length) {
+                    names = Arrays.copyOf(names, 2 * id);
+                }
+                names[id] = name;
+                count = id + 1;
+                ids.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /** Get the id of the given tag name, or -1 if it has none (without giving it one) **/
+    public static int find(String name) {
+        Integer id = name == null ? null : ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /** Get the tag name with the given id, or null if there is none **/
+    public static String nameOf(int id) {
+        int known = count;
+        return id >= 0 && id < known ? names[id] : null;
+    }
+
+    /** Get the amount of ids given so far (one more than the highest id) **/
+    public static int size() {
+        return count;
+    }
+}
@@ -0,0 +1,226 @@
+package net.planner.planet;
+
+import android.util.Log;
+
+import com.brein.time.timeintervals.intervals.IInterval;
+import com.brein.time.timeintervals.intervals.LongInterval;
+
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** Time window that repeats every day or every week at the same local time of day, such as "18:00 to 23:30 every day".
+ * A window whose end time isn't after its start time ends on the next day. The occurrences of a rule are computed only
+ * for the range they are asked for, so a rule takes the same memory whatever the amount of days it covers **/
+public class RecurrenceRule {
+
+    private static final String TAG = "RecurrenceRule";
+    private static final int MINUTES_IN_DAY = 24 * 60;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    /** Until time of an open-ended rule, which has no last day **/
+    public static final long FOREVER = Long.MAX_VALUE;
+
+    /** How often the window repeats **/
+    public enum Frequency { DAILY, WEEKLY }
+
+    private final Frequency frequency;
+    private final int dayOfWeek;
+    private final int startMinute;
+    private final int endMinute;
+    private final long from;
+    private final long until;
+
+    private RecurrenceRule(Frequency frequency, int dayOfWeek, int startMinute, int endMinute, long from, long until) {
+        this.frequency = frequency;
+        this.dayOfWeek = dayOfWeek;
+        this.startMinute = startMinute;
+        this.endMinute = endMinute;
+        this.from = from;
+        this.until = until;
+    }
+
+    /** Create a rule for a window from startHour:startMinute to endHour:endMinute on every day that starts after the
+     * midnight before from and before until. Returns null if the times are illegal **/
+    public static RecurrenceRule daily(int startHour, int startMinute, int endHour, int endMinute, long from, long until) {
+        return create(Frequency.DAILY, 0, startHour, startMinute, endHour, endMinute, from, until);
+    }
+
+    /** Create an open-ended rule for a window from startHour:startMinute to endHour:endMinute on every day (from the epoch
+     * on). The rule doesn't depend on any calendar, so tags with the same windows are equal whenever their calendars
+     * start, and each calendar only looks at the occurrences within its own horizon. Returns null if the times are
+     * illegal **/
+    public static RecurrenceRule daily(int startHour, int startMinute, int endHour, int endMinute) {
+        return daily(startHour, startMinute, endHour, endMinute, 0, FOREVER);
+    }
+
+    /** Create a rule for a window from startHour:startMinute to endHour:endMinute on the given day of the week (such as
+     * Calendar.MONDAY) of every week, on days that start after the midnight before from and before until. Returns null
+     * if the day or the times are illegal **/
+    public static RecurrenceRule weekly(int dayOfWeek, int startHour, int startMinute, int endHour, int endMinute,
+                                        long from, long until) {
+        if (dayOfWeek < Calendar.SUNDAY || dayOfWeek > Calendar.SATURDAY) {
+            Log.e(TAG, "Illegal day of week: " + dayOfWeek);
+            return null;
+        }
+        return create(Frequency.WEEKLY, dayOfWeek, startHour, startMinute, endHour, endMinute, from, until);
+    }
+
+    public Frequency getFrequency() {
+        return frequency;
+    }
+
+    /** Get the day of the week of a weekly rule (0 for a daily one) **/
+    public int getDayOfWeek() {
+        return dayOfWeek;
+    }
+
+    /** Get the minute of the day at which the window starts **/
+    public int getStartMinute() {
+        return startMinute;
+    }
+
+    /** Get the minute of the day at which the window ends (on the next day if it isn't after the start minute) **/
+    public int getEndMinute() {
+        return endMinute;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getUntil() {
+        return until;
+    }
+
+    /** Return whether or not the rule has no last day **/
+    public boolean isOpenEnded() {
+        return until == FOREVER;
+    }
+
+    /** Get iterator over all the occurrences of the rule by order of time (which never ends for an open-ended rule) **/
+    public Iterator<IInterval> iterator() {
+        return iterator(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /** Get iterator over the occurrences that overlap with [start, end] by order of time. They are computed as the
+     * iterator advances **/
+    public Iterator<IInterval> iterator(long start, long end) {
+        return new OccurrenceIterator(start, end);
+    }
+
+    /** Return whether or not an occurrence overlaps with [start, end] **/
+    public boolean overlaps(long start, long end) {
+        return iterator(start, end).hasNext();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RecurrenceRule that = (RecurrenceRule) o;
+        return frequency == that.frequency && dayOfWeek == that.dayOfWeek && startMinute == that.startMinute
+                && endMinute == that.endMinute && from == that.from && until == that.until;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(Fingerprints.ofRule(this));
+    }
+
+    @Override
+    public String toString() {
+        return frequency + (frequency == Frequency.WEEKLY ? " on day " + dayOfWeek : "") + " " + startMinute / 60 + ":"
+                + String.format("%02d", startMinute % 60) + "-" + endMinute / 60 + ":" + String.format("%02d", endMinute % 60);
+    }
+
+    /** Create a rule after checking its times **/
+    private static RecurrenceRule create(Frequency frequency, int dayOfWeek, int startHour, int startMinute, int endHour,
+                                         int endMinute, long from, long until) {
+        if (startHour < 0 || startHour > 23 || endHour < 0 || endHour > 24 || startMinute < 0 || startMinute > 59
+                || endMinute < 0 || endMinute > 59 || (endHour == 24 && endMinute != 0)) {
+            Log.e(TAG, "Illegal time of day");
+            return null;
+        }
+        if (until < from) {
+            Log.e(TAG, "Illegal time interval: Rule cannot end before it starts");
+            return null;
+        }
+        return new RecurrenceRule(frequency, dayOfWeek, startHour * 60 + startMinute, endHour * 60 + endMinute, from,
+                until);
+    }
+
+    /** Iterator that computes the occurrences of the rule day by day **/
+    private class OccurrenceIterator implements Iterator<IInterval> {
+
+        private final long end;
+        private final Calendar day = Calendar.getInstance();
+        private LongInterval next;
+
+        OccurrenceIterator(long start, long end) {
+            this.end = end;
+            // An occurrence ends less than two days after the midnight of its day, so earlier days can be skipped.
+            day.setTimeInMillis(start > from + 2 * DAY ? start - 2 * DAY : from);
+            day.set(Calendar.HOUR_OF_DAY, 0);
+            day.set(Calendar.MINUTE, 0);
+            day.set(Calendar.SECOND, 0);
+            day.set(Calendar.MILLISECOND, 0);
+            if (frequency == Frequency.WEEKLY) {
+                int ahead = (dayOfWeek - day.get(Calendar.DAY_OF_WEEK) + 7) % 7;
+                day.add(Calendar.DAY_OF_MONTH, ahead);
+            }
+
+            // Skip the occurrences that end before start.
+            advance();
+            while (next != null && next.getEnd() < start) {
+                advance();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public IInterval next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            LongInterval current = next;
+            advance();
+            return current;
+        }
+
+        /** Compute the occurrence on the current day and move to the next one **/
+        private void advance() {
+            long dayStart = day.getTimeInMillis();
+            if (dayStart >= until) {
+                next = null;
+                return;
+            }
+
+            day.set(Calendar.HOUR_OF_DAY, startMinute / 60);
+            day.set(Calendar.MINUTE, startMinute % 60);
+            long occurrenceStart = day.getTimeInMillis();
+            if (occurrenceStart > end) {
+                next = null;
+                return;
+            }
+            day.setTimeInMillis(dayStart);
+            if (endMinute <= startMinute) {
+                day.add(Calendar.DAY_OF_MONTH, 1);
+            }
+            if (endMinute == MINUTES_IN_DAY) {
+                day.add(Calendar.DAY_OF_MONTH, 1);
+            } else {
+                day.set(Calendar.HOUR_OF_DAY, endMinute / 60);
+                day.set(Calendar.MINUTE, endMinute % 60);
+            }
+            next = new LongInterval(occurrenceStart, day.getTimeInMillis());
+
+            day.setTimeInMillis(dayStart);
+            day.add(Calendar.DAY_OF_MONTH, frequency == Frequency.WEEKLY ? 7 : 1);
+        }
+    }
+}
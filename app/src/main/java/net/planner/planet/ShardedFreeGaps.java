@@ -0,0 +1,375 @@
+package net.planner.planet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The free gaps of a calendar split into shards of consecutive time, each a FreeGapIndex of its own: the days of the
+ * calendar in concurrent mode, so changes on different days change different shards, or a single shard otherwise. A gap
+ * that crosses the end of a shard is kept as a piece in each shard it crosses, and the queries join the pieces back, so
+ * they answer like one FreeGapIndex over the whole calendar. Pieces that meet at the start of a shard are only joined
+ * if no event touches that time, since an empty event there splits the gap. With locks, every query locks the day of
+ * each shard for reading while it reads it (one day at a time), and every change is made with the days it touches
+ * locked for writing by the caller.
+ */
+class ShardedFreeGaps {
+
+    // Fields
+    private final long start, end; // Bounds of the calendar.
+    private final long shardLength;
+    private final FreeGapIndex[] shards;
+    private final OccupancyQuery occupied; // The occupied intervals the gaps are between.
+    private final DayStripedLocks locks; // Null if the shards aren't shared between threads.
+
+    // Constructors
+
+    /**
+     * Construct free gaps over (start, end) in a single shard.
+     */
+    public ShardedFreeGaps(long start, long end) {
+        this(start, end, Math.max(end - start, 1), null, null);
+    }
+
+    /**
+     * Construct free gaps over (start, end) in shards of the given length, between the intervals of the given index,
+     * where the shard of each day is guarded by the lock of that day in the given locks (may be null).
+     */
+    public ShardedFreeGaps(long start, long end, long shardLength, OccupancyQuery occupied, DayStripedLocks locks) {
+        this.start = start;
+        this.end = end;
+        this.shardLength = shardLength;
+        this.occupied = occupied;
+        this.locks = locks;
+        int count = (int) Math.max(1, (end - start + shardLength - 1) / shardLength);
+        shards = new FreeGapIndex[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new FreeGapIndex(lowerBound(i), upperBound(i));
+        }
+    }
+
+    // Methods
+
+    /**
+     * Returns the amount of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Marks [start, end] as occupied (see FreeGapIndex.occupy). Only changes the shards that it touches.
+     */
+    public void occupy(long start, long end) {
+        for (int i = shardOf(start), last = shardOf(end); i <= last; i++) {
+            shards[i].occupy(Math.max(start, lowerBound(i)), Math.min(end, upperBound(i)));
+        }
+    }
+
+    /**
+     * Marks the parts of [start, end] that the given index doesn't cover as free (see FreeGapIndex.release). Only changes
+     * the shards that it touches.
+     */
+    public void release(long start, long end, OccupancyQuery remaining) {
+        for (int i = shardOf(start), last = shardOf(end); i <= last; i++) {
+            shards[i].release(Math.max(start, lowerBound(i)), Math.min(end, upperBound(i)), remaining);
+        }
+    }
+
+    /**
+     * Moves the calendar bounds (see FreeGapIndex.setBounds). Only a single shard can be moved, so returns false for more
+     * shards, which have to be built again.
+     */
+    public boolean setBounds(long newStart, long newEnd) {
+        if (shards.length > 1) {
+            return false;
+        }
+        shards[0].setBounds(newStart, newEnd);
+        return true;
+    }
+
+    /**
+     * Finds the earliest gap that starts at or after from and is at least length long, and writes it into the given
+     * array as {start, end}. Returns false if there is none.
+     */
+    public boolean firstFit(long from, long length, long[] gap) {
+        if (shards.length == 1) {
+            return shards[0].firstFit(from, length, gap);
+        }
+
+        int first = shardOf(from);
+        for (int shard = first; shard < shards.length; shard++) {
+            long searchFrom = shard == first ? from : lowerBound(shard);
+            // A piece at the start of a shard that goes on from the previous shard isn't the start of a gap.
+            if (shard > 0 && searchFrom <= lowerBound(shard) && readEndOfGapStartingAt(shard) != Long.MIN_VALUE
+                    && readStartOfGapEndingAt(shard - 1) != Long.MIN_VALUE) {
+                searchFrom = lowerBound(shard) + 1;
+            }
+
+            long trailingStart = Long.MIN_VALUE;
+            boolean found;
+            lockShard(shard);
+            try {
+                found = shards[shard].firstFit(searchFrom, length, gap);
+                if (!found) {
+                    trailingStart = shards[shard].startOfGapEndingAt(upperBound(shard));
+                }
+            } finally {
+                unlockShard(shard);
+            }
+
+            if (found) {
+                gap[1] = joinRight(shard, gap[1]);
+                return true;
+            }
+            // The last piece of the shard may be long enough with the pieces after it.
+            if (trailingStart != Long.MIN_VALUE && trailingStart >= searchFrom) {
+                long joinedEnd = joinRight(shard, upperBound(shard));
+                if (joinedEnd - trailingStart >= length) {
+                    gap[0] = trailingStart;
+                    gap[1] = joinedEnd;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Visits the gaps that are at least length long by order of their length (see FreeGapIndex.forEachByLength). With
+     * more than one shard the gaps are joined and sorted first, and the visitor is called without any lock.
+     */
+    public void forEachByLength(long length, boolean shortestFirst, FreeGapIndex.GapVisitor visitor) {
+        if (shards.length == 1) {
+            shards[0].forEachByLength(length, shortestFirst, visitor);
+            return;
+        }
+
+        List<long[]> gaps = new ArrayList<>();
+        for (long[] gap : joinedGaps()) {
+            if (gap[1] - gap[0] >= length) {
+                gaps.add(gap);
+            }
+        }
+        Collections.sort(gaps, (first, second) -> {
+            int byLength = Long.compare(first[1] - first[0], second[1] - second[0]);
+            return byLength != 0 ? (shortestFirst ? byLength : -byLength) : Long.compare(first[0], second[0]);
+        });
+        for (long[] gap : gaps) {
+            if (!visitor.visit(gap[0], gap[1])) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the fragmentation of the free time (see FreeGapIndex.fragmentation). Takes O(gaps) with more than one shard.
+     */
+    public double fragmentation() {
+        if (shards.length == 1) {
+            return shards[0].fragmentation();
+        }
+
+        long totalSeconds = 0, squaredSeconds = 0;
+        for (long[] gap : joinedGaps()) {
+            long seconds = (gap[1] - gap[0]) / 1000;
+            totalSeconds += seconds;
+            squaredSeconds += seconds * seconds;
+        }
+        return totalSeconds == 0 ? 0 : 1 - (double) squaredSeconds / ((double) totalSeconds * totalSeconds);
+    }
+
+    /**
+     * Returns the gap that contains the given time (start < time < end), or null if there is none. The gap is returned
+     * as {start, end}.
+     */
+    public long[] containing(long time) {
+        if (shards.length == 1) {
+            return shards[0].containing(time);
+        }
+
+        int shard = shardOf(time);
+        long[] gap;
+        lockShard(shard);
+        try {
+            gap = shards[shard].containing(time);
+        } finally {
+            unlockShard(shard);
+        }
+        if (gap == null && shard > 0 && time == lowerBound(shard)) {
+            // The time may be the end of a shard inside a gap that goes on in the next one.
+            long pieceStart = readStartOfGapEndingAt(shard - 1);
+            long pieceEnd = readEndOfGapStartingAt(shard);
+            if (pieceStart == Long.MIN_VALUE || pieceEnd == Long.MIN_VALUE) {
+                return null;
+            }
+            return new long[]{joinLeft(shard - 1, pieceStart), joinRight(shard, pieceEnd)};
+        }
+        return gap == null ? null : new long[]{joinLeft(shard, gap[0]), joinRight(shard, gap[1])};
+    }
+
+    /**
+     * Returns the total length of the gaps (or their parts) before the given time.
+     */
+    public long freeTimeBefore(long time) {
+        int last = shardOf(time);
+        long total = 0;
+        for (int i = 0; i <= last; i++) {
+            lockShard(i);
+            try {
+                total += i < last ? shards[i].totalLength() : shards[i].freeTimeBefore(time);
+            } finally {
+                unlockShard(i);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns all the gaps by order as {start0, end0, start1, end1, ...}, with the pieces of each gap joined.
+     */
+    public long[] toArray() {
+        List<long[]> gaps = joinedGaps();
+        long[] array = new long[2 * gaps.size()];
+        for (int i = 0; i < gaps.size(); i++) {
+            array[2 * i] = gaps.get(i)[0];
+            array[2 * i + 1] = gaps.get(i)[1];
+        }
+        return array;
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Returns the gaps by order as {start, end} pairs, with the pieces of each gap joined.
+     */
+    private List<long[]> joinedGaps() {
+        List<long[]> gaps = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            long[] pieces;
+            boolean cut;
+            lockShard(i);
+            try {
+                pieces = shards[i].toArray();
+                cut = isCut(i);
+            } finally {
+                unlockShard(i);
+            }
+            for (int k = 0; k < pieces.length; k += 2) {
+                long[] previous = gaps.isEmpty() ? null : gaps.get(gaps.size() - 1);
+                if (!cut && previous != null && previous[1] == pieces[k] && pieces[k] == lowerBound(i)) {
+                    previous[1] = pieces[k + 1];
+                } else {
+                    gaps.add(new long[]{pieces[k], pieces[k + 1]});
+                }
+            }
+        }
+        return gaps;
+    }
+
+    /**
+     * Helper function: Returns the end of the gap whose piece in the given shard ends at the given time, following its
+     * pieces in the next shards.
+     */
+    private long joinRight(int shard, long pieceEnd) {
+        while (pieceEnd == upperBound(shard) && shard + 1 < shards.length) {
+            long next = readEndOfGapStartingAt(++shard);
+            if (next == Long.MIN_VALUE) {
+                break;
+            }
+            pieceEnd = next;
+        }
+        return pieceEnd;
+    }
+
+    /**
+     * Helper function: Returns the start of the gap whose piece in the given shard starts at the given time, following
+     * its pieces in the previous shards.
+     */
+    private long joinLeft(int shard, long pieceStart) {
+        while (pieceStart == lowerBound(shard) && shard > 0 && readEndOfGapStartingAt(shard) != Long.MIN_VALUE) {
+            long previous = readStartOfGapEndingAt(--shard);
+            if (previous == Long.MIN_VALUE) {
+                break;
+            }
+            pieceStart = previous;
+        }
+        return pieceStart;
+    }
+
+    /**
+     * Helper function: Returns the end of the piece that starts the given shard, or Long.MIN_VALUE if there is none or
+     * an event touches the start of the shard.
+     */
+    private long readEndOfGapStartingAt(int shard) {
+        lockShard(shard);
+        try {
+            return isCut(shard) ? Long.MIN_VALUE : shards[shard].endOfGapStartingAt(lowerBound(shard));
+        } finally {
+            unlockShard(shard);
+        }
+    }
+
+    /**
+     * Helper function: Returns the start of the piece that ends the given shard, or Long.MIN_VALUE if there is none.
+     */
+    private long readStartOfGapEndingAt(int shard) {
+        lockShard(shard);
+        try {
+            return shards[shard].startOfGapEndingAt(upperBound(shard));
+        } finally {
+            unlockShard(shard);
+        }
+    }
+
+    /**
+     * Helper function: Returns true if an event touches the start of the given shard, so a gap can't go on across it.
+     * Called with the shard locked.
+     */
+    private boolean isCut(int shard) {
+        return shard > 0 && occupied != null && occupied.anyOverlap(lowerBound(shard), lowerBound(shard));
+    }
+
+    /**
+     * Helper function: Returns the shard of the given time, clipped to the shards.
+     */
+    private int shardOf(long time) {
+        if (shards.length == 1) {
+            return 0;
+        }
+        long shard = Math.floorDiv(time - start, shardLength);
+        return (int) Math.max(0, Math.min(shard, shards.length - 1));
+    }
+
+    /**
+     * Helper function: Returns the time the given shard starts at.
+     */
+    private long lowerBound(int shard) {
+        return start + shard * shardLength;
+    }
+
+    /**
+     * Helper function: Returns the time the given shard ends at.
+     */
+    private long upperBound(int shard) {
+        return shard == shards.length - 1 ? end : start + (shard + 1) * shardLength;
+    }
+
+    /**
+     * Helper function: Locks the day of the given shard for reading, if there are locks.
+     */
+    private void lockShard(int shard) {
+        if (locks != null) {
+            locks.lockDays(shard, shard, false);
+        }
+    }
+
+    /**
+     * Helper function: Unlocks the day of the given shard for reading, if there are locks.
+     */
+    private void unlockShard(int shard) {
+        if (locks != null) {
+            locks.unlockDays(shard, shard, false);
+        }
+    }
+}
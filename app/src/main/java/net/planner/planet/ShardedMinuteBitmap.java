@@ -0,0 +1,105 @@
+package net.planner.planet;
+
+/**
+ * Bitmap of the occupied minutes of a calendar split into shards of consecutive minutes, each a MinuteBitmap of its
+ * own: the days of the calendar in concurrent mode, so changes on different days change different shards, or a single
+ * shard otherwise. With locks, reading the bitmap locks the day of each shard for reading while it reads it (one day at
+ * a time), and every change is made with the days it touches locked for writing by the caller.
+ */
+class ShardedMinuteBitmap {
+
+    // Fields
+    private final long origin;
+    private final int shardMinutes;
+    private final MinuteBitmap[] shards;
+    private final DayStripedLocks locks; // Null if the shards aren't shared between threads.
+
+    // Constructors
+
+    /**
+     * Construct a bitmap with the given amount of minutes from the given origin (ms) in a single shard, where all the
+     * bits are unset.
+     */
+    public ShardedMinuteBitmap(long origin, int size) {
+        this(origin, size, Math.max(size, 1), null);
+    }
+
+    /**
+     * Construct a bitmap with the given amount of minutes from the given origin (ms) in shards of the given amount of
+     * minutes, where the shard of each day is guarded by the lock of that day in the given locks (may be null).
+     */
+    public ShardedMinuteBitmap(long origin, int size, int shardMinutes, DayStripedLocks locks) {
+        this.origin = origin;
+        this.shardMinutes = shardMinutes;
+        this.locks = locks;
+        shards = new MinuteBitmap[Math.max(1, (size + shardMinutes - 1) / shardMinutes)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new MinuteBitmap(timeOf(i * shardMinutes), Math.min(shardMinutes, size - i * shardMinutes));
+        }
+    }
+
+    // Methods
+
+    /**
+     * Returns the start time (ms) of the given minute.
+     */
+    public long timeOf(int minute) {
+        return origin + minute * MinuteBitmap.MINUTE_IN_MILLIS;
+    }
+
+    /**
+     * Returns the minute that contains the given time (ms). May be outside of the bitmap.
+     */
+    public long minuteOf(long time) {
+        return Math.floorDiv(time - origin, MinuteBitmap.MINUTE_IN_MILLIS);
+    }
+
+    /**
+     * Sets every minute that the closed time interval [start, end] (ms) touches. Only changes the shards that it touches.
+     */
+    public void setTouching(long start, long end) {
+        for (int i = shardOf(start), last = shardOf(end); i <= last; i++) {
+            shards[i].setTouching(start, end);
+        }
+    }
+
+    /**
+     * Unsets every minute that the closed time interval [start, end] (ms) touches. Only changes the shards that it
+     * touches.
+     */
+    public void clearTouching(long start, long end) {
+        for (int i = shardOf(start), last = shardOf(end); i <= last; i++) {
+            shards[i].clearTouching(start, end);
+        }
+    }
+
+    /**
+     * Unsets the minutes of the given bitmap (which must have the same origin) that are set in this one. Returns the
+     * given bitmap.
+     */
+    public MinuteBitmap removeFrom(MinuteBitmap allowed) {
+        for (int i = 0; i < shards.length; i++) {
+            if (locks != null) {
+                locks.lockDays(i, i, false);
+            }
+            try {
+                allowed.andNot(shards[i], i * shardMinutes);
+            } finally {
+                if (locks != null) {
+                    locks.unlockDays(i, i, false);
+                }
+            }
+        }
+        return allowed;
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Returns the shard of the given time, clipped to the shards.
+     */
+    private int shardOf(long time) {
+        long shard = Math.floorDiv(minuteOf(time), shardMinutes);
+        return (int) Math.max(0, Math.min(shard, shards.length - 1));
+    }
+}
@@ -0,0 +1,131 @@
+package net.planner.planet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/** Cache of the results of PlannerSolver.addTasks, keyed by the fingerprint of the calendar (see
+ * PlannerCalendar.getFingerprint) and of the sorted tasks. A request with the same calendar and tasks as a cached one
+ * gets the same placements without running the solver, and any change to the calendar or the tasks changes the key.
+ * Holds up to the given amount of results, and evicts the least recently used one first **/
+public class SolverCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final Map<Long, long[][]> placements; // Per placed task: its index in the sorted tasks, then {start, end} of its events.
+    private long hits;
+    private long misses;
+
+    /** Create a cache that holds up to DEFAULT_CAPACITY results **/
+    public SolverCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Create a cache that holds up to the given amount of results **/
+    public SolverCache(int capacity) {
+        this.placements = new LinkedHashMap<Long, long[][]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, long[][]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Add a list of tasks to the calendar like PlannerSolver.addTasks, using the cached result when there is one.
+     * Returns the events of the added tasks **/
+    public List<List<PlannerEvent>> addTasks(List<PlannerTask> tasks, PlannerCalendar calendar) {
+        List<PlannerTask> sortedTasks = PlannerSolver.sortTasks(tasks, calendar);
+        long key = Fingerprints.combine(calendar.getFingerprint(), Fingerprints.ofTasks(sortedTasks));
+        long[][] cached;
+        synchronized (this) {
+            cached = placements.get(key);
+        }
+        // The cached placements are checked against this calendar again, since another thread may have taken their time
+        // in the meantime, or the key may belong to another calendar and tasks.
+        List<List<PlannerEvent>> replayed = cached == null ? null : replay(cached, new ArrayList<>(sortedTasks), calendar);
+        synchronized (this) {
+            if (replayed != null) {
+                hits++;
+                return replayed;
+            }
+            misses++;
+        }
+
+        List<List<PlannerEvent>> addedTasks = PlannerSolver.addTasksInOrder(sortedTasks, calendar);
+        long[][] result = record(addedTasks, sortedTasks);
+        synchronized (this) {
+            placements.put(key, result);
+        }
+        return addedTasks;
+    }
+
+    /** Get the amount of requests answered from the cache **/
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Get the amount of requests that ran the solver **/
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Drop all cached results **/
+    public synchronized void clear() {
+        placements.clear();
+    }
+
+    /** Get the placements of the added tasks in a compact form **/
+    private static long[][] record(List<List<PlannerEvent>> addedTasks, List<PlannerTask> sortedTasks) {
+        long[][] result = new long[addedTasks.size()][];
+        int index = 0;
+        for (int i = 0; i < addedTasks.size(); i++) {
+            List<PlannerEvent> events = addedTasks.get(i);
+            // Tasks are added by their order, so the task of each result is at or after the previous one.
+            while (sortedTasks.get(index) != events.get(0).getParentTask()) {
+                index++;
+            }
+            long[] placement = new long[1 + 2 * events.size()];
+            placement[0] = index;
+            for (int k = 0; k < events.size(); k++) {
+                placement[1 + 2 * k] = events.get(k).getStartTime();
+                placement[2 + 2 * k] = events.get(k).getEndTime();
+            }
+            result[i] = placement;
+        }
+        return result;
+    }
+
+    /** Add the cached placements of the tasks to the calendar through its checked insertion. If any of them can't be
+     * added, the ones that were added are removed again and null is returned. Returns the events of the added tasks **/
+    private static List<List<PlannerEvent>> replay(long[][] cached, List<PlannerTask> sortedTasks, PlannerCalendar calendar) {
+        List<List<PlannerEvent>> addedTasks = new LinkedList<>();
+        List<PlannerEvent> inserted = new ArrayList<>();
+        for (long[] placement : cached) {
+            if (placement[0] >= sortedTasks.size()) {
+                return undo(inserted, calendar);
+            }
+            PlannerTask task = sortedTasks.get((int) placement[0]);
+            List<PlannerEvent> events = new LinkedList<>();
+            for (int k = 1; k < placement.length; k += 2) {
+                PlannerEvent event = new PlannerEvent(task, placement[k], placement[k + 1]);
+                if (!calendar.insertTaskEvent(event)) {
+                    return undo(inserted, calendar);
+                }
+                inserted.add(event);
+                events.add(event);
+            }
+            addedTasks.add(events);
+        }
+        return addedTasks;
+    }
+
+    /** Remove the given events of a partial replay from the calendar. Returns null **/
+    private static List<List<PlannerEvent>> undo(List<PlannerEvent> inserted, PlannerCalendar calendar) {
+        for (PlannerEvent event : inserted) {
+            calendar.removeEvent(event);
+        }
+        return null;
+    }
+}
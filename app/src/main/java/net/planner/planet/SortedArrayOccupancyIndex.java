@@ -0,0 +1,356 @@
+package net.planner.planet;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Occupancy index backed by parallel primitive arrays sorted by (start, end).
+ * Overlap queries are two binary searches (over the starts and over the running maximum of the ends) and a scan of the
+ * entries between them.
+ */
+class SortedArrayOccupancyIndex implements OccupancyIndex {
+
+    // Constants
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Fields
+    private long[] starts;
+    private long[] ends;
+    private long[] maxEnds; // maxEnds[i] is the maximal end of entries 0..i, so it never decreases.
+    private PlannerEvent[] events;
+    private int size;
+    private boolean shared; // The arrays may be shared with a snapshot, so they are copied before the next change.
+
+    // Constructors
+
+    /**
+     * Construct an empty index.
+     */
+    public SortedArrayOccupancyIndex() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Construct an empty index that can hold the given amount of entries before growing.
+     */
+    public SortedArrayOccupancyIndex(int capacity) {
+        capacity = Math.max(capacity, 1);
+        starts = new long[capacity];
+        ends = new long[capacity];
+        maxEnds = new long[capacity];
+        events = new PlannerEvent[capacity];
+        size = 0;
+    }
+
+    /**
+     * Construct an index that shares the arrays of another one.
+     */
+    private SortedArrayOccupancyIndex(SortedArrayOccupancyIndex other) {
+        starts = other.starts;
+        ends = other.ends;
+        maxEnds = other.maxEnds;
+        events = other.events;
+        size = other.size;
+        shared = true;
+    }
+
+    // Methods
+
+    @Override
+    public boolean add(long start, long end, PlannerEvent event) {
+        if (end < start) {
+            return false;
+        }
+
+        unshare();
+        ensureCapacity(size + 1);
+        int position = upperBound(start, end);
+        int moved = size - position;
+        if (moved > 0) {
+            System.arraycopy(starts, position, starts, position + 1, moved);
+            System.arraycopy(ends, position, ends, position + 1, moved);
+            System.arraycopy(events, position, events, position + 1, moved);
+        }
+        starts[position] = start;
+        ends[position] = end;
+        events[position] = event;
+        size++;
+        updateMaxEnds(position);
+        return true;
+    }
+
+    @Override
+    public void addAllSorted(long[] starts, long[] ends, PlannerEvent[] events, int count) {
+        unshare();
+        ensureCapacity(size + count);
+
+        // Merge from the back, so every entry moves once. New entries go after existing equal ones, like in add.
+        int existing = size - 1, added = count - 1, position = size + count - 1, skipped = 0;
+        while (added >= 0) {
+            if (ends[added] < starts[added]) {
+                added--;
+                skipped++;
+                continue;
+            }
+
+            if (existing >= 0 && (this.starts[existing] > starts[added] ||
+                    (this.starts[existing] == starts[added] && this.ends[existing] > ends[added]))) {
+                moveEntry(existing--, position--);
+            } else {
+                this.starts[position] = starts[added];
+                this.ends[position] = ends[added];
+                this.events[position] = events[added];
+                added--;
+                position--;
+            }
+        }
+
+        // Entries before the merge point are in place unless some new entries were skipped.
+        int from = position + 1;
+        if (skipped > 0) {
+            System.arraycopy(this.starts, from, this.starts, from - skipped, size + count - from);
+            System.arraycopy(this.ends, from, this.ends, from - skipped, size + count - from);
+            System.arraycopy(this.events, from, this.events, from - skipped, size + count - from);
+            Arrays.fill(this.events, size + count - skipped, size + count, null);
+            from -= skipped;
+        }
+        size += count - skipped;
+        updateMaxEnds(from);
+    }
+
+    @Override
+    public boolean remove(long start, long end, PlannerEvent event) {
+        int position = indexOf(start, end, event);
+        if (position < 0) {
+            return false;
+        }
+
+        unshare();
+        int moved = size - position - 1;
+        if (moved > 0) {
+            System.arraycopy(starts, position + 1, starts, position, moved);
+            System.arraycopy(ends, position + 1, ends, position, moved);
+            System.arraycopy(events, position + 1, events, position, moved);
+        }
+        size--;
+        events[size] = null;
+        updateMaxEnds(position);
+        return true;
+    }
+
+    @Override
+    public boolean contains(long start, long end, PlannerEvent event) {
+        return indexOf(start, end, event) >= 0;
+    }
+
+    @Override
+    public boolean forEachOverlap(long start, long end, Visitor visitor) {
+        int to = upperBoundOfStart(end);
+        for (int i = firstWithMaxEndAtLeast(start); i < to; i++) {
+            if (ends[i] >= start && !visitor.visit(starts[i], ends[i], events[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the entries that overlap with [start, end] and start at or after minStart by order of their start time.
+     * Returns false if stopped by the visitor.
+     */
+    public boolean forEachOverlap(long start, long end, long minStart, Visitor visitor) {
+        int to = upperBoundOfStart(end);
+        for (int i = Math.max(firstWithMaxEndAtLeast(start), lowerBoundOfStart(minStart)); i < to; i++) {
+            if (ends[i] >= start && !visitor.visit(starts[i], ends[i], events[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean anyOverlap(long start, long end) {
+        int to = upperBoundOfStart(end);
+        for (int i = firstWithMaxEndAtLeast(start); i < to; i++) {
+            if (ends[i] >= start) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long maxEndOverlapping(long start, long end) {
+        // Entries that start before the query's end all end at or before maxEnds[to - 1].
+        int to = upperBoundOfStart(end);
+        if (to == 0 || maxEnds[to - 1] < start) {
+            return Long.MIN_VALUE;
+        }
+        return maxEnds[to - 1];
+    }
+
+    @Override
+    public long firstStartAtOrAfter(long time) {
+        int position = lowerBoundOfStart(time);
+        return position < size ? starts[position] : Long.MAX_VALUE;
+    }
+
+    @Override
+    public void dropBefore(long time, Visitor dropped) {
+        unshare();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (ends[i] >= time) {
+                starts[kept] = starts[i];
+                ends[kept] = ends[i];
+                events[kept] = events[i];
+                kept++;
+            } else if (dropped != null) {
+                dropped.visit(starts[i], ends[i], events[i]);
+            }
+        }
+        Arrays.fill(events, kept, size, null);
+        size = kept;
+        updateMaxEnds(0);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a snapshot of this index in O(1). Both share the arrays until either of them changes.
+     */
+    @Override
+    public SortedArrayOccupancyIndex snapshot() {
+        shared = true;
+        return new SortedArrayOccupancyIndex(this);
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Copies the arrays if they may be shared with a snapshot.
+     */
+    private void unshare() {
+        if (shared) {
+            starts = starts.clone();
+            ends = ends.clone();
+            maxEnds = maxEnds.clone();
+            events = events.clone();
+            shared = false;
+        }
+    }
+
+    /**
+     * Helper function: Returns the position of the given entry, or -1 if it isn't in the index.
+     */
+    private int indexOf(long start, long end, PlannerEvent event) {
+        for (int i = upperBound(start, end - 1); i < size && starts[i] == start && ends[i] == end; i++) {
+            if (Objects.equals(events[i], event)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Helper function: Returns the first position whose entry is greater than (start, end).
+     */
+    private int upperBound(long start, long end) {
+        int low = 0, high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] < start || (starts[middle] == start && ends[middle] <= end)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Helper function: Returns the first position whose start is greater than the given time.
+     */
+    private int upperBoundOfStart(long time) {
+        int low = 0, high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Helper function: Returns the first position whose start is at least the given time.
+     */
+    private int lowerBoundOfStart(long time) {
+        int low = 0, high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Helper function: Returns the first position whose running maximal end is at least the given time.
+     */
+    private int firstWithMaxEndAtLeast(long time) {
+        int low = 0, high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (maxEnds[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Helper function: Moves the entry at the given position to another position.
+     */
+    private void moveEntry(int from, int to) {
+        starts[to] = starts[from];
+        ends[to] = ends[from];
+        events[to] = events[from];
+    }
+
+    /**
+     * Helper function: Recomputes the running maximal ends from the given position.
+     */
+    private void updateMaxEnds(int from) {
+        long max = from == 0 ? Long.MIN_VALUE : maxEnds[from - 1];
+        for (int i = from; i < size; i++) {
+            max = Math.max(max, ends[i]);
+            maxEnds[i] = max;
+        }
+    }
+
+    /**
+     * Helper function: Grows the arrays so they can hold the given amount of entries.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= starts.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, starts.length * 2);
+        starts = Arrays.copyOf(starts, newCapacity);
+        ends = Arrays.copyOf(ends, newCapacity);
+        maxEnds = Arrays.copyOf(maxEnds, newCapacity);
+        events = Arrays.copyOf(events, newCapacity);
+    }
+}
@@ -0,0 +1,257 @@
+package net.planner.planet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The tags of a calendar, found by the ids of their names in PlannerTagRegistry, so the tag of a task is found by the id
+ * it keeps rather than by hashing its name. A renamed tag also stays at the id of its old name, so tasks that still
+ * carry the old name keep finding it (until another tag gets that name), and renaming doesn't have to touch the tasks.
+ * The entries are kept in a small open addressing table that is sized to the entries of this calendar (not to all the
+ * names of the registry) and never changed once built: every change builds a new one, so reads take no locks and a
+ * copy of the table shares it and takes O(1).
+ */
+class TagTable {
+
+    // Constants
+    private static final Slots EMPTY = new Slots(new int[0], new PlannerTag[0], 0);
+
+    // Fields
+    private volatile Slots slots;
+
+    // Constructors
+
+    /**
+     * Construct an empty table.
+     */
+    public TagTable() {
+        this(EMPTY);
+    }
+
+    /**
+     * Helper constructor: Construct a table with the given slots.
+     */
+    private TagTable(Slots slots) {
+        this.slots = slots;
+    }
+
+    // Methods
+
+    /**
+     * Returns the tag at the given id, which may be the tag of an old name of a renamed tag. Returns null for NO_TAG or
+     * if there is none.
+     */
+    public PlannerTag get(int id) {
+        return id > PlannerTagRegistry.NO_TAG_ID ? slots.get(id) : null;
+    }
+
+    /**
+     * Returns the tag with the given name (not an old one), or null if there is none.
+     */
+    public PlannerTag get(String name) {
+        int id = PlannerTagRegistry.find(name);
+        PlannerTag tag = get(id);
+        return tag != null && tag.getTagId() == id ? tag : null;
+    }
+
+    /**
+     * Adds the given tag, unless there is already a tag with its name. Returns true if successful.
+     */
+    public synchronized boolean add(PlannerTag tag) {
+        int id = tag.getTagId();
+        if (id == PlannerTagRegistry.NO_TAG_ID || get(tag.getTagName()) != null) {
+            return false;
+        }
+        Slots current = slots;
+        List<PlannerTag> tags = new ArrayList<>(current.size() + 1);
+        int[] ids = entries(current, null, null, tags, 1);
+        put(ids, tags, id, tag);
+        slots = Slots.of(ids, tags);
+        return true;
+    }
+
+    /**
+     * Removes the tag with the given name, and the old names that still point to it. Returns true if found.
+     */
+    public synchronized boolean remove(String name) {
+        PlannerTag tag = get(name);
+        if (tag == null) {
+            return false;
+        }
+        List<PlannerTag> tags = new ArrayList<>(slots.size());
+        int[] ids = entries(slots, tag, null, tags, 0);
+        slots = Slots.of(ids, tags);
+        return true;
+    }
+
+    /**
+     * Renames the tag with the given name, unless there is already a tag with the new name. The tag itself may be shared
+     * with copies of the table (snapshots of the calendar, forks of the solvers), so this table gets a renamed copy of it
+     * and the others keep the tag as it was. The old name keeps pointing to the copy. Returns the copy, or null if not
+     * renamed.
+     */
+    public synchronized PlannerTag rename(String oldName, String newName) {
+        PlannerTag tag = get(oldName);
+        if (tag == null || newName == null || get(newName) != null) {
+            return null;
+        }
+        PlannerTag renamed = tag.copyWithName(newName);
+        Slots current = slots;
+        List<PlannerTag> tags = new ArrayList<>(current.size() + 1);
+        int[] ids = entries(current, tag, renamed, tags, 1);
+        put(ids, tags, renamed.getTagId(), renamed);
+        slots = Slots.of(ids, tags);
+        return renamed;
+    }
+
+    /**
+     * Returns the tags by order of their ids.
+     */
+    public List<PlannerTag> getTags() {
+        Slots current = slots;
+        List<PlannerTag> tags = new ArrayList<>();
+        for (int id : current.sortedIds()) {
+            PlannerTag tag = current.get(id);
+            if (tag.getTagId() == id) {
+                tags.add(tag);
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Returns the names of the tags by order of their ids.
+     */
+    public List<String> getNames() {
+        List<String> names = new ArrayList<>();
+        for (PlannerTag tag : getTags()) {
+            names.add(tag.getTagName());
+        }
+        return names;
+    }
+
+    /**
+     * Returns a copy of the table that can be changed independently of it (the tags themselves are shared, and a copy of
+     * a tag is made only when it's renamed). Takes O(1), since the slots are never changed.
+     */
+    public TagTable copy() {
+        return new TagTable(slots);
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Adds the tags of the given slots to the given list and returns their ids in an array with room for
+     * the given amount of extra entries. Entries of the given old tag are dropped, or point to the given replacement
+     * instead if it's not null.
+     */
+    private static int[] entries(Slots slots, PlannerTag old, PlannerTag replacement, List<PlannerTag> tags, int extra) {
+        int[] ids = new int[slots.size() + extra];
+        for (int i = 0; i < slots.ids.length; i++) {
+            PlannerTag tag = slots.tags[i];
+            if (tag == null || (tag == old && replacement == null)) {
+                continue;
+            }
+            ids[tags.size()] = slots.ids[i];
+            tags.add(tag == old ? replacement : tag);
+        }
+        return ids;
+    }
+
+    /**
+     * Helper function: Points the given id to the given tag in the entries made by entries (with room for one more). The
+     * id may be an old name of another tag, and then it's taken from it.
+     */
+    private static void put(int[] ids, List<PlannerTag> tags, int id, PlannerTag tag) {
+        for (int i = 0; i < tags.size(); i++) {
+            if (ids[i] == id) {
+                tags.set(i, tag);
+                return;
+            }
+        }
+        ids[tags.size()] = id;
+        tags.add(tag);
+    }
+
+    // Inner classes
+
+    /**
+     * Open addressing table from ids to tags with linear probing, which is never changed once built. Empty slots hold the
+     * id NO_TAG.
+     */
+    private static class Slots {
+
+        private final int[] ids;
+        private final PlannerTag[] tags;
+        private final int count;
+
+        /**
+         * Create slots with the given arrays, whose length is a power of two (or zero), holding count entries.
+         */
+        Slots(int[] ids, PlannerTag[] tags, int count) {
+            this.ids = ids;
+            this.tags = tags;
+            this.count = count;
+        }
+
+        /**
+         * Returns slots holding the given ids and tags, with at most half of the slots taken.
+         */
+        static Slots of(int[] ids, List<PlannerTag> tags) {
+            if (tags.isEmpty()) {
+                return EMPTY;
+            }
+            int capacity = Integer.highestOneBit(Math.max(4 * tags.size() - 1, 1));
+            int[] slotIds = new int[capacity];
+            PlannerTag[] slotTags = new PlannerTag[capacity];
+            for (int i = 0; i < tags.size(); i++) {
+                int slot = slotOf(slotIds, ids[i]);
+                slotIds[slot] = ids[i];
+                slotTags[slot] = tags.get(i);
+            }
+            return new Slots(slotIds, slotTags, tags.size());
+        }
+
+        /**
+         * Returns the amount of entries.
+         */
+        int size() {
+            return count;
+        }
+
+        /**
+         * Returns the tag at the given id, or null if there is none.
+         */
+        PlannerTag get(int id) {
+            return ids.length == 0 ? null : tags[slotOf(ids, id)];
+        }
+
+        /**
+         * Returns the ids of the entries in increasing order.
+         */
+        int[] sortedIds() {
+            int[] sorted = new int[count];
+            int index = 0;
+            for (int id : ids) {
+                if (id != PlannerTagRegistry.NO_TAG_ID) {
+                    sorted[index++] = id;
+                }
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        /**
+         * Returns the slot of the given id in the given ids, or the empty slot where it would be.
+         */
+        private static int slotOf(int[] ids, int id) {
+            int mask = ids.length - 1;
+            int slot = (id * 0x9E3779B9) >>> 16 & mask;
+            while (ids[slot] != PlannerTagRegistry.NO_TAG_ID && ids[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package net.planner.planet;
+
+import com.brein.time.timeintervals.collections.ListIntervalCollection;
+import com.brein.time.timeintervals.indexes.IntervalTree;
+import com.brein.time.timeintervals.indexes.IntervalTreeBuilder;
+import com.brein.time.timeintervals.intervals.IInterval;
+import com.brein.time.timeintervals.intervals.LongInterval;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
+
+/**
+ * The forbidden or the preferred time windows of a tag: explicit intervals, kept in an IntervalTree, and recurrence
+ * rules, whose occurrences are computed only for the queried range. The tree and the list of rules are only created
+ * when the first interval or rule is added. Windows can be frozen and interned by their content, so tags with the same
+ * windows (such as the same tag in the calendars of many users) share one immutable instance, and all tags without
+ * windows share EMPTY.
+ */
+class TagWindows {
+
+    // Constants
+    private static final Comparator<IInterval> BY_START_AND_END = (first, second) -> {
+        int byStart = Long.compare(((LongInterval) first).getStart(), ((LongInterval) second).getStart());
+        return byStart != 0 ? byStart : Long.compare(((LongInterval) first).getEnd(), ((LongInterval) second).getEnd());
+    };
+
+    public static final TagWindows EMPTY = new TagWindows(true);
+    private static final Map<TagWindows, WeakReference<TagWindows>> INTERNED = new WeakHashMap<>();
+
+    // Fields
+    private IntervalTree intervals; // Null until the first interval is added.
+    private List<RecurrenceRule> rules; // Null until the first rule is added.
+    private final boolean frozen;
+    private long fingerprint; // Computed once the windows are frozen.
+
+    // Constructors
+
+    /**
+     * Construct windows with no intervals and no rules.
+     */
+    public TagWindows() {
+        this(false);
+    }
+
+    /**
+     * Helper constructor: Construct windows with no intervals and no rules that can be changed if not frozen.
+     */
+    private TagWindows(boolean frozen) {
+        this.frozen = frozen;
+        this.fingerprint = frozen ? Fingerprints.ofWindows(this) : 0;
+    }
+
+    // Methods
+
+    /**
+     * Returns the interned frozen windows with the same intervals and rules as the given ones: the same instance for all
+     * equal windows, and EMPTY for windows with no intervals and no rules.
+     */
+    public static TagWindows intern(TagWindows windows) {
+        if (windows.isEmpty()) {
+            return EMPTY;
+        }
+        synchronized (INTERNED) {
+            WeakReference<TagWindows> reference = INTERNED.get(windows);
+            TagWindows interned = reference == null ? null : reference.get();
+            if (interned == null) {
+                interned = windows.frozen ? windows : windows.copy(true);
+                INTERNED.put(interned, new WeakReference<>(interned));
+            }
+            return interned;
+        }
+    }
+
+    /**
+     * Returns true if the windows can't be changed (then they may be shared by many tags).
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns true if there are no intervals and no rules.
+     */
+    public boolean isEmpty() {
+        return (intervals == null || intervals.isEmpty()) && (rules == null || rules.isEmpty());
+    }
+
+    /**
+     * Adds the explicit interval [from, until]. The windows must not be frozen.
+     */
+    public void addInterval(long from, long until) {
+        checkNotFrozen();
+        if (intervals == null) {
+            intervals = newTree();
+        }
+        intervals.add(new LongInterval(from, until));
+    }
+
+    /**
+     * Adds a recurrence rule. The windows must not be frozen.
+     */
+    public void addRule(RecurrenceRule rule) {
+        checkNotFrozen();
+        if (rules == null) {
+            rules = new ArrayList<>(2);
+        }
+        rules.add(rule);
+    }
+
+    /**
+     * Returns the explicit intervals (without the occurrences of the rules), which can't be changed.
+     */
+    public Collection<IInterval> getIntervals() {
+        return intervals == null ? Collections.<IInterval>emptyList() : Collections.unmodifiableCollection(intervals);
+    }
+
+    /**
+     * Returns the recurrence rules.
+     */
+    public List<RecurrenceRule> getRules() {
+        return rules == null ? Collections.<RecurrenceRule>emptyList() : Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Returns an iterator over all the windows (intervals and occurrences) by order of start time. It never ends if
+     * there is an open-ended rule.
+     */
+    public Iterator<IInterval> iterator() {
+        return iterator(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns an iterator over the windows that overlap with [start, end] by order of start time. Occurrences of the
+     * rules are computed as the iterator advances.
+     */
+    public Iterator<IInterval> iterator(long start, long end) {
+        return iterator(start, end, true);
+    }
+
+    /**
+     * Returns all the windows by order of start time, except the occurrences of the open-ended rules, which have no last
+     * one.
+     */
+    public List<IInterval> listBounded() {
+        List<IInterval> windows = new ArrayList<>();
+        for (Iterator<IInterval> it = iterator(Long.MIN_VALUE, Long.MAX_VALUE, false); it.hasNext(); ) {
+            windows.add(it.next());
+        }
+        return windows;
+    }
+
+    /**
+     * Returns the windows that overlap with [start, end] by order of start time.
+     */
+    public List<IInterval> overlap(long start, long end) {
+        List<IInterval> overlap = new ArrayList<>();
+        for (Iterator<IInterval> it = iterator(start, end); it.hasNext(); ) {
+            overlap.add(it.next());
+        }
+        return overlap;
+    }
+
+    /**
+     * Returns true if any window overlaps with [start, end].
+     */
+    public boolean anyOverlap(long start, long end) {
+        if (intervals != null && !intervals.overlap(new LongInterval(start, end)).isEmpty()) {
+            return true;
+        }
+        for (RecurrenceRule rule : getRules()) {
+            if (rule.overlaps(start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of the windows that can be changed, with a copy of the tree (the rules are immutable and shared).
+     */
+    public TagWindows snapshot() {
+        return copy(false);
+    }
+
+    /**
+     * Returns true if both windows have the same explicit intervals and the same rules by the same order.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TagWindows that = (TagWindows) o;
+        if (hashCode() != that.hashCode() || !getRules().equals(that.getRules())) return false;
+        if (getIntervals().size() != that.getIntervals().size()) return false;
+        List<IInterval> mine = new ArrayList<>(getIntervals()), theirs = new ArrayList<>(that.getIntervals());
+        Collections.sort(mine, BY_START_AND_END);
+        Collections.sort(theirs, BY_START_AND_END);
+        for (int i = 0; i < mine.size(); i++) {
+            if (BY_START_AND_END.compare(mine.get(i), theirs.get(i)) != 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(frozen ? fingerprint : Fingerprints.ofWindows(this));
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Returns an iterator over the windows that overlap with [start, end] by order of start time, with
+     * or without the occurrences of the open-ended rules.
+     */
+    private Iterator<IInterval> iterator(long start, long end, boolean openEnded) {
+        List<Iterator<IInterval>> sources = new ArrayList<>(getRules().size() + 1);
+        if (intervals != null) {
+            List<IInterval> explicit = start == Long.MIN_VALUE && end == Long.MAX_VALUE ? new ArrayList<>(intervals)
+                    : new ArrayList<>(intervals.overlap(new LongInterval(start, end)));
+            Collections.sort(explicit, BY_START_AND_END);
+            sources.add(explicit.iterator());
+        }
+        for (RecurrenceRule rule : getRules()) {
+            if (openEnded || !rule.isOpenEnded()) {
+                sources.add(rule.iterator(start, end));
+            }
+        }
+        if (sources.isEmpty()) {
+            return Collections.<IInterval>emptyList().iterator();
+        }
+        return sources.size() == 1 ? sources.get(0) : new MergingIterator(sources);
+    }
+
+    /**
+     * Helper function: Returns a copy of the windows, frozen or not.
+     */
+    private TagWindows copy(boolean frozenCopy) {
+        TagWindows copy = new TagWindows(false);
+        for (IInterval generic : getIntervals()) {
+            copy.addInterval(((LongInterval) generic).getStart(), ((LongInterval) generic).getEnd());
+        }
+        for (RecurrenceRule rule : getRules()) {
+            copy.addRule(rule);
+        }
+        if (!frozenCopy) {
+            return copy;
+        }
+        TagWindows frozenWindows = new TagWindows(true);
+        frozenWindows.intervals = copy.intervals;
+        frozenWindows.rules = copy.rules;
+        frozenWindows.fingerprint = Fingerprints.ofWindows(frozenWindows);
+        return frozenWindows;
+    }
+
+    /**
+     * Helper function: Throws if the windows are frozen.
+     */
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Frozen tag windows can't be changed");
+        }
+    }
+
+    /**
+     * Helper function: Returns a new empty tree of LongIntervals.
+     */
+    private static IntervalTree newTree() {
+        return IntervalTreeBuilder.newBuilder()
+                .usePredefinedType(IntervalTreeBuilder.IntervalType.LONG)
+                .collectIntervals(interval -> new ListIntervalCollection()).build();
+    }
+
+    // Inner classes
+
+    /**
+     * Iterator that merges iterators sorted by start time into one sorted by start time.
+     */
+    private static class MergingIterator implements Iterator<IInterval> {
+
+        private final List<Iterator<IInterval>> sources;
+        private final IInterval[] heads;
+
+        /**
+         * Create an iterator over the given sorted iterators.
+         */
+        public MergingIterator(List<Iterator<IInterval>> sources) {
+            this.sources = sources;
+            this.heads = new IInterval[sources.size()];
+            for (int i = 0; i < heads.length; i++) {
+                heads[i] = sources.get(i).hasNext() ? sources.get(i).next() : null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (IInterval head : heads) {
+                if (head != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public IInterval next() {
+            int first = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] != null && (first < 0 || BY_START_AND_END.compare(heads[i], heads[first]) < 0)) {
+                    first = i;
+                }
+            }
+            if (first < 0) {
+                throw new NoSuchElementException();
+            }
+            IInterval next = heads[first];
+            heads[first] = sources.get(first).hasNext() ? sources.get(first).next() : null;
+            return next;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package net.planner.planet;
+
+import java.util.Arrays;
+
+/**
+ * Log of the changes made to the occupancy index of a calendar during a transaction, kept in parallel primitive arrays.
+ * Every entry is one added or removed interval [start, end] with its event, so a transaction is undone by visiting the
+ * entries from the last one and applying the opposite change.
+ */
+class UndoLog {
+
+    // Constants
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Fields
+    private boolean[] added; // True if the entry was added to the index, false if it was removed from it.
+    private long[] starts;
+    private long[] ends;
+    private PlannerEvent[] events;
+    private int size;
+
+    // Constructors
+
+    /**
+     * Construct an empty log.
+     */
+    public UndoLog() {
+        added = new boolean[INITIAL_CAPACITY];
+        starts = new long[INITIAL_CAPACITY];
+        ends = new long[INITIAL_CAPACITY];
+        events = new PlannerEvent[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    // Methods
+
+    /**
+     * Records that the interval [start, end] pointing to the given event was added to the index.
+     */
+    public void recordAdd(long start, long end, PlannerEvent event) {
+        record(true, start, end, event);
+    }
+
+    /**
+     * Records that the interval [start, end] pointing to the given event was removed from the index.
+     */
+    public void recordRemove(long start, long end, PlannerEvent event) {
+        record(false, start, end, event);
+    }
+
+    /**
+     * Visits the recorded changes from the last one to the first one. The undoer gets the interval of every change
+     * and undoes it (the entry was added if wasAdded is true, removed otherwise).
+     */
+    public void undo(Undoer undoer) {
+        for (int i = size - 1; i >= 0; i--) {
+            undoer.undo(added[i], starts[i], ends[i], events[i]);
+        }
+    }
+
+    /**
+     * Returns the amount of recorded changes.
+     */
+    public int size() {
+        return size;
+    }
+
+    // Helper functions
+
+    /**
+     * Helper function: Appends a change to the log.
+     */
+    private void record(boolean wasAdded, long start, long end, PlannerEvent event) {
+        if (size == starts.length) {
+            int newCapacity = size * 2;
+            added = Arrays.copyOf(added, newCapacity);
+            starts = Arrays.copyOf(starts, newCapacity);
+            ends = Arrays.copyOf(ends, newCapacity);
+            events = Arrays.copyOf(events, newCapacity);
+        }
+        added[size] = wasAdded;
+        starts[size] = start;
+        ends[size] = end;
+        events[size] = event;
+        size++;
+    }
+
+    // Inner classes
+
+    /**
+     * Undoes one recorded change.
+     */
+    interface Undoer {
+        void undo(boolean wasAdded, long start, long end, PlannerEvent event);
+    }
+}
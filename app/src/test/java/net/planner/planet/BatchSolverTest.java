@@ -0,0 +1,121 @@
+package net.planner.planet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class BatchSolverTest {
+
+    private static final SimpleDateFormat FORMAT = new SimpleDateFormat("yyyy-MM-dd H:mm");
+
+    private static long time(String date) throws ParseException {
+        return Objects.requireNonNull(FORMAT.parse(date)).getTime();
+    }
+
+    @Test
+    public void jobsShareTagsAndAreAllSolved() throws ParseException, InterruptedException {
+        PlannerTag tag = new PlannerTag("study");
+        tag.addForbiddenTimeInterval(time("2021-05-13 0:00"), time("2021-05-13 8:00"));
+        List<PlannerTag> tags = Collections.singletonList(tag);
+
+        List<BatchSolver.Job> jobs = new ArrayList<>();
+        for (int user = 0; user < 200; user++) {
+            List<PlannerEvent> events = Collections.singletonList(
+                    new PlannerEvent("busy", time("2021-05-13 9:30"), time("2021-05-13 10:30")));
+            PlannerTask study = new PlannerTask("study", time("2021-05-20 0:00"), 60);
+            study.setTagName("study");
+            PlannerTask late = new PlannerTask("late", time("2021-05-13 0:30"), 60);
+            jobs.add(new BatchSolver.Job(time("2021-05-13 0:00"), events, tags, Arrays.asList(study, late)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            BatchSolver solver = new BatchSolver(executor, 8, BatchSolver.NO_TIMEOUT);
+            List<BatchSolver.JobResult> results = solver.solveAll(jobs.iterator());
+            Assert.assertEquals(200, results.size());
+            for (int i = 0; i < results.size(); i++) {
+                BatchSolver.JobResult result = results.get(i);
+                Assert.assertSame(jobs.get(i), result.getJob());
+                Assert.assertEquals(1, result.getResult().getPlacedTasks().size());
+                Assert.assertEquals(PlacementResult.Reason.NO_CAPACITY_BEFORE_DEADLINE,
+                        result.getResult().getUnplacedTasks().get(0).getReason());
+                PlannerCalendar calendar = result.getJob().getCalendar();
+                Assert.assertSame(tag, calendar.getTag("study"));
+                Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 8:30"), time("2021-05-13 8:40")));
+            }
+
+            BatchSolver.Metrics metrics = solver.getMetrics();
+            Assert.assertEquals(200, metrics.getSubmittedJobs());
+            Assert.assertEquals(200, metrics.getCompletedJobs());
+            Assert.assertEquals(200, metrics.getPlacedTasks());
+            Assert.assertEquals(200, metrics.getUnplacedTasks());
+            Assert.assertTrue(metrics.getJobsPerSecond() > 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void timedOutJobLeavesItsCalendar() throws ParseException, InterruptedException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"));
+        List<PlannerTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            tasks.add(new PlannerTask("task " + i, time("2021-06-10 0:00"), 5));
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            BatchSolver solver = new BatchSolver(executor, 1, 1);
+            List<BatchSolver.JobResult> results = solver.solveAll(
+                    Collections.singletonList(new BatchSolver.Job(calendar, tasks)).iterator());
+            Assert.assertTrue(results.get(0).isTimedOut());
+            Assert.assertNull(results.get(0).getResult());
+            Assert.assertEquals(1, solver.getMetrics().getTimedOutJobs());
+            Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 0:00"), time("2021-06-10 0:00")));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void jobKeepsChangesMadeWhileItRan() throws ParseException, InterruptedException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"));
+        PlannerEvent meeting = new PlannerEvent("meeting", time("2021-05-13 9:00"), time("2021-05-13 10:00"));
+        List<PlannerTask> tasks = Collections.singletonList(new PlannerTask("task", time("2021-05-20 0:00"), 60));
+        // The calendar is edited once the job took its snapshot, when the job reads its tasks.
+        BatchSolver.Job job = new BatchSolver.Job(calendar, tasks) {
+            private boolean edited;
+
+            @Override
+            public List<PlannerTask> getTasks() {
+                if (!edited) {
+                    edited = calendar.insertEvent(meeting);
+                }
+                return super.getTasks();
+            }
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            BatchSolver solver = new BatchSolver(executor, 1, BatchSolver.NO_TIMEOUT);
+            BatchSolver.JobResult result = solver.solveAll(Collections.singletonList(job).iterator()).get(0);
+            Assert.assertNull(result.getResult());
+            Assert.assertTrue(result.getError() instanceof IllegalStateException);
+            Assert.assertEquals(1, solver.getMetrics().getFailedJobs());
+            // The meeting is kept, and the task the job placed on the snapshot is not.
+            Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 9:00"), time("2021-05-13 10:00")));
+            Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 0:00"), time("2021-05-13 8:00")));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package net.planner.planet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class FreeGapIndexTest {
+
+    private static final long HORIZON = 10000;
+
+    /** Gaps between the merged blocks of the given intervals as {start0, end0, ...} **/
+    private static long[] bruteForceGaps(List<long[]> intervals) {
+        List<long[]> sorted = new ArrayList<>(intervals);
+        sorted.sort((first, second) -> Long.compare(first[0], second[0]));
+        List<Long> gaps = new ArrayList<>();
+        long freeFrom = 0;
+        boolean started = false;
+        for (long[] interval : sorted) {
+            if (started && interval[0] <= freeFrom) {
+                freeFrom = Math.max(freeFrom, interval[1]);
+                continue;
+            }
+            if (interval[0] > freeFrom) {
+                gaps.add(freeFrom);
+                gaps.add(interval[0]);
+            }
+            freeFrom = Math.max(started ? freeFrom : 0, interval[1]);
+            started = true;
+        }
+        if (freeFrom < HORIZON) {
+            gaps.add(freeFrom);
+            gaps.add(HORIZON);
+        }
+        long[] result = new long[gaps.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = gaps.get(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void fitQueries() {
+        FreeGapIndex gaps = new FreeGapIndex(0, 100);
+        gaps.occupy(10, 20);
+        gaps.occupy(50, 55);
+        gaps.occupy(60, 90);
+        Assert.assertArrayEquals(new long[]{0, 10, 20, 50, 55, 60, 90, 100}, gaps.toArray());
+
+        Assert.assertArrayEquals(new long[]{20, 50}, gaps.firstFit(0, 15));
+        Assert.assertArrayEquals(new long[]{55, 60}, gaps.firstFit(21, 5));
+        Assert.assertNull(gaps.firstFit(0, 31));
+        Assert.assertArrayEquals(new long[]{0, 10}, gaps.bestFit(10));
+        Assert.assertArrayEquals(new long[]{55, 60}, gaps.bestFit(4));
+        Assert.assertArrayEquals(new long[]{20, 50}, gaps.longest());
+        Assert.assertArrayEquals(new long[]{20, 50}, gaps.containing(30));
+        Assert.assertNull(gaps.containing(15));
+
+        Assert.assertEquals(0, gaps.freeTimeBefore(0));
+        Assert.assertEquals(10, gaps.freeTimeBefore(15));
+        Assert.assertEquals(25, gaps.freeTimeBefore(35));
+        Assert.assertEquals(10 + 30 + 5 + 10, gaps.freeTimeBefore(200));
+
+        List<Long> starts = new ArrayList<>();
+        gaps.forEachByLength(5, true, (start, end) -> starts.add(start));
+        Assert.assertEquals(Arrays.asList(55L, 0L, 90L, 20L), starts);
+        starts.clear();
+        gaps.forEachByLength(10, false, (start, end) -> starts.add(start) && start != 0);
+        Assert.assertEquals(Arrays.asList(20L, 0L), starts);
+
+        FreeGapIndex seconds = new FreeGapIndex(0, 4000);
+        Assert.assertEquals(0, seconds.fragmentation(), 1e-9);
+        seconds.occupy(1000, 2000);
+        Assert.assertEquals(1 - (1 + 4) / 9.0, seconds.fragmentation(), 1e-9);
+    }
+
+    @Test
+    public void gapsMatchBruteForce() {
+        Random random = new Random(7);
+        OccupancyIndex occupied = new SortedArrayOccupancyIndex();
+        FreeGapIndex gaps = new FreeGapIndex(0, HORIZON);
+        List<long[]> intervals = new ArrayList<>();
+
+        for (int step = 0; step < 2000; step++) {
+            if (random.nextInt(3) > 0 || intervals.isEmpty()) {
+                long start = random.nextInt((int) HORIZON - 200);
+                long[] interval = {start, start + random.nextInt(200)};
+                intervals.add(interval);
+                occupied.add(interval[0], interval[1], null);
+                gaps.occupy(interval[0], interval[1]);
+            } else {
+                long[] interval = intervals.remove(random.nextInt(intervals.size()));
+                Assert.assertTrue(occupied.remove(interval[0], interval[1], null));
+                gaps.release(interval[0], interval[1], occupied);
+            }
+
+            long[] expected = bruteForceGaps(intervals);
+            Assert.assertEquals(Arrays.toString(expected), Arrays.toString(gaps.toArray()));
+
+            long length = 1 + random.nextInt(300), from = random.nextInt((int) HORIZON);
+            long[] firstFit = null;
+            for (int i = 0; i < expected.length && firstFit == null; i += 2) {
+                if (expected[i] >= from && expected[i + 1] - expected[i] >= length) {
+                    firstFit = new long[]{expected[i], expected[i + 1]};
+                }
+            }
+            Assert.assertArrayEquals(firstFit, gaps.firstFit(from, length));
+
+            long freeTime = 0;
+            for (int i = 0; i < expected.length && expected[i] < from; i += 2) {
+                freeTime += Math.min(expected[i + 1], from) - expected[i];
+            }
+            Assert.assertEquals(freeTime, gaps.freeTimeBefore(from));
+        }
+    }
+
+    @Test
+    public void shardedGapsMatchOneIndex() {
+        Random random = new Random(11);
+        OccupancyIndex occupied = new SortedArrayOccupancyIndex();
+        FreeGapIndex gaps = new FreeGapIndex(0, HORIZON);
+        ShardedFreeGaps sharded = new ShardedFreeGaps(0, HORIZON, 700, occupied, null);
+        List<long[]> intervals = new ArrayList<>();
+
+        for (int step = 0; step < 2000; step++) {
+            if (random.nextInt(3) > 0 || intervals.isEmpty()) {
+                // Some intervals start or end right at the end of a shard, some are empty.
+                long start = random.nextInt(4) == 0 ? 700 * random.nextInt(14) : random.nextInt((int) HORIZON - 200);
+                long[] interval = {start, start + (random.nextInt(4) == 0 ? 0 : random.nextInt(200))};
+                intervals.add(interval);
+                occupied.add(interval[0], interval[1], null);
+                gaps.occupy(interval[0], interval[1]);
+                sharded.occupy(interval[0], interval[1]);
+            } else {
+                long[] interval = intervals.remove(random.nextInt(intervals.size()));
+                Assert.assertTrue(occupied.remove(interval[0], interval[1], null));
+                gaps.release(interval[0], interval[1], occupied);
+                sharded.release(interval[0], interval[1], occupied);
+            }
+
+            Assert.assertEquals(Arrays.toString(gaps.toArray()), Arrays.toString(sharded.toArray()));
+            long length = 1 + random.nextInt(1500), from = random.nextInt(8) == 0 ? 700 * random.nextInt(14) :
+                    random.nextInt((int) HORIZON);
+            long[] expectedFit = gaps.firstFit(from, length), gap = new long[2];
+            Assert.assertEquals(expectedFit != null, sharded.firstFit(from, length, gap));
+            if (expectedFit != null) {
+                Assert.assertArrayEquals(expectedFit, gap);
+            }
+            Assert.assertArrayEquals(gaps.containing(from), sharded.containing(from));
+            Assert.assertEquals(gaps.freeTimeBefore(from), sharded.freeTimeBefore(from));
+            Assert.assertEquals(gaps.fragmentation(), sharded.fragmentation(), 1e-9);
+
+            List<Long> expectedStarts = new ArrayList<>(), starts = new ArrayList<>();
+            gaps.forEachByLength(length, false, (start, end) -> expectedStarts.add(start));
+            sharded.forEachByLength(length, false, (start, end) -> starts.add(start));
+            Assert.assertEquals(expectedStarts, starts);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.planner.planet;
+
+import com.brein.time.timeintervals.intervals.IInterval;
+import com.brein.time.timeintervals.intervals.LongInterval;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class IntervalSetTest {
+
+    private static final int SIZE = 200;
+
+    /** Random set with its model: one boolean per ms of [0, SIZE) **/
+    private static IntervalSet randomSet(Random random, boolean[] model) {
+        List<IInterval> intervals = new ArrayList<>();
+        for (int i = random.nextInt(8); i > 0; i--) {
+            int start = random.nextInt(SIZE), end = Math.min(SIZE - 1, start + random.nextInt(30));
+            intervals.add(new LongInterval((long) start, (long) end));
+            for (int t = start; t <= end; t++) {
+                model[t] = true;
+            }
+        }
+        Collections.sort(intervals, (first, second) ->
+                Long.compare(((LongInterval) first).getStart(), ((LongInterval) second).getStart()));
+        return IntervalSet.fromSorted(intervals.iterator());
+    }
+
+    /** Maximal runs of the model as {start0, end0, ...} **/
+    private static long[] runs(boolean[] model) {
+        List<Long> bounds = new ArrayList<>();
+        for (int t = 0; t < model.length; t++) {
+            if (model[t] && (t == 0 || !model[t - 1])) {
+                bounds.add((long) t);
+            }
+            if (model[t] && (t == model.length - 1 || !model[t + 1])) {
+                bounds.add((long) t);
+            }
+        }
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void canonicalForm() {
+        List<IInterval> intervals = Arrays.<IInterval>asList(new LongInterval(1L, 5L), new LongInterval(3L, 4L),
+                new LongInterval(6L, 8L), new LongInterval(10L, 12L));
+        IntervalSet set = IntervalSet.fromSorted(intervals.iterator());
+        Assert.assertArrayEquals(new long[]{1, 8, 10, 12}, set.toArray());
+        Assert.assertEquals(set, IntervalSet.of(1, 8).union(IntervalSet.of(10, 12)));
+        Assert.assertArrayEquals(new long[]{0, 0, 9, 9, 13, 20}, set.complement(0, 20).toArray());
+        Assert.assertTrue(IntervalSet.of(5, 4).isEmpty());
+
+        long[] fit = new long[2];
+        Assert.assertTrue(set.firstFit(4, 3, fit));
+        Assert.assertArrayEquals(new long[]{4, 8}, fit);
+        Assert.assertFalse(set.firstFit(7, 3, fit));
+    }
+
+    @Test
+    public void algebraMatchesBruteForce() {
+        Random random = new Random(2021);
+        for (int round = 0; round < 500; round++) {
+            boolean[] first = new boolean[SIZE], second = new boolean[SIZE];
+            IntervalSet a = randomSet(random, first), b = randomSet(random, second);
+            Assert.assertArrayEquals(runs(first), a.toArray());
+
+            boolean[] union = new boolean[SIZE], intersection = new boolean[SIZE], difference = new boolean[SIZE];
+            boolean[] complement = new boolean[SIZE];
+            int from = random.nextInt(SIZE), until = from + random.nextInt(SIZE - from);
+            for (int t = 0; t < SIZE; t++) {
+                union[t] = first[t] || second[t];
+                intersection[t] = first[t] && second[t];
+                difference[t] = first[t] && !second[t];
+                complement[t] = t >= from && t <= until && !first[t];
+            }
+            Assert.assertArrayEquals(runs(union), a.union(b).toArray());
+            Assert.assertArrayEquals(runs(intersection), a.intersection(b).toArray());
+            Assert.assertArrayEquals(runs(difference), a.difference(b).toArray());
+            Assert.assertArrayEquals(runs(complement), a.complement(from, until).toArray());
+
+            // queries against the runs of the model
+            long[] runs = runs(first);
+            int start = random.nextInt(SIZE), end = start + random.nextInt(SIZE - start);
+            long length = random.nextInt(40), overlap = 0;
+            long[] expectedFit = null;
+            boolean covered = false;
+            for (int i = 0; i < runs.length; i += 2) {
+                overlap += Math.max(0, Math.min(end, runs[i + 1]) - Math.max(start, runs[i]));
+                covered |= runs[i] <= start && runs[i + 1] >= end;
+                long fitStart = Math.max(runs[i], start);
+                if (expectedFit == null && runs[i + 1] - fitStart >= length) {
+                    expectedFit = new long[]{fitStart, runs[i + 1]};
+                }
+            }
+            Assert.assertEquals(first[start], a.contains(start));
+            Assert.assertEquals(covered, a.covers(start, end));
+            Assert.assertEquals(overlap, a.overlapLength(start, end));
+            long[] fit = new long[2];
+            Assert.assertEquals(expectedFit != null, a.firstFit(start, length, fit));
+            if (expectedFit != null) {
+                Assert.assertArrayEquals(expectedFit, fit);
+            }
+        }
+    }
+
+    @Test
+    public void occupancyViewMatchesTheSet() {
+        Random random = new Random(86);
+        for (int round = 0; round < 200; round++) {
+            boolean[] model = new boolean[SIZE];
+            IntervalSet set = randomSet(random, model);
+            OccupancyQuery index = new IntervalSetOccupancyQuery(set);
+            for (int query = 0; query < 20; query++) {
+                int start = random.nextInt(SIZE), end = start + random.nextInt(SIZE - start);
+                long maxEnd = Long.MIN_VALUE;
+                for (int t = start; t <= end; t++) {
+                    if (model[t]) {
+                        int last = t;
+                        while (last + 1 < SIZE && model[last + 1]) {
+                            last++;
+                        }
+                        maxEnd = last;
+                    }
+                }
+                long firstStart = Long.MAX_VALUE;
+                for (int t = SIZE - 1; t >= start; t--) {
+                    if (model[t] && (t == 0 || !model[t - 1])) {
+                        firstStart = t;
+                    }
+                }
+                Assert.assertEquals(maxEnd, index.maxEndOverlapping(start, end));
+                Assert.assertEquals(maxEnd != Long.MIN_VALUE, index.anyOverlap(start, end));
+                Assert.assertEquals(firstStart, index.firstStartAtOrAfter(start));
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.planner.planet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class MinuteBitmapTest {
+
+    /** First index at or after from that starts a run of length set values, or -1 **/
+    private static int bruteForceRun(boolean[] bits, int from, int length) {
+        for (int start = from; start + length <= bits.length; start++) {
+            boolean found = true;
+            for (int i = start; i < start + length && found; i++) {
+                found = bits[i];
+            }
+            if (found) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void rangesAndRuns() {
+        MinuteBitmap bitmap = new MinuteBitmap(0, 200);
+        bitmap.set(10, 140);
+        bitmap.clear(63, 65);
+        Assert.assertTrue(bitmap.get(10));
+        Assert.assertFalse(bitmap.get(9));
+        Assert.assertFalse(bitmap.get(64));
+        Assert.assertTrue(bitmap.get(139));
+        Assert.assertFalse(bitmap.get(140));
+        Assert.assertEquals(128, bitmap.cardinality());
+
+        Assert.assertEquals(10, bitmap.findRun(0, 53));
+        Assert.assertEquals(65, bitmap.findRun(0, 54));
+        Assert.assertEquals(-1, bitmap.findRun(0, 76));
+        Assert.assertEquals(140, bitmap.nextClearBit(65));
+        Assert.assertEquals(-1, bitmap.nextSetBit(140));
+    }
+
+    @Test
+    public void timeConversion() {
+        long minute = MinuteBitmap.MINUTE_IN_MILLIS;
+        MinuteBitmap bitmap = new MinuteBitmap(1000 * minute, 100);
+        bitmap.setInside(1010 * minute + 1, 1020 * minute);
+        Assert.assertFalse(bitmap.get(10));
+        Assert.assertTrue(bitmap.get(11));
+        Assert.assertFalse(bitmap.get(20));
+
+        MinuteBitmap touched = new MinuteBitmap(1000 * minute, 100);
+        touched.setTouching(1010 * minute + 1, 1020 * minute);
+        Assert.assertEquals(11, touched.cardinality());
+        Assert.assertEquals(0, bitmap.copy().andNot(touched).cardinality());
+        Assert.assertEquals(9, bitmap.copy().and(touched).cardinality());
+    }
+
+    @Test
+    public void runsMatchBruteForce() {
+        Random random = new Random(43200);
+        for (int round = 0; round < 200; round++) {
+            int size = 1 + random.nextInt(400);
+            MinuteBitmap bitmap = new MinuteBitmap(0, size);
+            boolean[] bits = new boolean[size];
+            for (int i = 0; i < 10; i++) {
+                int from = random.nextInt(size), to = from + random.nextInt(size - from + 1);
+                boolean value = random.nextBoolean();
+                if (value) {
+                    bitmap.set(from, to);
+                } else {
+                    bitmap.clear(from, to);
+                }
+                for (int j = from; j < to; j++) {
+                    bits[j] = value;
+                }
+            }
+
+            for (int i = 0; i < 20; i++) {
+                int from = random.nextInt(size), length = 1 + random.nextInt(100);
+                Assert.assertEquals(bruteForceRun(bits, from, length), bitmap.findRun(from, length));
+            }
+        }
+    }
+}
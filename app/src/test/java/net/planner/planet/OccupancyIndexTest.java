@@ -0,0 +1,225 @@
+package net.planner.planet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class OccupancyIndexTest {
+
+    private static final long HOUR = 3600000L;
+
+    /** Collect the visited entries of an overlap query as "start-end-title" strings **/
+    private static List<String> overlap(OccupancyIndex index, long start, long end) {
+        List<String> visited = new ArrayList<>();
+        index.forEachOverlap(start, end, (entryStart, entryEnd, event) -> {
+            visited.add(entryStart + "-" + entryEnd + "-" + (event == null ? null : event.getTitle()));
+            return true;
+        });
+        return visited;
+    }
+
+    @Test
+    public void overlapQueries() {
+        OccupancyIndex index = new SortedArrayOccupancyIndex();
+        PlannerEvent longEvent = new PlannerEvent("long", 0, 10 * HOUR);
+        PlannerEvent shortEvent = new PlannerEvent("short", 2 * HOUR, 3 * HOUR);
+        PlannerEvent lateEvent = new PlannerEvent("late", 12 * HOUR, 13 * HOUR);
+        Assert.assertTrue(index.add(0, 10 * HOUR, longEvent));
+        Assert.assertTrue(index.add(2 * HOUR, 3 * HOUR, shortEvent));
+        Assert.assertTrue(index.add(12 * HOUR, 13 * HOUR, lateEvent));
+
+        // the whole [start, end] of an event is indexed, not only its start
+        Assert.assertTrue(index.anyOverlap(5 * HOUR, 6 * HOUR));
+        Assert.assertEquals(1, overlap(index, 5 * HOUR, 6 * HOUR).size());
+        Assert.assertEquals(2, overlap(index, 3 * HOUR, 3 * HOUR).size());
+        Assert.assertFalse(index.anyOverlap(11 * HOUR, 11 * HOUR + 1));
+        Assert.assertEquals(10 * HOUR, index.maxEndOverlapping(HOUR, 4 * HOUR));
+        Assert.assertEquals(Long.MIN_VALUE, index.maxEndOverlapping(11 * HOUR, 11 * HOUR + 1));
+        Assert.assertEquals(12 * HOUR, index.firstStartAtOrAfter(2 * HOUR + 1));
+        Assert.assertEquals(Long.MAX_VALUE, index.firstStartAtOrAfter(12 * HOUR + 1));
+
+        Assert.assertFalse(index.remove(0, 10 * HOUR, shortEvent));
+        Assert.assertTrue(index.remove(0, 10 * HOUR, longEvent));
+        Assert.assertFalse(index.anyOverlap(5 * HOUR, 6 * HOUR));
+        Assert.assertEquals(2, index.size());
+    }
+
+    @Test
+    public void differentialAgainstIntervalTree() {
+        Random random = new Random(2021);
+        OccupancyIndex arrays = new SortedArrayOccupancyIndex();
+        OccupancyIndex tree = new IntervalTreeOccupancyIndex();
+        List<PlannerEvent> inserted = new ArrayList<>();
+
+        for (int step = 0; step < 3000; step++) {
+            int operation = random.nextInt(10);
+            if (operation < 5 || inserted.isEmpty()) {
+                long start = random.nextInt(500) * 60000L;
+                long end = start + random.nextInt(180) * 60000L;
+                PlannerEvent event = new PlannerEvent("event " + step, start, end);
+                inserted.add(event);
+                Assert.assertEquals(tree.add(start, end, event), arrays.add(start, end, event));
+            } else if (operation < 7) {
+                PlannerEvent event = inserted.remove(random.nextInt(inserted.size()));
+                long start = event.getStartTime(), end = event.getEndTime();
+                Assert.assertEquals(tree.contains(start, end, event), arrays.contains(start, end, event));
+                Assert.assertEquals(tree.remove(start, end, event), arrays.remove(start, end, event));
+                Assert.assertFalse(arrays.contains(start, end, event));
+            } else {
+                long start = random.nextInt(700) * 60000L - 100 * 60000L;
+                long end = start + random.nextInt(120) * 60000L;
+                Assert.assertEquals(overlap(tree, start, end), overlap(arrays, start, end));
+                Assert.assertEquals(tree.anyOverlap(start, end), arrays.anyOverlap(start, end));
+                Assert.assertEquals(tree.maxEndOverlapping(start, end), arrays.maxEndOverlapping(start, end));
+                Assert.assertEquals(tree.firstStartAtOrAfter(start), arrays.firstStartAtOrAfter(start));
+            }
+            Assert.assertEquals(tree.size(), arrays.size());
+        }
+    }
+
+    @Test
+    public void dayBucketsMatchSortedArrays() {
+        Random random = new Random(120);
+        long day = DayBucketedOccupancyIndex.DAY_IN_MILLIS;
+        DayBucketedOccupancyIndex buckets = new DayBucketedOccupancyIndex(0, 10);
+        OccupancyIndex arrays = new SortedArrayOccupancyIndex();
+        List<PlannerEvent> inserted = new ArrayList<>();
+
+        for (int step = 0; step < 3000; step++) {
+            long origin = buckets.getOrigin(), windowEnd = origin + buckets.getDays() * day;
+            int operation = random.nextInt(20);
+            if (operation < 9 || inserted.isEmpty()) {
+                long start = origin + (long) (random.nextDouble() * (windowEnd - origin));
+                long end = Math.min(windowEnd - 1, start + random.nextInt(60) * HOUR);
+                PlannerEvent event = new PlannerEvent("event " + step, start, end);
+                inserted.add(event);
+                Assert.assertEquals(arrays.add(start, end, event), buckets.add(start, end, event));
+            } else if (operation < 13) {
+                PlannerEvent event = inserted.remove(random.nextInt(inserted.size()));
+                long start = event.getStartTime(), end = event.getEndTime();
+                Assert.assertEquals(arrays.remove(start, end, event), buckets.remove(start, end, event));
+            } else if (operation == 13) {
+                // move the window forward, which drops the events that ended before it
+                long newOrigin = origin + random.nextInt(3) * day;
+                buckets.dropBefore(newOrigin + random.nextInt(1000), null);
+                arrays.dropBefore(newOrigin, null);
+                inserted.removeIf(event -> event.getEndTime() < newOrigin);
+            } else if (operation == 14) {
+                // shrinking the window drops the events that start after it
+                int days = 5 + random.nextInt(10);
+                long newEnd = origin + days * day;
+                buckets.setDays(days, null);
+                for (PlannerEvent event : inserted) {
+                    if (event.getStartTime() >= newEnd) {
+                        arrays.remove(event.getStartTime(), event.getEndTime(), event);
+                    }
+                }
+                inserted.removeIf(event -> event.getStartTime() >= newEnd);
+            } else {
+                // the index only answers queries within its window
+                long start = origin + (long) (random.nextDouble() * (windowEnd - origin));
+                long end = start + random.nextInt(50) * HOUR;
+                Assert.assertEquals(overlap(arrays, start, end), overlap(buckets, start, end));
+                Assert.assertEquals(arrays.anyOverlap(start, end), buckets.anyOverlap(start, end));
+                Assert.assertEquals(arrays.maxEndOverlapping(start, end), buckets.maxEndOverlapping(start, end));
+                Assert.assertEquals(arrays.firstStartAtOrAfter(start), buckets.firstStartAtOrAfter(start));
+            }
+            Assert.assertEquals(arrays.size(), buckets.size());
+        }
+    }
+
+    @Test
+    public void bulkLoadMatchesSingleAdds() {
+        Random random = new Random(5);
+        long day = DayBucketedOccupancyIndex.DAY_IN_MILLIS;
+        for (int round = 0; round < 50; round++) {
+            OccupancyIndex[] loaded = {new SortedArrayOccupancyIndex(), new DayBucketedOccupancyIndex(0, 5)};
+            OccupancyIndex[] added = {new SortedArrayOccupancyIndex(), new DayBucketedOccupancyIndex(0, 5)};
+            for (int batch = 0; batch < 3; batch++) {
+                int count = random.nextInt(40);
+                long[] starts = new long[count + 1], ends = new long[count + 1];
+                PlannerEvent[] events = new PlannerEvent[count + 1];
+                long start = 0;
+                for (int i = 0; i < count; i++) {
+                    start += random.nextInt(4) * HOUR;
+                    starts[i] = start;
+                    ends[i] = start + (random.nextInt(20) - 2) * HOUR; // some entries end before they start
+                    if (i > 0 && starts[i - 1] == start) {
+                        ends[i] = Math.max(ends[i], ends[i - 1]);
+                    }
+                    events[i] = new PlannerEvent("event " + i, start, Math.max(start, ends[i]));
+                }
+                for (int index = 0; index < loaded.length; index++) {
+                    loaded[index].addAllSorted(starts, ends, events, count);
+                    for (int i = 0; i < count; i++) {
+                        added[index].add(starts[i], ends[i], events[i]);
+                    }
+                }
+            }
+
+            for (int index = 0; index < loaded.length; index++) {
+                Assert.assertEquals(added[index].size(), loaded[index].size());
+                for (long time = 0; time < 5 * day; time += 7 * HOUR) {
+                    Assert.assertEquals(overlap(added[index], time, time + 5 * HOUR), overlap(loaded[index], time, time + 5 * HOUR));
+                    Assert.assertEquals(added[index].maxEndOverlapping(time, time + HOUR), loaded[index].maxEndOverlapping(time, time + HOUR));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void dayBucketsKeepEntriesPastAWholeDroppedWindow() {
+        long day = DayBucketedOccupancyIndex.DAY_IN_MILLIS;
+        DayBucketedOccupancyIndex buckets = new DayBucketedOccupancyIndex(0, 5);
+        PlannerEvent atEnd = new PlannerEvent("at end", 4 * day, 5 * day);
+        PlannerEvent past = new PlannerEvent("past", 3 * day, 12 * day);
+        PlannerEvent expired = new PlannerEvent("expired", day, 2 * day);
+        buckets.add(atEnd.getStartTime(), atEnd.getEndTime(), atEnd);
+        buckets.add(past.getStartTime(), past.getEndTime(), past);
+        buckets.add(expired.getStartTime(), expired.getEndTime(), expired);
+
+        // moving by the whole window keeps the entries that reach the new one
+        buckets.dropBefore(5 * day, null);
+        Assert.assertEquals(2, buckets.size());
+        Assert.assertEquals(Arrays.asList(3 * day + "-" + 12 * day + "-past", 4 * day + "-" + 5 * day + "-at end"),
+                overlap(buckets, 5 * day, 10 * day));
+
+        // and moving past it too, after the window shrank
+        buckets.setDays(2, null);
+        buckets.dropBefore(9 * day, null);
+        Assert.assertEquals(1, buckets.size());
+        Assert.assertEquals(Collections.singletonList(3 * day + "-" + 12 * day + "-past"), overlap(buckets, 9 * day, 11 * day));
+        Assert.assertTrue(buckets.remove(past.getStartTime(), past.getEndTime(), past));
+        Assert.assertEquals(0, buckets.size());
+    }
+
+    @Test
+    public void snapshotsShareUntilChanged() {
+        long day = DayBucketedOccupancyIndex.DAY_IN_MILLIS;
+        OccupancyIndex[] indexes = {new SortedArrayOccupancyIndex(), new DayBucketedOccupancyIndex(0, 5),
+                new IntervalTreeOccupancyIndex()};
+        for (OccupancyIndex index : indexes) {
+            PlannerEvent first = new PlannerEvent("first", HOUR, day + HOUR);
+            PlannerEvent second = new PlannerEvent("second", 2 * day, 2 * day + HOUR);
+            index.add(first.getStartTime(), first.getEndTime(), first);
+            index.add(second.getStartTime(), second.getEndTime(), second);
+            List<String> before = overlap(index, 0, 5 * day);
+
+            OccupancyIndex snapshot = index.snapshot();
+            snapshot.remove(first.getStartTime(), first.getEndTime(), first);
+            snapshot.add(3 * day, 3 * day + HOUR, null);
+            Assert.assertEquals(before, overlap(index, 0, 5 * day));
+            Assert.assertEquals(2, snapshot.size());
+
+            index.dropBefore(2 * day, null);
+            Assert.assertEquals(1, index.size());
+            Assert.assertEquals(Arrays.asList(2 * day + "-" + (2 * day + HOUR) + "-second", 3 * day + "-" + (3 * day + HOUR) + "-null"),
+                    overlap(snapshot, 0, 5 * day));
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package net.planner.planet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+public class PlannerCalendarTest {
+
+    private static final SimpleDateFormat FORMAT = new SimpleDateFormat("yyyy-MM-dd H:mm");
+
+    private static long time(String date) throws ParseException {
+        return Objects.requireNonNull(FORMAT.parse(date)).getTime();
+    }
+
+    @Test
+    public void taskIsNotPlacedInsideAnEvent() throws ParseException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        PlannerEvent event = new PlannerEvent("all night", time("2021-05-13 0:00"), time("2021-05-13 9:00"));
+        Assert.assertTrue(calendar.insertEvent(event));
+        Assert.assertFalse(calendar.insertEvent(event));
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 5:00"), time("2021-05-13 6:00")));
+
+        List<PlannerEvent> placed = calendar.insertTask(new PlannerTask("task", time("2021-05-20 0:00"), 60));
+        Assert.assertEquals(1, placed.size());
+        Assert.assertTrue(placed.get(0).getStartTime() > event.getEndTime());
+        Assert.assertEquals(2, calendar.getCollisions(time("2021-05-13 8:00"), time("2021-05-13 12:00")).size());
+
+        Assert.assertTrue(calendar.removeEvent(event));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 5:00"), time("2021-05-13 6:00")));
+    }
+
+    @Test
+    public void taskAvoidsForbiddenTime() throws ParseException {
+        PlannerTag tag = new PlannerTag("work");
+        tag.addForbiddenTimeInterval(time("2021-05-13 0:00"), time("2021-05-13 18:00"));
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, null,
+                Collections.singletonList(tag));
+
+        PlannerTask task = new PlannerTask("task", time("2021-05-20 0:00"), 60);
+        task.setTagName("work");
+        List<PlannerEvent> placed = calendar.insertTask(task);
+        Assert.assertEquals(1, placed.size());
+        Assert.assertTrue(placed.get(0).getStartTime() > time("2021-05-13 18:00"));
+    }
+
+    @Test
+    public void indexesPlaceTasksIdentically() throws ParseException {
+        long from = time("2021-05-13 0:00");
+        PlannerCalendar arrays = new PlannerCalendar(from, 0, new SortedArrayOccupancyIndex());
+        PlannerCalendar tree = new PlannerCalendar(from, 0, new IntervalTreeOccupancyIndex());
+        for (int day = 0; day < 5; day++) {
+            long start = from + day * 86400000L + 8 * 3600000L;
+            PlannerEvent event = new PlannerEvent("busy " + day, start, start + (day + 2) * 3600000L);
+            arrays.insertEvent(event);
+            tree.insertEvent(event);
+        }
+
+        for (int i = 0; i < 40; i++) {
+            PlannerTask task = new PlannerTask("task " + i, time("2021-06-10 0:00"), 30 + 15 * (i % 5));
+            Assert.assertEquals(tree.insertTask(task), arrays.insertTask(task));
+        }
+    }
+
+    @Test
+    public void bitmapModePlacesTasksOnFreeMinutes() throws ParseException {
+        PlannerTag tag = new PlannerTag("study");
+        tag.addForbiddenTimeInterval(time("2021-05-13 9:00"), time("2021-05-13 12:00"));
+        tag.addPreferredTimeInterval(time("2021-05-14 17:00"), time("2021-05-14 19:00"));
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, null,
+                Collections.singletonList(tag));
+        PlannerEvent event = new PlannerEvent("morning", time("2021-05-13 0:00"), time("2021-05-13 8:30"));
+        calendar.insertEvent(event);
+        calendar.setBitmapMode(true);
+        Assert.assertTrue(calendar.isBitmapMode());
+
+        PlannerTask task = new PlannerTask("task", time("2021-05-20 0:00"), 60);
+        task.setTagName("study");
+        List<PlannerEvent> placed = calendar.insertTask(task);
+        Assert.assertEquals(time("2021-05-13 12:02"), placed.get(0).getStartTime());
+
+        placed = calendar.preferredInsertTask(task);
+        Assert.assertEquals(time("2021-05-14 17:01"), placed.get(0).getStartTime());
+        Assert.assertTrue(calendar.preferredInsertTask(task).isEmpty());
+
+        // the minutes of a removed event become free again
+        Assert.assertTrue(calendar.removeEvent(event));
+        PlannerTask untagged = new PlannerTask("untagged", time("2021-05-20 0:00"), 30);
+        Assert.assertEquals(time("2021-05-13 0:01"), calendar.insertTask(untagged).get(0).getStartTime());
+    }
+
+    @Test
+    public void tasksFillGapsInOrder() throws ParseException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        PlannerEvent first = new PlannerEvent("first", time("2021-05-13 0:00"), time("2021-05-13 10:00"));
+        PlannerEvent second = new PlannerEvent("second", time("2021-05-13 10:30"), time("2021-05-13 12:00"));
+        calendar.insertEvent(first);
+        calendar.insertEvent(second);
+
+        // 30 minutes between the events is too short for an hour long task
+        PlannerTask task = new PlannerTask("task", time("2021-05-20 0:00"), 60);
+        Assert.assertTrue(calendar.insertTask(task).get(0).getStartTime() > second.getEndTime());
+
+        // once the second event is gone the task fits right after the first one
+        Assert.assertTrue(calendar.removeEvent(second));
+        List<PlannerEvent> placed = calendar.insertTask(task);
+        Assert.assertEquals(first.getEndTime() + 1000, placed.get(0).getStartTime());
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 11:02"), time("2021-05-13 12:00")));
+    }
+
+    @Test
+    public void horizonCanGrowAndRoll() throws ParseException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        PlannerEvent busy = new PlannerEvent("busy", time("2021-05-13 0:00"), time("2021-07-01 0:00"));
+        Assert.assertFalse(calendar.insertEvent(busy));
+
+        // a semester long horizon accepts events after the default 30 days
+        Assert.assertFalse(calendar.setHorizonDays(0));
+        Assert.assertTrue(calendar.setHorizonDays(120));
+        Assert.assertEquals(120, calendar.getHorizonDays());
+        Assert.assertTrue(calendar.insertEvent(busy));
+        PlannerTask task = new PlannerTask("task", time("2021-08-01 0:00"), 60);
+        Assert.assertEquals(busy.getEndTime() + 1000, calendar.insertTask(task).get(0).getStartTime());
+
+        // moving the start forward keeps what is still in the horizon and drops the rest
+        Assert.assertTrue(calendar.advanceStartDays(10));
+        Assert.assertEquals(time("2021-05-23 0:00"), calendar.getStartTime());
+        Assert.assertEquals(1, calendar.getCollisions(time("2021-05-24 0:00"), time("2021-05-24 1:00")).size());
+        Assert.assertTrue(calendar.advanceStartDays(60));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-07-22 0:00"), time("2021-07-23 0:00")));
+        Assert.assertEquals(time("2021-07-22 0:00") + 1000, calendar.insertTask(task).get(0).getStartTime());
+        Assert.assertTrue(calendar.insertEvent(new PlannerEvent("late", time("2021-11-01 0:00"), time("2021-11-01 1:00"))));
+    }
+
+    @Test
+    public void droppedEventsLeaveTheFingerprint() throws ParseException {
+        PlannerEvent early = new PlannerEvent("early", time("2021-05-13 10:00"), time("2021-05-13 11:00"));
+        PlannerEvent kept = new PlannerEvent("kept", time("2021-05-16 22:00"), time("2021-05-17 2:00"));
+        PlannerEvent late = new PlannerEvent("late", time("2021-06-10 10:00"), time("2021-06-10 11:00"));
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, Arrays.asList(early, kept, late));
+
+        // the fingerprint after a move is the one of a calendar built with the events that are left
+        Assert.assertTrue(calendar.advanceStartDays(2));
+        Assert.assertTrue(calendar.setHorizonDays(20));
+        PlannerCalendar expected = new PlannerCalendar(time("2021-05-15 0:00"), 0, Arrays.asList(kept));
+        Assert.assertTrue(expected.setHorizonDays(20));
+        Assert.assertEquals(expected.getFingerprint(), calendar.getFingerprint());
+    }
+
+    @Test
+    public void eventsEndByTheHorizon() throws ParseException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        Assert.assertEquals(PlannerCalendar.DEFAULT_HORIZON_DAYS, calendar.getHorizonDays());
+
+        // the calendar ends exactly 30 days after its start, not at the end of the 31st day
+        Assert.assertTrue(calendar.insertEvent(new PlannerEvent("last", time("2021-06-11 23:00"), time("2021-06-12 0:00"))));
+        Assert.assertFalse(calendar.insertEvent(new PlannerEvent("after", time("2021-06-12 0:00"), time("2021-06-12 0:01"))));
+        Assert.assertFalse(calendar.insertEvent(new PlannerEvent("before", time("2021-05-12 23:00"), time("2021-05-13 1:00"))));
+
+        // a longer horizon moves the bound with it
+        Assert.assertTrue(calendar.setHorizonDays(31));
+        Assert.assertTrue(calendar.insertEvent(new PlannerEvent("after", time("2021-06-12 0:00"), time("2021-06-12 0:01"))));
+    }
+
+    @Test
+    public void builderLoadsEventsAtOnce() throws ParseException {
+        PlannerEvent late = new PlannerEvent("late", time("2021-05-14 10:00"), time("2021-05-14 12:00"));
+        PlannerEvent early = new PlannerEvent("early", time("2021-05-13 0:00"), time("2021-05-13 9:00"));
+        PlannerEvent outside = new PlannerEvent("outside", time("2021-08-01 10:00"), time("2021-08-01 12:00"));
+        PlannerCalendar calendar = new PlannerCalendar.Builder(time("2021-05-13 0:00"))
+                .setHorizonDays(60)
+                .addEvents(Arrays.asList(late, early, outside, early))
+                .build();
+
+        Assert.assertEquals(60, calendar.getHorizonDays());
+        Assert.assertEquals(1, calendar.getCollisions(time("2021-05-13 8:00"), time("2021-05-13 12:00")).size());
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-14 11:00"), time("2021-05-14 11:30")));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-08-01 10:00"), time("2021-08-01 12:00")));
+
+        // the equal copy of an event was skipped, so one removal frees its time
+        Assert.assertTrue(calendar.removeEvent(early));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 5:00"), time("2021-05-13 6:00")));
+        PlannerTask task = new PlannerTask("task", time("2021-05-20 0:00"), 60);
+        Assert.assertEquals(time("2021-05-13 0:00") + 1000, calendar.insertTask(task).get(0).getStartTime());
+    }
+
+    @Test
+    public void collisionsAreVisitedInOrder() throws ParseException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        calendar.insertEvent(new PlannerEvent("second", time("2021-05-14 10:00"), time("2021-05-14 12:00")));
+        calendar.insertEvent(new PlannerEvent("first", time("2021-05-13 22:00"), time("2021-05-14 1:00")));
+        calendar.insertEvent(new PlannerEvent("third", time("2021-05-15 10:00"), time("2021-05-15 12:00")));
+
+        List<Long> visited = new ArrayList<>();
+        calendar.forEachCollision(time("2021-05-14 0:00"), time("2021-05-14 11:00"), (start, end) -> {
+            visited.add(start);
+            visited.add(end);
+        });
+        Assert.assertEquals(Arrays.asList(time("2021-05-13 22:00"), time("2021-05-14 1:00"),
+                time("2021-05-14 10:00"), time("2021-05-14 12:00")), visited);
+        Assert.assertTrue(calendar.anyCollision(time("2021-05-15 12:00"), time("2021-05-15 13:00")));
+        Assert.assertFalse(calendar.anyCollision(time("2021-05-15 12:01"), time("2021-05-15 13:00")));
+    }
+
+    @Test
+    public void snapshotsChangeIndependently() throws ParseException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        PlannerEvent shared = new PlannerEvent("shared", time("2021-05-13 0:00"), time("2021-05-13 9:00"));
+        calendar.insertEvent(shared);
+        PlannerTask task = new PlannerTask("task", time("2021-05-20 0:00"), 60);
+        calendar.insertTask(task);
+
+        PlannerCalendar fork = calendar.snapshot();
+        PlannerEvent forked = new PlannerEvent("forked", time("2021-05-14 10:00"), time("2021-05-14 12:00"));
+        Assert.assertTrue(fork.insertEvent(forked));
+        Assert.assertTrue(fork.removeEvent(shared));
+        Assert.assertEquals(time("2021-05-13 0:00") + 1000, fork.insertTask(task).get(0).getStartTime());
+
+        // the live calendar doesn't see the changes of the fork, and the other way around
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-14 10:00"), time("2021-05-14 12:00")));
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 5:00"), time("2021-05-13 6:00")));
+        calendar.insertEvent(new PlannerEvent("live", time("2021-05-15 10:00"), time("2021-05-15 12:00")));
+        Assert.assertTrue(fork.isIntervalAvailable(time("2021-05-15 10:00"), time("2021-05-15 12:00")));
+        Assert.assertEquals(shared.getEndTime() + 3 * 1000 + 3600000L,
+                calendar.insertTask(task).get(0).getStartTime());
+
+        calendar.restore(fork);
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-14 10:00"), time("2021-05-14 12:00")));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-15 10:00"), time("2021-05-15 12:00")));
+    }
+
+    @Test
+    public void rollbackUndoesTheTransaction() throws ParseException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        PlannerEvent kept = new PlannerEvent("kept", time("2021-05-13 0:00"), time("2021-05-13 9:00"));
+        calendar.insertEvent(kept);
+        PlannerTask task = new PlannerTask("task", time("2021-05-20 0:00"), 60);
+
+        Assert.assertTrue(calendar.beginTransaction());
+        Assert.assertFalse(calendar.beginTransaction());
+        Assert.assertFalse(calendar.setHorizonDays(10));
+        Assert.assertTrue(calendar.removeEvent(kept));
+        calendar.insertEvent(new PlannerEvent("added", time("2021-05-14 10:00"), time("2021-05-14 12:00")));
+        Assert.assertEquals(time("2021-05-13 0:00") + 1000, calendar.insertTask(task).get(0).getStartTime());
+        Assert.assertTrue(calendar.rollback());
+        Assert.assertFalse(calendar.rollback());
+
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 5:00"), time("2021-05-13 6:00")));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 10:00"), time("2021-05-15 0:00")));
+        Assert.assertEquals(kept.getEndTime() + 1000, calendar.insertTask(task).get(0).getStartTime());
+
+        Assert.assertTrue(calendar.beginTransaction());
+        calendar.insertEvent(new PlannerEvent("committed", time("2021-05-14 10:00"), time("2021-05-14 12:00")));
+        Assert.assertTrue(calendar.commit());
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-14 10:00"), time("2021-05-14 12:00")));
+    }
+
+    @Test
+    public void taskIsPlacedByItsDeadline() throws ParseException {
+        for (boolean bitmapMode : new boolean[]{false, true}) {
+            PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+            calendar.setBitmapMode(bitmapMode);
+            calendar.insertEvent(new PlannerEvent("busy", time("2021-05-13 0:00"), time("2021-05-13 22:00")));
+
+            // there is free time later in the window, but not before the deadline
+            PlannerTask dueTonight = new PlannerTask("due tonight", time("2021-05-13 23:00"), 90);
+            Assert.assertTrue(calendar.insertTask(dueTonight).isEmpty());
+            PlannerTask dueTomorrow = new PlannerTask("due tomorrow", time("2021-05-14 1:00"), 90);
+            List<PlannerEvent> placed = calendar.insertTask(dueTomorrow);
+            Assert.assertEquals(1, placed.size());
+            Assert.assertTrue(placed.get(0).getStartTime() + dueTomorrow.getDurationInMillis() <= time("2021-05-14 1:00"));
+
+            PlannerTask overdue = new PlannerTask("overdue", time("2021-05-12 0:00"), 15);
+            Assert.assertTrue(calendar.insertTask(overdue).isEmpty());
+        }
+    }
+
+    @Test
+    public void longTaskIsSplitIntoSessions() throws ParseException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        for (int hour = 1; hour < 24; hour += 2) {
+            calendar.insertEvent(new PlannerEvent("busy", time("2021-05-13 0:00") + hour * 3600000L,
+                    time("2021-05-13 0:00") + (hour + 1) * 3600000L));
+        }
+
+        // only hour-long gaps are free before the deadline, so the task fits in three sessions but not in two
+        PlannerTask task = new PlannerTask("task", time("2021-05-14 0:00"), 150);
+        task.setMaxSessionTimeInMinutes(60);
+        task.setMaxDivisionsNumber(2);
+        Assert.assertTrue(calendar.insertTask(task).isEmpty());
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 0:10"), time("2021-05-13 0:50")));
+
+        task.setMaxDivisionsNumber(3);
+        List<PlannerEvent> sessions = calendar.insertTask(task);
+        Assert.assertEquals(3, sessions.size());
+        long total = 0;
+        for (PlannerEvent session : sessions) {
+            Assert.assertTrue(session.getEndTime() <= time("2021-05-14 0:00"));
+            total += session.getEndTime() - session.getStartTime() - 1000;
+        }
+        Assert.assertEquals(task.getDurationInMillis(), total);
+
+        // the free time before the deadline can't hold the task at all
+        PlannerTask tooLong = new PlannerTask("too long", time("2021-05-14 0:00"), 600);
+        tooLong.setMaxDivisionsNumber(10);
+        Assert.assertTrue(calendar.insertTask(tooLong).isEmpty());
+    }
+
+    @Test
+    public void placementPoliciesPickDifferentGaps() throws ParseException {
+        // free gaps of two hours, of an hour and ten minutes, and the rest of the month
+        List<PlannerEvent> busy = Arrays.asList(
+                new PlannerEvent("busy", time("2021-05-13 2:00"), time("2021-05-13 10:00")),
+                new PlannerEvent("busy", time("2021-05-13 11:10"), time("2021-05-14 0:00")));
+        PlannerTask task = new PlannerTask("task", time("2021-06-01 0:00"), 60);
+
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, busy);
+        Assert.assertTrue(calendar.getFragmentation() > 0);
+        PlannerCalendar firstFit = calendar.snapshot();
+        Assert.assertTrue(firstFit.insertTask(task, PlacementPolicy.FIRST_FIT).get(0).getStartTime() < time("2021-05-13 2:00"));
+
+        // best fit fills the short gap instead of splitting the two hour gap
+        List<PlannerEvent> bestFit = calendar.insertTask(task, PlacementPolicy.BEST_FIT);
+        Assert.assertTrue(bestFit.get(0).getStartTime() >= time("2021-05-13 10:00"));
+        Assert.assertTrue(bestFit.get(0).getEndTime() < time("2021-05-13 11:10"));
+        Assert.assertTrue(calendar.getFragmentation() < firstFit.getFragmentation());
+        double fragmentation = calendar.getFragmentation();
+
+        // the longest gap is the rest of the month, and the two hour gap stays whole for a long task
+        List<PlannerEvent> worstFit = calendar.insertTask(task, PlacementPolicy.WORST_FIT);
+        Assert.assertTrue(worstFit.get(0).getStartTime() >= time("2021-05-14 0:00"));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 0:01"), time("2021-05-13 1:59")));
+        Assert.assertTrue(calendar.getFragmentation() > fragmentation);
+    }
+
+    @Test
+    public void cachedAnswersFollowChanges() throws ParseException {
+        PlannerTag tag = new PlannerTag("study");
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, null, Collections.singletonList(tag));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 10:00"), time("2021-05-13 11:00")));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-14 10:00"), time("2021-05-14 11:00")));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 10:00"), time("2021-05-13 11:00")));
+        Assert.assertEquals(1, calendar.getCacheHits());
+        Assert.assertEquals(2, calendar.getCacheMisses());
+
+        // a change only invalidates the answers for the days it touched
+        PlannerEvent event = new PlannerEvent("event", time("2021-05-13 10:30"), time("2021-05-13 12:00"));
+        calendar.insertEvent(event);
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 10:00"), time("2021-05-13 11:00")));
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-14 10:00"), time("2021-05-14 11:00")));
+        Assert.assertEquals(2, calendar.getCacheHits());
+        calendar.removeEvent(event);
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 10:00"), time("2021-05-13 11:00")));
+        Assert.assertEquals(4, calendar.getCacheMisses());
+
+        boolean forbidden = calendar.isIntervalTaggedForbidden("study", time("2021-05-13 10:00"), time("2021-05-13 11:00"));
+        tag.addForbiddenTimeInterval(time("2021-05-13 0:00"), time("2021-05-14 0:00"));
+        Assert.assertNotEquals(forbidden,
+                calendar.isIntervalTaggedForbidden("study", time("2021-05-13 10:00"), time("2021-05-13 11:00")));
+        Assert.assertEquals(6, calendar.getCacheMisses());
+    }
+
+    @Test
+    public void concurrentChangesKeepTheCalendarConsistent() throws Exception {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        Assert.assertTrue(calendar.setConcurrentMode(true));
+        long day = 24 * 3600000L;
+        long deadline = time("2021-06-01 0:00"); // the format isn't thread safe, so it's only used here
+        List<PlannerEvent> placed = Collections.synchronizedList(new ArrayList<>());
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+        // every thread fills its own days with events, while all threads race to place tasks in the first free days
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            long firstDay = time("2021-05-23 0:00") + i * 2 * day;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int hour = 0; hour < 48; hour += 3) {
+                        PlannerEvent event = new PlannerEvent("event", firstDay + hour * 3600000L,
+                                firstDay + (hour + 1) * 3600000L);
+                        Assert.assertTrue(calendar.insertEvent(event));
+                        placed.add(event);
+                        placed.addAll(calendar.insertTask(new PlannerTask("task", deadline, 30)));
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertTrue(failures.isEmpty());
+        Assert.assertEquals(2 * 4 * 16, placed.size());
+        Collections.sort(placed, (first, second) -> Long.compare(first.getStartTime(), second.getStartTime()));
+        for (int i = 1; i < placed.size(); i++) {
+            Assert.assertTrue(placed.get(i - 1).getEndTime() < placed.get(i).getStartTime());
+        }
+        for (PlannerEvent event : placed) {
+            Assert.assertTrue(calendar.removeEvent(event));
+        }
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 0:00"), time("2021-06-01 0:00")));
+    }
+}
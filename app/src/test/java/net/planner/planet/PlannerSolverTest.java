@@ -0,0 +1,294 @@
+package net.planner.planet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+public class PlannerSolverTest {
+
+    private static final SimpleDateFormat FORMAT = new SimpleDateFormat("yyyy-MM-dd H:mm");
+
+    private static long time(String date) throws ParseException {
+        return Objects.requireNonNull(FORMAT.parse(date)).getTime();
+    }
+
+    private static PlannerTask task(String title, int minutes) throws ParseException {
+        PlannerTask task = new PlannerTask(title, time("2021-05-20 0:00"), minutes);
+        task.setTagName("study");
+        return task;
+    }
+
+    @Test
+    public void bestCandidateIsKept() throws ParseException {
+        PlannerTag tag = new PlannerTag("study");
+        tag.addForbiddenTimeInterval(time("2021-05-14 0:00"), time("2021-06-13 0:00"));
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, null, Collections.singletonList(tag));
+
+        // only one day is free, so the long task doesn't fit but the two short ones do
+        List<PlannerTask> tooLong = Collections.singletonList(task("long", 25 * 60));
+        List<PlannerTask> twoShort = Arrays.asList(task("first", 60), task("second", 60));
+        List<List<PlannerEvent>> added = PlannerSolver.addBestTasks(Arrays.asList(tooLong, twoShort), calendar);
+
+        Assert.assertEquals(2, added.size());
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 0:30"), time("2021-05-13 0:40")));
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 1:30"), time("2021-05-13 1:40")));
+    }
+
+    @Test
+    public void failedBatchIsRolledBack() throws ParseException {
+        PlannerTag tag = new PlannerTag("study");
+        tag.addForbiddenTimeInterval(time("2021-05-14 0:00"), time("2021-06-13 0:00"));
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, null, Collections.singletonList(tag));
+
+        List<PlannerTask> tasks = Arrays.asList(task("short", 60), task("long", 25 * 60));
+        Assert.assertTrue(PlannerSolver.addTasksAtomically(tasks, calendar).isEmpty());
+        Assert.assertFalse(calendar.isInTransaction());
+        Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 0:00"), time("2021-05-14 0:00")));
+
+        Assert.assertEquals(1, PlannerSolver.addTasksAtomically(tasks.subList(0, 1), calendar).size());
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 0:30"), time("2021-05-13 0:40")));
+    }
+
+    @Test
+    public void failedBatchIsRemovedWithoutATransaction() throws ParseException {
+        PlannerTag tag = new PlannerTag("study");
+        tag.addForbiddenTimeInterval(time("2021-05-14 0:00"), time("2021-06-13 0:00"));
+        List<PlannerTask> tasks = Arrays.asList(task("short", 60), task("long", 25 * 60));
+
+        // in concurrent mode, or inside another transaction, the added tasks are removed again
+        PlannerCalendar concurrent = new PlannerCalendar(time("2021-05-13 0:00"), 0, null, Collections.singletonList(tag));
+        Assert.assertTrue(concurrent.setConcurrentMode(true));
+        PlannerCalendar nested = new PlannerCalendar(time("2021-05-13 0:00"), 0, null, Collections.singletonList(tag));
+        Assert.assertTrue(nested.beginTransaction());
+        for (PlannerCalendar calendar : Arrays.asList(concurrent, nested)) {
+            Assert.assertTrue(PlannerSolver.addTasksAtomically(tasks, calendar).isEmpty());
+            Assert.assertTrue(calendar.isIntervalAvailable(time("2021-05-13 0:00"), time("2021-05-14 0:00")));
+            Assert.assertEquals(1, PlannerSolver.addTasksAtomically(tasks.subList(0, 1), calendar).size());
+            Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 0:30"), time("2021-05-13 0:40")));
+        }
+        Assert.assertTrue(nested.isInTransaction());
+    }
+
+    @Test
+    public void earliestDeadlineGoesFirst() throws ParseException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        calendar.insertEvent(new PlannerEvent("busy", time("2021-05-13 2:00"), time("2021-05-15 0:00")));
+
+        // both are untagged with the same priority, and only the urgent one has to be in the first free hours
+        PlannerTask later = new PlannerTask("later", time("2021-05-20 0:00"), 90);
+        PlannerTask urgent = new PlannerTask("urgent", time("2021-05-13 2:00"), 90);
+        List<List<PlannerEvent>> added = PlannerSolver.addTasks(Arrays.asList(later, urgent), calendar);
+
+        Assert.assertEquals(2, added.size());
+        Assert.assertEquals("urgent", added.get(0).get(0).getTitle());
+        Assert.assertTrue(added.get(1).get(0).getStartTime() > time("2021-05-15 0:00"));
+    }
+
+    @Test
+    public void parallelSolverFindsABetterOrder() throws ParseException {
+        // the first free time only fits the long task, and the second one only fits the short task
+        List<PlannerEvent> busy = Arrays.asList(
+                new PlannerEvent("busy", time("2021-05-13 2:05"), time("2021-05-13 3:00")),
+                new PlannerEvent("busy", time("2021-05-13 4:05"), time("2021-05-21 0:00")));
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, busy);
+        PlannerTask shortTask = new PlannerTask("short", time("2021-05-19 0:00"), 60);
+        PlannerTask longTask = new PlannerTask("long", time("2021-05-20 0:00"), 120);
+        List<PlannerTask> tasks = Arrays.asList(shortTask, longTask);
+        Assert.assertEquals(1, PlannerSolver.addTasks(tasks, calendar.snapshot()).size());
+
+        List<List<PlannerEvent>> added = new ParallelPlannerSolver(42).addTasks(tasks, calendar);
+        Assert.assertEquals(2, added.size());
+        Assert.assertEquals("long", added.get(0).get(0).getTitle());
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 3:30"), time("2021-05-13 3:40")));
+
+        // the same seed gives the same plan
+        PlannerCalendar again = new PlannerCalendar(time("2021-05-13 0:00"), 0, busy);
+        Assert.assertEquals(added, new ParallelPlannerSolver(42).addTasks(tasks, again));
+    }
+
+    @Test
+    public void branchAndBoundSkipsTasksThatDontFit() throws ParseException {
+        List<PlannerEvent> busy = Arrays.asList(
+                new PlannerEvent("busy", time("2021-05-13 2:05"), time("2021-05-13 3:00")),
+                new PlannerEvent("busy", time("2021-05-13 4:05"), time("2021-05-21 0:00")));
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, busy);
+
+        // the impossible task comes first and stops the greedy order, and the short task must leave room for the long one
+        PlannerTask impossible = new PlannerTask("impossible", time("2021-05-14 0:00"), 5 * 60);
+        PlannerTask shortTask = new PlannerTask("short", time("2021-05-19 0:00"), 60);
+        PlannerTask longTask = new PlannerTask("long", time("2021-05-20 0:00"), 120);
+        List<PlannerTask> tasks = Arrays.asList(impossible, shortTask, longTask);
+        Assert.assertTrue(PlannerSolver.addTasks(tasks, calendar.snapshot()).isEmpty());
+
+        List<List<PlannerEvent>> added = PlannerSolver.addTasks(tasks, calendar, 1000);
+        Assert.assertEquals(2, added.size());
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 0:30"), time("2021-05-13 0:40")));
+        Assert.assertFalse(calendar.isIntervalAvailable(time("2021-05-13 3:30"), time("2021-05-13 3:40")));
+
+        // with no time at all the search stops at the root, so nothing is added
+        PlannerCalendar rushed = new PlannerCalendar(time("2021-05-13 0:00"), 0, busy);
+        Assert.assertTrue(new BranchAndBoundSolver(0).addTasks(tasks, rushed).isEmpty());
+        Assert.assertTrue(rushed.getTaskEvents(time("2021-05-13 0:00"), time("2021-05-20 0:00")).isEmpty());
+    }
+
+    @Test
+    public void onlyCollidingTasksAreMoved() throws ParseException {
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0);
+        PlannerTask first = new PlannerTask("first", time("2021-05-20 0:00"), 60);
+        PlannerTask second = new PlannerTask("second", time("2021-05-20 0:00"), 60);
+        List<List<PlannerEvent>> added = PlannerSolver.addTasks(Arrays.asList(first, second), calendar);
+        PlannerEvent firstEvent = added.get(0).get(0);
+        List<PlannerEvent> secondEvents = calendar.getTaskEvents(second);
+
+        // the event only covers the first task, so the second one stays where it was
+        PlannerEvent busy = new PlannerEvent("busy", firstEvent.getStartTime(), firstEvent.getEndTime() - 1);
+        List<List<PlannerEvent>> moved = PlannerSolver.insertEvent(busy, calendar);
+        Assert.assertEquals(1, moved.size());
+        PlannerEvent movedEvent = moved.get(0).get(0);
+        Assert.assertSame(first, movedEvent.getParentTask());
+        Assert.assertTrue(movedEvent.getStartTime() > firstEvent.getStartTime());
+        Assert.assertEquals(Collections.singletonList(movedEvent), calendar.getTaskEvents(first));
+        Assert.assertEquals(secondEvents, calendar.getTaskEvents(second));
+
+        // removing it pulls the tasks after it to the freed time, the earliest one first
+        Assert.assertTrue(PlannerSolver.removeEvent(busy, calendar, false).isEmpty());
+        calendar.insertEvent(busy);
+        Assert.assertEquals(2, PlannerSolver.removeEvent(busy, calendar, true).size());
+        Assert.assertEquals(firstEvent.getStartTime(), calendar.getTaskEvents(second).get(0).getStartTime());
+        Assert.assertEquals(secondEvents.get(0).getStartTime(), calendar.getTaskEvents(first).get(0).getStartTime());
+    }
+
+    @Test
+    public void pulledTasksStayInPreferredTime() throws ParseException {
+        PlannerTag tag = new PlannerTag("study");
+        tag.addPreferredTimeInterval(time("2021-05-14 14:00"), time("2021-05-14 18:00"));
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, null, Collections.singletonList(tag));
+        PlannerEvent busy = new PlannerEvent("busy", time("2021-05-14 12:00"), time("2021-05-14 15:00"));
+        calendar.insertEvent(busy);
+        PlannerTask preferred = task("preferred", 60);
+        PlannerEvent placed = PlannerSolver.addTask(preferred, calendar).get(0);
+        Assert.assertTrue(placed.getStartTime() > busy.getEndTime());
+
+        // the freed time reaches back to the start of the calendar, but the task only moves to the start of its window
+        List<List<PlannerEvent>> moved = PlannerSolver.removeEvent(busy, calendar, true);
+        Assert.assertEquals(1, moved.size());
+        long movedStart = moved.get(0).get(0).getStartTime();
+        Assert.assertTrue(movedStart >= time("2021-05-14 14:00") && movedStart < time("2021-05-14 14:01"));
+        Assert.assertEquals(moved.get(0), calendar.getTaskEvents(preferred));
+
+        // an event after the task frees nothing before it, so nothing moves
+        PlannerEvent later = new PlannerEvent("later", time("2021-05-15 10:00"), time("2021-05-15 11:00"));
+        calendar.insertEvent(later);
+        Assert.assertTrue(PlannerSolver.removeEvent(later, calendar, true).isEmpty());
+        Assert.assertEquals(moved.get(0), calendar.getTaskEvents(preferred));
+    }
+
+    @Test
+    public void annealingMovesTasksToPreferredTime() throws ParseException {
+        PlannerTag tag = new PlannerTag("study");
+        tag.addPreferredTimeInterval(time("2021-05-14 14:00"), time("2021-05-14 18:00"));
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, null, Collections.singletonList(tag));
+
+        // first fit puts both tasks at the start of the calendar
+        List<List<PlannerEvent>> added = Arrays.asList(calendar.insertTask(task("first", 60)), calendar.insertTask(task("second", 90)));
+        Assert.assertTrue(added.get(1).get(0).getStartTime() < time("2021-05-13 3:00"));
+
+        AnnealingImprover improver = new AnnealingImprover(5000, 20000, AnnealingImprover.DEFAULT_START_TEMPERATURE, 42);
+        List<List<PlannerEvent>> improved = improver.improve(added, calendar);
+        Assert.assertEquals(2, improved.size());
+        Assert.assertTrue(improver.getMoves() > 0 && improver.getAcceptedMoves() > 0);
+        for (List<PlannerEvent> events : improved) {
+            PlannerEvent event = events.get(0);
+            Assert.assertTrue(event.getStartTime() >= time("2021-05-14 14:00"));
+            Assert.assertTrue(event.getStartTime() + event.getParentTask().getDurationInMillis() <= time("2021-05-14 18:00"));
+            Assert.assertEquals(events, calendar.getTaskEvents(event.getParentTask()));
+        }
+    }
+
+    @Test
+    public void bestEffortReportsUnplacedTasks() throws ParseException {
+        PlannerTag tag = new PlannerTag("study");
+        tag.addForbiddenTimeInterval(time("2021-05-13 0:00"), time("2021-05-15 0:00"));
+        PlannerCalendar calendar = new PlannerCalendar(time("2021-05-13 0:00"), 0, null, Collections.singletonList(tag));
+        calendar.insertEvent(new PlannerEvent("busy", time("2021-05-14 0:00"), time("2021-05-14 1:00")));
+        calendar.insertEvent(new PlannerEvent("busy", time("2021-05-15 0:00"), time("2021-06-12 0:00")));
+
+        // almost two days are free, but the tag forbids them, and no gap holds a day and a half
+        PlannerTask forbidden = task("forbidden", 60);
+        PlannerTask tooLong = new PlannerTask("too long", time("2021-05-20 0:00"), 36 * 60);
+        PlannerTask tooLate = new PlannerTask("too late", time("2021-05-13 0:30"), 60);
+        PlannerTask fits = new PlannerTask("fits", time("2021-05-20 0:00"), 60);
+        PlacementResult result = PlannerSolver.addTasksBestEffort(Arrays.asList(forbidden, tooLong, tooLate, fits), calendar);
+
+        Assert.assertFalse(result.isComplete());
+        Assert.assertEquals(1, result.getPlacedTasks().size());
+        Assert.assertEquals("fits", result.getPlacedTasks().get(0).get(0).getTitle());
+        Assert.assertEquals(3, result.getUnplacedTasks().size());
+        for (PlacementResult.UnplacedTask unplaced : result.getUnplacedTasks()) {
+            PlacementResult.Reason expected = unplaced.getTask() == forbidden ? PlacementResult.Reason.ALL_WINDOWS_FORBIDDEN :
+                    unplaced.getTask() == tooLate ? PlacementResult.Reason.NO_CAPACITY_BEFORE_DEADLINE :
+                            PlacementResult.Reason.SESSION_TOO_LONG;
+            Assert.assertEquals(unplaced.toString(), expected, unplaced.getReason());
+        }
+    }
+
+    @Test
+    public void identicalRequestsHitTheCache() throws ParseException {
+        PlannerTag tag = new PlannerTag("study");
+        tag.addForbiddenTimeInterval(time("2021-05-13 0:00"), time("2021-05-13 8:00"));
+        List<PlannerEvent> busy = Collections.singletonList(new PlannerEvent("busy", time("2021-05-13 9:00"), time("2021-05-13 10:00")));
+        PlannerCalendar first = new PlannerCalendar(time("2021-05-13 0:00"), 0, busy, Collections.singletonList(tag));
+        PlannerCalendar second = new PlannerCalendar(time("2021-05-13 0:00"), 0, busy, Collections.singletonList(tag));
+        Assert.assertEquals(first.getFingerprint(), second.getFingerprint());
+
+        SolverCache cache = new SolverCache(2);
+        List<List<PlannerEvent>> added = cache.addTasks(Arrays.asList(task("first", 60), task("second", 90)), first);
+        List<List<PlannerEvent>> replayed = cache.addTasks(Arrays.asList(task("first", 60), task("second", 90)), second);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(added, replayed);
+        Assert.assertEquals(first.getFingerprint(), second.getFingerprint());
+
+        // a change to the calendar changes the fingerprint, and undoing it brings it back
+        long fingerprint = second.getFingerprint();
+        PlannerEvent other = new PlannerEvent("other", time("2021-05-14 9:00"), time("2021-05-14 10:00"));
+        second.insertEvent(other);
+        Assert.assertNotEquals(fingerprint, second.getFingerprint());
+        second.removeEvent(other);
+        Assert.assertEquals(fingerprint, second.getFingerprint());
+        tag.addPreferredTimeInterval(time("2021-05-14 9:00"), time("2021-05-14 10:00"));
+        Assert.assertNotEquals(fingerprint, second.getFingerprint());
+        cache.addTasks(Collections.singletonList(task("third", 30)), second);
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void tagsWithCollidingStringHashesMissTheCache() throws ParseException {
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        Assert.assertNotEquals(Fingerprints.ofString("Aa"), Fingerprints.ofString("BB"));
+        Assert.assertNotEquals(Fingerprints.ofString(null), Fingerprints.ofString(""));
+
+        PlannerTag forbidding = new PlannerTag("Aa");
+        forbidding.addForbiddenTimeInterval(time("2021-05-13 0:00"), time("2021-05-13 8:00"));
+        List<PlannerTag> tags = Arrays.asList(forbidding, new PlannerTag("BB"));
+        PlannerCalendar first = new PlannerCalendar(time("2021-05-13 0:00"), 0, null, tags);
+        PlannerCalendar second = new PlannerCalendar(time("2021-05-13 0:00"), 0, null, tags);
+        PlannerTask free = new PlannerTask("task", time("2021-05-20 0:00"), 60);
+        free.setTagName("BB");
+        PlannerTask forbidden = new PlannerTask("task", time("2021-05-20 0:00"), 60);
+        forbidden.setTagName("Aa");
+
+        // the second request differs only by the tag, so it must not get the placement of the first
+        SolverCache cache = new SolverCache();
+        Assert.assertTrue(cache.addTasks(Collections.singletonList(free), first).get(0).get(0).getStartTime() < time("2021-05-13 8:00"));
+        List<List<PlannerEvent>> added = cache.addTasks(Collections.singletonList(forbidden), second);
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertTrue(added.get(0).get(0).getStartTime() > time("2021-05-13 8:00"));
+    }
+}
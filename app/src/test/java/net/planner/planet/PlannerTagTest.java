@@ -8,6 +8,7 @@ import org.junit.Test;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
@@ -89,11 +90,232 @@ public class PlannerTagTest {
         sportTag = manager.addToTag("yoga", null, new kotlin.Pair<>(new kotlin.Pair<>(18, 0),
                 new Pair<>(23, 30)));
         assertNotNull(sportTag);
-        assertTrue(0 < sportTag.getPreferredTimeIntervals().size());
+        assertEquals(1, sportTag.getPreferredCollisions(calendarTestFrom, calendarTestFrom + 20 * 3600000L).size());
 
         manager.removeTag(sportTag.getTagName());
         assertNull(manager.addToTag("yoga", null, new kotlin.Pair<>(new kotlin.Pair<>(18, 0),
                 new Pair<>(23, 30))));
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void managersShareTagsWhateverTheirStart() throws ParseException {
+        SimpleDateFormat ft = new SimpleDateFormat("yyyy-MM-dd H:mm");
+        PlannerMediator early = new PlannerMediator(false, null, Objects.requireNonNull(ft.parse("2021-05-13 0:00")).getTime());
+        PlannerMediator late = new PlannerMediator(false, null, Objects.requireNonNull(ft.parse("2021-09-02 14:37")).getTime());
+        List<Pair<Pair<Integer, Integer>, Pair<Integer, Integer>>> nights =
+                Collections.singletonList(new Pair<>(new Pair<>(22, 0), new Pair<>(7, 0)));
+        PlannerTag earlyTag = early.addOrRewriteTag("sleep", nights, null, 5);
+        PlannerTag lateTag = late.addOrRewriteTag("sleep", nights, null, 5);
+
+        // the rules don't depend on the calendars, so both tags are equal and share one interned copy
+        assertEquals(earlyTag.getForbiddenRecurrences(), lateTag.getForbiddenRecurrences());
+        assertEquals(Fingerprints.ofTag(earlyTag), Fingerprints.ofTag(lateTag));
+        Assert.assertSame(earlyTag.getForbiddenWindows(), lateTag.getForbiddenWindows());
+
+        // and each calendar finds the nights in its own horizon
+        assertTrue(lateTag.isIntervalForbidden(Objects.requireNonNull(ft.parse("2021-09-30 23:00")).getTime(),
+                Objects.requireNonNull(ft.parse("2021-09-30 23:30")).getTime()));
+        Assert.assertFalse(lateTag.isIntervalForbidden(Objects.requireNonNull(ft.parse("2021-09-30 12:00")).getTime(),
+                Objects.requireNonNull(ft.parse("2021-09-30 13:00")).getTime()));
+        assertEquals(0, lateTag.getForbiddenTimeIntervals().size());
+    }
+
+    @Test
+    public void recurrenceRulesAreExpandedLazily() throws ParseException {
+        SimpleDateFormat ft = new SimpleDateFormat("yyyy-MM-dd H:mm");
+        long from = Objects.requireNonNull(ft.parse("2021-05-13 0:00")).getTime();
+        long until = Objects.requireNonNull(ft.parse("2021-06-13 0:00")).getTime();
+        PlannerTag tag = new PlannerTag("sleep");
+        assertTrue(tag.addForbiddenRecurrence(RecurrenceRule.daily(22, 0, 7, 0, from, until)));
+        assertTrue(tag.addForbiddenTimeInterval(Objects.requireNonNull(ft.parse("2021-05-20 12:00")).getTime(),
+                Objects.requireNonNull(ft.parse("2021-05-20 13:00")).getTime()));
+        Assert.assertFalse(tag.addPreferredRecurrence(RecurrenceRule.daily(25, 0, 7, 0, from, until)));
+
+        // the rule is stored as is, and expanded (crossing midnight) only when asked for
+        assertEquals(1, tag.getForbiddenWindows().getIntervals().size());
+        List<IInterval> all = tag.getForbiddenTimeIntervals();
+        assertEquals(32, all.size());
+        assertEquals(new LongInterval(from + 22 * 3600000L, from + 31 * 3600000L), all.get(0));
+        assertEquals(new LongInterval(Objects.requireNonNull(ft.parse("2021-05-20 12:00")).getTime(),
+                Objects.requireNonNull(ft.parse("2021-05-20 13:00")).getTime()), all.get(7));
+        for (int i = 1; i < all.size(); i++) {
+            assertTrue(((LongInterval) all.get(i - 1)).getStart() <= ((LongInterval) all.get(i)).getStart());
+        }
+
+        assertTrue(tag.isIntervalForbidden(Objects.requireNonNull(ft.parse("2021-05-15 6:00")).getTime(),
+                Objects.requireNonNull(ft.parse("2021-05-15 8:00")).getTime()));
+        Assert.assertFalse(tag.isIntervalForbidden(Objects.requireNonNull(ft.parse("2021-05-15 8:00")).getTime(),
+                Objects.requireNonNull(ft.parse("2021-05-15 21:00")).getTime()));
+        Assert.assertFalse(tag.isIntervalForbidden(Objects.requireNonNull(ft.parse("2021-06-13 8:00")).getTime(),
+                Objects.requireNonNull(ft.parse("2021-06-13 21:00")).getTime()));
+        assertEquals(3, tag.getForbiddenCollisions(Objects.requireNonNull(ft.parse("2021-05-20 6:00")).getTime(),
+                Objects.requireNonNull(ft.parse("2021-05-20 22:00")).getTime()).size());
+
+        // tasks tagged with it are placed outside the rule
+        PlannerCalendar calendar = new PlannerCalendar(from, 0);
+        calendar.addTag(tag);
+        assertTrue(calendar.insertEvent(new PlannerEvent("busy", from,
+                Objects.requireNonNull(ft.parse("2021-05-13 12:00")).getTime())));
+        PlannerTask longTask = new PlannerTask("long task", until, 14 * 60);
+        longTask.setTagName("sleep");
+        List<PlannerEvent> events = calendar.insertTask(longTask);
+        assertEquals(1, events.size());
+        assertEquals(Objects.requireNonNull(ft.parse("2021-05-14 7:00")).getTime() + 1000, events.get(0).getStartTime());
+    }
+
+    @Test
+    public void compiledMasksAreCachedUntilTheTagChanges() throws ParseException {
+        SimpleDateFormat ft = new SimpleDateFormat("yyyy-MM-dd H:mm");
+        long from = Objects.requireNonNull(ft.parse("2021-05-13 0:00")).getTime();
+        long until = Objects.requireNonNull(ft.parse("2021-05-20 0:00")).getTime();
+        long hour = 3600000L;
+        PlannerTag tag = new PlannerTag("study");
+        tag.addForbiddenTimeInterval(from + 10 * hour, from + 12 * hour);
+        tag.addForbiddenTimeInterval(from + 11 * hour, from + 13 * hour);
+        tag.addForbiddenTimeInterval(from + 13 * hour + 1, from + 14 * hour);
+        tag.addPreferredRecurrence(RecurrenceRule.daily(9, 0, 17, 0, from, until));
+
+        // overlapping and adjacent intervals are merged, and the preferred time excludes the forbidden one
+        IntervalSet forbidden = tag.getForbiddenMask(from, until);
+        assertEquals(1, forbidden.size());
+        assertEquals(from + 10 * hour, forbidden.getStart(0));
+        assertEquals(from + 14 * hour, forbidden.getEnd(0));
+        IntervalSet preferred = tag.getPreferredMask(from, until);
+        assertEquals(8, preferred.size());
+        assertEquals(from + 10 * hour - 1, preferred.getEnd(0));
+        assertEquals(from + 14 * hour + 1, preferred.getStart(1));
+
+        // the masks are compiled once per change of the tag
+        Assert.assertSame(forbidden, tag.getForbiddenMask(from, until));
+        Assert.assertSame(forbidden, tag.getForbiddenMask(from + hour, until - hour));
+        tag.addForbiddenTimeInterval(from + 34 * hour, from + 35 * hour);
+        Assert.assertNotSame(forbidden, tag.getForbiddenMask(from, until));
+        assertEquals(2, tag.getForbiddenMask(from, until).size());
+        assertEquals(9, tag.getPreferredMask(from, until).size());
+
+        // preferred placement skips the forbidden part of the preferred time
+        PlannerCalendar calendar = new PlannerCalendar(from, 0);
+        calendar.addTag(tag);
+        PlannerTask task = new PlannerTask("task", until, 90);
+        task.setTagName("study");
+        List<PlannerEvent> events = calendar.preferredInsertTask(task);
+        assertEquals(1, events.size());
+        assertEquals(from + 14 * hour + 1, events.get(0).getStartTime());
+    }
+
+    @Test
+    public void equalTimeIntervalsAreSharedBetweenTags() throws ParseException {
+        SimpleDateFormat ft = new SimpleDateFormat("yyyy-MM-dd H:mm");
+        long from = Objects.requireNonNull(ft.parse("2021-05-13 0:00")).getTime();
+        long until = Objects.requireNonNull(ft.parse("2021-06-13 0:00")).getTime();
+        List<PlannerTag> tags = new LinkedList<>();
+        for (int user = 0; user < 100; user++) {
+            PlannerTag tag = new PlannerTag("work");
+            tag.addForbiddenRecurrence(RecurrenceRule.daily(22, 0, 7, 0, from, until));
+            tag.addForbiddenTimeInterval(from + 3600000L, from + 7200000L);
+            tag.internTimeIntervals();
+            tags.add(tag);
+        }
+
+        // all the tags share one frozen copy, and tags with no time intervals share the empty one
+        PlannerTag first = tags.get(0), last = tags.get(99);
+        Assert.assertSame(first.getForbiddenWindows(), last.getForbiddenWindows());
+        assertTrue(first.getForbiddenWindows().isFrozen());
+        Assert.assertSame(TagWindows.EMPTY, first.getPreferredWindows());
+        Assert.assertSame(TagWindows.EMPTY, new PlannerTag("sport").getForbiddenWindows());
+
+        // a tag that changes gets its own copy
+        int version = last.getVersion();
+        assertTrue(last.addForbiddenTimeInterval(from + 10 * 3600000L, from + 11 * 3600000L));
+        Assert.assertNotSame(first.getForbiddenWindows(), last.getForbiddenWindows());
+        Assert.assertNotEquals(version, last.getVersion());
+        assertEquals(32, first.getForbiddenTimeIntervals().size());
+        assertEquals(33, last.getForbiddenTimeIntervals().size());
+        assertTrue(last.isIntervalForbidden(from + 10 * 3600000L, from + 11 * 3600000L));
+        Assert.assertFalse(first.isIntervalForbidden(from + 10 * 3600000L, from + 11 * 3600000L));
+        Assert.assertEquals(Fingerprints.ofTag(first), Fingerprints.ofTag(tags.get(50)));
+    }
+
+    @Test
+    public void renamedTagsKeepTheirTasks() throws ParseException {
+        SimpleDateFormat ft = new SimpleDateFormat("yyyy-MM-dd H:mm");
+        long from = Objects.requireNonNull(ft.parse("2021-05-13 0:00")).getTime();
+        long hour = 3600000L;
+        PlannerTag tag = new PlannerTag("gym");
+        tag.addForbiddenTimeInterval(from, from + 8 * hour);
+        PlannerCalendar calendar = new PlannerCalendar(from, 0);
+        assertTrue(calendar.addTag(tag));
+        assertTrue(calendar.addTag(new PlannerTag("reading")));
+        PlannerTask task = new PlannerTask("run", from + 48 * hour, 60);
+        task.setTagName("gym");
+
+        // names keep their ids, and the same name has the same id everywhere
+        int id = task.getTagId();
+        assertEquals(id, tag.getTagId());
+        assertEquals(id, PlannerTagRegistry.idOf("gym"));
+        assertEquals("gym", PlannerTagRegistry.nameOf(id));
+        assertEquals(PlannerTagRegistry.NO_TAG_ID, new PlannerTask("walk", from + 48 * hour, 30).getTagId());
+
+        // after a rename the tag is found by its new name, and by the old name its tasks still carry
+        PlannerTag renamed = calendar.renameTag("gym", "workout");
+        assertEquals("workout", renamed.getTagName());
+        Assert.assertNull(calendar.renameTag("workout", "reading"));
+        Assert.assertFalse(calendar.containsTag("gym"));
+        assertTrue(calendar.containsTag("workout"));
+        assertEquals(2, calendar.getTagNames().size());
+        assertTrue(calendar.getTagNames().contains("workout"));
+        Assert.assertSame(renamed, calendar.getTag(task));
+        List<PlannerEvent> events = calendar.insertTask(task);
+        assertEquals(1, events.size());
+        assertEquals(from + 8 * hour + 1000, events.get(0).getStartTime());
+
+        // removing the tag also removes its old name
+        assertTrue(calendar.removeTag("workout"));
+        assertNull(calendar.getTag(task));
+    }
+
+    @Test
+    public void renamingDoesntChangeSnapshots() throws ParseException {
+        SimpleDateFormat ft = new SimpleDateFormat("yyyy-MM-dd H:mm");
+        long from = Objects.requireNonNull(ft.parse("2021-05-13 0:00")).getTime();
+        PlannerTag tag = new PlannerTag("gym");
+        tag.addForbiddenTimeInterval(from, from + 8 * 3600000L);
+        PlannerCalendar calendar = new PlannerCalendar(from, 0);
+        calendar.addTag(tag);
+        PlannerCalendar snapshot = calendar.snapshot();
+
+        // the calendar gets a renamed copy, and the snapshot keeps the tag as it was
+        PlannerTag renamed = calendar.renameTag("gym", "workout");
+        Assert.assertNotSame(tag, renamed);
+        assertEquals("gym", tag.getTagName());
+        assertTrue(renamed.isIntervalForbidden(from, from + 3600000L));
+        assertTrue(snapshot.containsTag("gym"));
+        Assert.assertFalse(snapshot.containsTag("workout"));
+        Assert.assertSame(tag, snapshot.getTag("gym"));
+        assertEquals(1, snapshot.getTags().size());
+
+        // restoring the snapshot brings back the old name
+        assertTrue(calendar.restore(snapshot));
+        assertTrue(calendar.containsTag("gym"));
+        Assert.assertFalse(calendar.containsTag("workout"));
+        Assert.assertSame(tag, calendar.getTag("gym"));
+
+        // a calendar only holds the tags it was given, however many names were seen before
+        for (int i = 0; i < 1000; i++) {
+            PlannerTagRegistry.idOf("tenant tag " + i);
+        }
+        PlannerCalendar small = new PlannerCalendar(from, 0);
+        small.addTag(new PlannerTag("tenant tag 999"));
+        assertTrue(small.containsTag("tenant tag 999"));
+        Assert.assertFalse(small.containsTag("tenant tag 998"));
+        assertEquals(Collections.singletonList("tenant tag 999"), small.snapshot().getTagNames());
+        for (int i = 0; i < 100; i += 2) {
+            assertTrue(small.addTag(new PlannerTag("tenant tag " + i)));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0, small.containsTag("tenant tag " + i));
+        }
+        assertEquals(51, small.getTags().size());
+    }
+}